@@ -0,0 +1,273 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing;
+
+import org.esa.sen4cap.preprocessing.scheduling.ConfigurationKeys;
+import ro.cs.tao.utils.executors.ExecutionUnit;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Node-wide admission of the Sentinel-1 processing sub-steps.
+ * All the product pairs processed at the same time on this node share the same budgets of memory, CPU slots
+ * and scratch disk, and a sub-step is started only when the resources it requires (its minimum memory and disk,
+ * and the number of gpt threads) are not committed to the sub-steps already running.
+ * The deferred sub-steps are queued in the order of their first attempt, and the resources of the oldest one are
+ * reserved: the others are admitted only if they fit next to it, so that a large sub-step is not starved by
+ * a stream of smaller ones. The reservation does not apply to the sub-steps of the same owner (product pair),
+ * which would otherwise wait for each other.
+ */
+public final class AdmissionController {
+    private static final AdmissionController instance = new AdmissionController();
+    private final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+    private final long memoryBudget;
+    private final int cpuBudget;
+    private final Map<ExecutionUnit, Demand> admitted;
+    private final Map<FileStore, Long> committedDisk;
+    // the deferred sub-steps, oldest first
+    private final LinkedList<Demand> waiting;
+    private long committedMemory;
+    private int committedCpu;
+
+    public enum Decision {
+        /** The resources were committed to the sub-step, which can be started */
+        ADMITTED,
+        /** The resources are committed to other sub-steps, the admission has to be retried after a release */
+        DEFERRED,
+        /** The sub-step requires more disk than available, even if nothing else is running */
+        REJECTED
+    }
+
+    public static AdmissionController getInstance() { return instance; }
+
+    private AdmissionController() {
+        final long memory = Long.parseLong(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MEMORY_BUDGET));
+        this.memoryBudget = memory > 0 ? memory : physicalMemory();
+        final int cpu = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_CPU_BUDGET));
+        this.cpuBudget = cpu > 0 ? cpu : Runtime.getRuntime().availableProcessors();
+        this.admitted = new IdentityHashMap<>();
+        this.committedDisk = new HashMap<>();
+        this.waiting = new LinkedList<>();
+        logger.fine(String.format("Sentinel-1 processing budgets: memory %dMB, CPU %d slots", this.memoryBudget, this.cpuBudget));
+    }
+
+    /**
+     * The memory (MB) that the sub-steps running at the same time may use.
+     */
+    public long getMemoryBudget() { return memoryBudget; }
+
+    /**
+     * The number of threads that the sub-steps running at the same time may use.
+     */
+    public int getCpuBudget() { return cpuBudget; }
+
+    /**
+     * The number of product pairs that can be processed at the same time without having them wait
+     * (most of the time) for each other's resources.
+     */
+    public int suggestedParallelism() {
+        final long minMemory = Long.parseLong(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MIN_MEMORY));
+        final int gptProcs = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_GPT_PARALLELISM));
+        final long byMemory = minMemory > 0 ? this.memoryBudget / minMemory : Integer.MAX_VALUE;
+        final long byCpu = gptProcs > 0 ? this.cpuBudget / gptProcs : this.cpuBudget;
+        return (int) Math.max(1, Math.min(byMemory, byCpu));
+    }
+
+    /**
+     * Tries to commit the resources required by the given sub-step.
+     * Should the sub-step be admitted, the resources have to be released with {@link #release(ExecutionUnit)}
+     * after it completed. Should it be deferred, the admission has to be retried until it is admitted,
+     * or abandoned with {@link #abandon(ExecutionUnit)}, since the resources are reserved for the oldest
+     * deferred sub-step.
+     *
+     * @param owner         The owner of the sub-step (sub-steps of the same owner are not kept waiting by each other's reservation)
+     * @param unit          The sub-step
+     * @param workingFolder The folder in which the sub-step writes its outputs
+     */
+    public synchronized Decision tryAdmit(Object owner, ExecutionUnit unit, Path workingFolder) throws IOException {
+        final FileStore store = Files.getFileStore(workingFolder);
+        final Demand demand = new Demand(owner, unit, minMemory(unit), cpuSlots(unit), minDisk(unit), store);
+        final Demand oldest = this.waiting.peekFirst();
+        final Decision decision = decide(demand, oldest == null || oldest.owner == owner ? null : oldest);
+        switch (decision) {
+            case ADMITTED:
+                removeWaiting(unit);
+                if (demand.memory > this.memoryBudget) {
+                    logger.warning(String.format("Step requires %dMB, more than the memory budget (%dMB)", demand.memory, this.memoryBudget));
+                }
+                this.committedMemory += demand.memory;
+                this.committedCpu += demand.cpu;
+                this.committedDisk.merge(store, demand.disk, Long::sum);
+                this.admitted.put(unit, demand);
+                break;
+            case DEFERRED:
+                if (this.waiting.stream().noneMatch(d -> d.unit == unit)) {
+                    this.waiting.addLast(demand);
+                }
+                break;
+            default:
+                removeWaiting(unit);
+                break;
+        }
+        return decision;
+    }
+
+    /**
+     * Checks if the resources are reserved for the given sub-step, i.e. it is the oldest deferred one.
+     */
+    public synchronized boolean isReserved(ExecutionUnit unit) {
+        final Demand oldest = this.waiting.peekFirst();
+        return oldest != null && oldest.unit == unit;
+    }
+
+    /**
+     * Withdraws a deferred sub-step that will not be retried (for example, because another sub-step
+     * of the same product pair failed), so that its resources are no longer reserved.
+     */
+    public synchronized void abandon(ExecutionUnit unit) {
+        if (removeWaiting(unit)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Checks if the sub-step fits in the resources that are not committed, nor reserved for the oldest deferred one.
+     */
+    private Decision decide(Demand demand, Demand reserved) {
+        final long diskInUse = this.committedDisk.getOrDefault(demand.store, 0L);
+        final long usableDisk = demand.store.getUsableSpace() >> 20;
+        if (diskInUse + demand.disk > usableDisk) {
+            // if nothing else writes to this disk, there is no point in waiting
+            return diskInUse == 0 ? Decision.REJECTED : Decision.DEFERRED;
+        }
+        long memoryInUse = this.committedMemory;
+        int cpuInUse = this.committedCpu;
+        if (reserved != null) {
+            if (reserved.store.equals(demand.store) && diskInUse + reserved.disk + demand.disk > usableDisk) {
+                return Decision.DEFERRED;
+            }
+            memoryInUse += reserved.memory;
+            cpuInUse += reserved.cpu;
+        }
+        // a sub-step larger than the budget is still executed, but alone
+        if (memoryInUse > 0 && memoryInUse + demand.memory > this.memoryBudget) {
+            return Decision.DEFERRED;
+        }
+        if (cpuInUse > 0 && cpuInUse + demand.cpu > this.cpuBudget) {
+            return Decision.DEFERRED;
+        }
+        return Decision.ADMITTED;
+    }
+
+    private boolean removeWaiting(ExecutionUnit unit) {
+        final Iterator<Demand> iterator = this.waiting.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().unit == unit) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the resources committed to the given sub-step and wakes up the ones waiting for resources.
+     */
+    public synchronized void release(ExecutionUnit unit) {
+        final Demand demand = this.admitted.remove(unit);
+        if (demand != null) {
+            this.committedMemory -= demand.memory;
+            this.committedCpu -= demand.cpu;
+            this.committedDisk.merge(demand.store, -demand.disk, Long::sum);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until some resources are released or the given timeout elapses.
+     */
+    public synchronized void awaitRelease(long timeoutMillis) throws InterruptedException {
+        wait(timeoutMillis);
+    }
+
+    /**
+     * The number of threads of a sub-step is the value of the gpt <code>-q</code> argument (1 for other commands).
+     */
+    static int cpuSlots(ExecutionUnit unit) {
+        final List<String> arguments = unit.getArguments();
+        if (arguments != null) {
+            final int idx = arguments.indexOf("-q");
+            if (idx >= 0 && idx < arguments.size() - 1) {
+                try {
+                    return Math.max(1, Integer.parseInt(arguments.get(idx + 1)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return 1;
+    }
+
+    static long minMemory(ExecutionUnit unit) {
+        final Long value = unit.getMinMemory();
+        return value != null ? value : 0;
+    }
+
+    static long minDisk(ExecutionUnit unit) {
+        final Long value = unit.getMinDisk();
+        return value != null ? value : 0;
+    }
+
+    private static long physicalMemory() {
+        try {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalPhysicalMemorySize() >> 20;
+        } catch (Throwable t) {
+            return Runtime.getRuntime().maxMemory() >> 20;
+        }
+    }
+
+    private static class Demand {
+        private final Object owner;
+        private final ExecutionUnit unit;
+        private final long memory;
+        private final int cpu;
+        private final long disk;
+        private final FileStore store;
+
+        Demand(Object owner, ExecutionUnit unit, long memory, int cpu, long disk, FileStore store) {
+            this.owner = owner;
+            this.unit = unit;
+            this.memory = memory;
+            this.cpu = cpu;
+            this.disk = disk;
+            this.store = store;
+        }
+    }
+}
@@ -57,7 +57,8 @@ public final class Configuration {
         defaults.put(ConfigurationKeys.S1_PROCESSOR_GPT_PARALLELISM, "8");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_PARALLEL_STEPS, "true");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_RESOLVE_LINKS, "false");
-        defaults.put(ConfigurationKeys.S1_PROCESSOR_PARALLELISM, "1");
+        // 0 means as many product pairs as the node budgets allow
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_PARALLELISM, "0");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_MASTER, "S1B");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_OVERWRITE_EXISTING, "false");
         defaults.put(ConfigurationKeys.DISK_SAMPLING_INTERVAL, "0");
@@ -68,6 +69,18 @@ public final class Configuration {
         defaults.put(ConfigurationKeys.S1_PROCESSOR_OUTPUT_PATH, Constants.DEFAULT_TARGET_PATH + "/{site}/l2a-s1");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_JOIN_AMPLITUDE_STEPS, "false");
         defaults.put(ConfigurationKeys.S1_PROCESSOR_JOIN_COHERENCE_STEPS, "false");
+        // memory (MB) that the steps running at the same time may use; 0 means all the physical memory
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_MEMORY_BUDGET, "0");
+        // threads that the steps running at the same time may use; 0 means all the processors
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_CPU_BUDGET, "0");
+        // reserve for each step the memory it used in its recent executions
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_GPT_AUTOTUNE, "true");
+        // folder keeping the calibrated and coregistered products for reuse; empty means no reuse
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_INTERMEDIATE_CACHE, "");
+        // size (MB) of the intermediate products cache; 0 means half of the disk holding it
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_INTERMEDIATE_CACHE_SIZE, "0");
+        // run all the steps of a pair in a single gpt graph when the estimated memory fits the memory budget
+        defaults.put(ConfigurationKeys.S1_PROCESSOR_FUSE_STEPS, "false");
         // default projection is LAEA (EPSG:3035)
         defaults.put(ConfigurationKeys.S1_PROCESSOR_PROJECTION, "PROJCS[\"ETRS89 / LAEA Europe\", GEOGCS[\"ETRS89\", DATUM[\"European Terrestrial Reference System 1989\", SPHEROID[\"GRS 1980\", 6378137.0, 298.257222101, AUTHORITY[\"EPSG\",\"7019\"]], TOWGS84[0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0], AUTHORITY[\"EPSG\",\"6258\"]], PRIMEM[\"Greenwich\", 0.0, AUTHORITY[\"EPSG\",\"8901\"]], UNIT[\"degree\", 0.017453292519943295], AXIS[\"Geodetic longitude\", EAST], AXIS[\"Geodetic latitude\", NORTH], AUTHORITY[\"EPSG\",\"4258\"]], PROJECTION[\"Lambert_Azimuthal_Equal_Area\", AUTHORITY[\"EPSG\",\"9820\"]], PARAMETER[\"latitude_of_center\", 52.0], PARAMETER[\"longitude_of_center\", 10.0], PARAMETER[\"false_easting\", 4321000.0], PARAMETER[\"false_northing\", 3210000.0], UNIT[\"m\", 1.0], AXIS[\"Easting\", EAST], AXIS[\"Northing\", NORTH], AUTHORITY[\"EPSG\",\"3035\"]]");
         defaults.put(COMMON_CHAIN, "{\"Calibration\":[\"0-calibration.xml\"],\"Coregistration\":[\"1-1-geocoding.xml\",\"1-2-geocoding.xml\",\"1-3-geocoding.xml\"]}");
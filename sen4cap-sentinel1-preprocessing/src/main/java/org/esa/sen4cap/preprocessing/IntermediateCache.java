@@ -0,0 +1,375 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing;
+
+import org.esa.sen4cap.preprocessing.scheduling.ConfigurationKeys;
+import ro.cs.tao.utils.FileUtilities;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of the intermediate products (BEAM-DIMAP) written by the sub-steps of the common
+ * processing chain (calibration, coregistration).
+ * An entry is identified by the hash of the graph executed by the sub-step (which already contains the polarisation,
+ * the bursts and the other parameters) and of its inputs: the source products for the first sub-steps, the keys of
+ * the producing sub-steps for the others. Hence the same pair processed again (another site covering it, a retry
+ * after a failure of the later steps) reuses the products instead of re-computing them.
+ * The entries are hard-linked from and into the product folders, and the least recently used ones are evicted when
+ * the cache exceeds its size. Copying the products would cost about as much as computing them, hence the cache
+ * is not used for the working folders on another file system than its own.
+ * Only the bookkeeping of the entries is done under the lock of the cache, not the linking of the files, hence
+ * the entries being restored are not evicted.
+ */
+public final class IntermediateCache {
+    private static final IntermediateCache instance = new IntermediateCache();
+    private static final String DIMAP_HEADER = ".dim";
+    private static final String DIMAP_DATA = ".data";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private final Logger logger = Logger.getLogger(IntermediateCache.class.getName());
+    private final Path root;
+    private final long maxSize;
+    private final long minFreeSpace;
+    // entry sizes, in access order
+    private final LinkedHashMap<String, Long> entries;
+    // the entries being stored
+    private final Set<String> storing;
+    // the number of restores in progress for each entry
+    private final Map<String, Integer> restoring;
+    // whether the cache can be used from the working folders of a file store
+    private final Map<FileStore, Boolean> usableStores;
+    private final FileStore fileStore;
+    private long size;
+
+    public static IntermediateCache getInstance() { return instance; }
+
+    private IntermediateCache() {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.storing = new HashSet<>();
+        this.restoring = new HashMap<>();
+        this.usableStores = new HashMap<>();
+        final String folder = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_INTERMEDIATE_CACHE);
+        Path path = null;
+        FileStore store = null;
+        long capacity = 0;
+        if (folder != null && !folder.isEmpty()) {
+            try {
+                path = Files.createDirectories(Paths.get(folder));
+                store = Files.getFileStore(path);
+                capacity = store.getTotalSpace() >> 20;
+                load(path);
+            } catch (IOException e) {
+                logger.warning(String.format("The intermediate products cache is disabled. Reason: cannot use folder %s (%s)",
+                                             folder, e.getMessage()));
+                path = null;
+            }
+        }
+        this.root = path;
+        this.fileStore = path != null ? store : null;
+        final long configuredSize = Long.parseLong(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_INTERMEDIATE_CACHE_SIZE));
+        this.maxSize = configuredSize > 0 ? configuredSize : capacity / 2;
+        final String minDisk = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MIN_DISK);
+        this.minFreeSpace = minDisk != null && !minDisk.isEmpty() ? Long.parseLong(minDisk) : 0;
+        if (this.root != null) {
+            logger.fine(String.format("Intermediate products cache: %s, %d entries, %dMB used of %dMB",
+                                      this.root, this.entries.size(), this.size, this.maxSize));
+        }
+    }
+
+    /**
+     * Checks if the cache can be used for the products written in the given folder,
+     * i.e. if the folder is on the same file store as the cache.
+     */
+    public synchronized boolean isEnabled(Path workingFolder) {
+        if (this.root == null) {
+            return false;
+        }
+        try {
+            final FileStore store = Files.getFileStore(workingFolder);
+            return this.usableStores.computeIfAbsent(store, s -> {
+                final boolean same = s.equals(this.fileStore);
+                if (!same) {
+                    logger.warning(String.format("The intermediate products cache is disabled for %s. Reason: it is not on the same file system as %s",
+                                                 workingFolder, this.root));
+                }
+                return same;
+            });
+        } catch (IOException e) {
+            logger.warning(String.format("The intermediate products cache is disabled for %s. Reason: %s",
+                                         workingFolder, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Computes the key of the outputs of a sub-step.
+     *
+     * @param graph         The contents of the gpt graph executed by the sub-step
+     * @param location      The product folder, as it appears in the graph
+     * @param upstreamKeys  The keys of the sub-steps producing the inputs of this sub-step
+     * @param products      The source products read by this sub-step
+     */
+    String key(String graph, String location, List<String> upstreamKeys, Path... products) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // the outputs do not depend on the folder in which they are written
+            digest.update(graph.replace(location, "$LOCATION").getBytes(StandardCharsets.UTF_8));
+            for (String upstreamKey : upstreamKeys) {
+                digest.update(upstreamKey.getBytes(StandardCharsets.UTF_8));
+            }
+            for (Path product : products) {
+                if (product != null) {
+                    digest.update(product.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Long.toString(Files.getLastModifiedTime(product).toMillis()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            logger.warning(String.format("Cannot compute the key of the intermediate products. Reason: %s", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Checks if there is an entry for the given key.
+     */
+    synchronized boolean contains(String key) {
+        // get() also marks the entry as recently used
+        return this.root != null && key != null && this.entries.get(key) != null;
+    }
+
+    /**
+     * Places the cached products of the given key in the product folder.
+     *
+     * @param key       The key of the sub-step
+     * @param outputs   The products written by the sub-step (the BEAM-DIMAP headers)
+     * @return <code>true</code> if all the products were restored
+     */
+    boolean restore(String key, Set<String> outputs) {
+        synchronized (this) {
+            if (!contains(key)) {
+                return false;
+            }
+            this.restoring.merge(key, 1, Integer::sum);
+        }
+        final Path entry = this.root.resolve(key);
+        final List<Path> restored = new ArrayList<>();
+        try {
+            for (String output : outputs) {
+                for (Path file : dimapFiles(Paths.get(output))) {
+                    final Path source = entry.resolve(file.getFileName().toString());
+                    if (!Files.exists(source)) {
+                        throw new NoSuchFileException(source.toString());
+                    }
+                    deleteIfExists(file);
+                    restored.add(file);
+                    linkTree(source, file);
+                }
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                unpin(key);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot restore the intermediate products %s. Reason: %s", key, e.getMessage()));
+            for (Path file : restored) {
+                deleteIfExists(file);
+            }
+            synchronized (this) {
+                // the entry is incomplete, but it is dropped only when no other restore reads it
+                if (!unpin(key)) {
+                    remove(key);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Ends a restore of the given entry and checks if other restores of it are still in progress.
+     */
+    private boolean unpin(String key) {
+        return this.restoring.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null) != null;
+    }
+
+    /**
+     * Adds the products written by a sub-step to the cache, evicting the least recently used entries if needed.
+     *
+     * @param key       The key of the sub-step
+     * @param outputs   The products written by the sub-step (the BEAM-DIMAP headers)
+     */
+    void store(String key, Set<String> outputs) {
+        synchronized (this) {
+            if (this.root == null || key == null || this.entries.containsKey(key) || !this.storing.add(key)) {
+                return;
+            }
+        }
+        final Path entry = this.root.resolve(key);
+        final Path temporary = this.root.resolve(key + TEMPORARY_SUFFIX);
+        final List<String> evicted = new ArrayList<>();
+        try {
+            deleteIfExists(temporary);
+            Files.createDirectories(temporary);
+            for (String output : outputs) {
+                for (Path file : dimapFiles(Paths.get(output))) {
+                    linkTree(file, temporary.resolve(file.getFileName().toString()));
+                }
+            }
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+            final long entrySize = sizeOf(entry);
+            synchronized (this) {
+                this.entries.put(key, entrySize);
+                this.size += entrySize;
+                evicted.addAll(evict());
+            }
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot cache the intermediate products %s. Reason: %s", key, e.getMessage()));
+            deleteIfExists(temporary);
+        } finally {
+            synchronized (this) {
+                this.storing.remove(key);
+            }
+        }
+        for (String eldest : evicted) {
+            deleteIfExists(this.root.resolve(eldest));
+        }
+    }
+
+    /**
+     * Removes the least recently used entries from the index and returns their keys, for their files to be
+     * deleted outside the lock. The entries being restored are skipped.
+     */
+    private List<String> evict() throws IOException {
+        final List<String> evicted = new ArrayList<>();
+        // the space is not freed right away for the entries still linked from product folders,
+        // hence the missing free space is computed only once
+        long missingSpace = this.minFreeSpace - (Files.getFileStore(this.root).getUsableSpace() >> 20);
+        final Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        // the most recently added entry is kept, even if it alone exceeds the cache size
+        int candidates = this.entries.size() - 1;
+        while (candidates-- > 0 && (this.size > this.maxSize || missingSpace > 0)) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            if (this.restoring.containsKey(eldest.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            this.size -= eldest.getValue();
+            missingSpace -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            logger.finest(String.format("Evicted intermediate products %s (%dMB)", eldest.getKey(), eldest.getValue()));
+        }
+        return evicted;
+    }
+
+    private void remove(String key) {
+        final Long entrySize = this.entries.remove(key);
+        if (entrySize != null) {
+            this.size -= entrySize;
+        }
+        deleteIfExists(this.root.resolve(key));
+    }
+
+    private void load(Path folder) throws IOException {
+        final List<Path> existing;
+        try (Stream<Path> stream = Files.list(folder)) {
+            existing = stream.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        final Map<Path, Long> accessTimes = new HashMap<>();
+        for (Path path : existing) {
+            if (path.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                // left by an interrupted store
+                deleteIfExists(path);
+            } else {
+                accessTimes.put(path, Files.getLastModifiedTime(path).toMillis());
+            }
+        }
+        final List<Path> entryPaths = new ArrayList<>(accessTimes.keySet());
+        entryPaths.sort(Comparator.comparing(accessTimes::get));
+        for (Path path : entryPaths) {
+            final long entrySize = sizeOf(path);
+            this.entries.put(path.getFileName().toString(), entrySize);
+            this.size += entrySize;
+        }
+    }
+
+    private static List<Path> dimapFiles(Path header) {
+        final String name = header.getFileName().toString();
+        final List<Path> files = new ArrayList<>();
+        files.add(header);
+        if (name.endsWith(DIMAP_HEADER)) {
+            files.add(header.resolveSibling(name.substring(0, name.length() - DIMAP_HEADER.length()) + DIMAP_DATA));
+        }
+        return files;
+    }
+
+    private static void linkTree(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.createLink(target.resolve(source.relativize(file).toString()), file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        final long[] bytes = new long[1];
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                bytes[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes[0] >> 20;
+    }
+
+    private void deleteIfExists(Path path) {
+        try {
+            if (Files.isDirectory(path)) {
+                FileUtilities.deleteTree(path);
+            } else {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot remove %s. Reason: %s", path, e.getMessage()));
+        }
+    }
+}
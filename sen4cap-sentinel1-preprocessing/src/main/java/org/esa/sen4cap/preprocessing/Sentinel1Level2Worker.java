@@ -28,6 +28,7 @@ import org.esa.sen2agri.entities.enums.OrbitType;
 import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.services.JobHelper;
 import org.esa.sen4cap.entities.enums.ProductType;
+import org.esa.sen4cap.preprocessing.db.StepStatistics;
 import org.esa.sen4cap.preprocessing.scheduling.ConfigurationKeys;
 import org.locationtech.jts.geom.Geometry;
 import ro.cs.tao.EnumUtils;
@@ -44,7 +45,6 @@ import ro.cs.tao.serialization.GeometryAdapter;
 import ro.cs.tao.spi.ServiceRegistryManager;
 import ro.cs.tao.utils.DateUtils;
 import ro.cs.tao.utils.FileUtilities;
-import ro.cs.tao.utils.FixedQueue;
 import ro.cs.tao.utils.executors.*;
 import ro.cs.tao.utils.executors.monitoring.ActivityListener;
 
@@ -62,6 +62,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Formatter;
 import java.util.logging.*;
 import java.util.stream.Collectors;
@@ -76,6 +77,8 @@ public class Sentinel1Level2Worker {
     private static final String[] otherReplacements;
     private static final String[] burstTokens;
     private static final Map<String, Boolean> stepDeletionStatus;
+    // the fused steps whose execution failed, which are no longer fused (the failed executions are not profiled)
+    private static final Set<String> failedFusions = ConcurrentHashMap.newKeySet();
     private final ProcessorRuntimeConfiguration configuration;
     private final Path targetPath;
     private final Path temporaryPath;
@@ -83,6 +86,9 @@ public class Sentinel1Level2Worker {
     private final List<String> errors;
     private final Logger logger = Logger.getLogger(Sentinel1Level2Worker.class.getName());
     private final Map<ExecutionUnit, Step> dbJobSteps;
+    private final IntermediateCache cache = IntermediateCache.getInstance();
+    // the steps fused by the last call of createExecutionUnits(), if any
+    private String fusedSteps;
 
     static {
         excludedExtensions = new HashSet<String>() {{
@@ -264,112 +270,135 @@ public class Sentinel1Level2Worker {
                              String.format("Master: %s, slave: %s",
                                     masterProduct.getName(masterProduct.getNameCount() - 1),
                                     slaveProduct != null ? slaveProduct.getName(slaveProduct.getNameCount() - 1) : "n/a"));
-            LinkedHashMap<String, ExecutionUnit[]> jobs = createExecutionUnits(job, polarisation, masterProduct, slaveProduct,
-                                                                               useMasterBand, name, metadataBuilder);
-            int i = 1;
-            String args;
-            FixedQueue<String> queue = new FixedQueue<>(String.class, 1);
-            final Map<String, Boolean> deletionStatus = new HashMap<>(stepDeletionStatus);
-            final Map<String, Step> dbSteps = new HashMap<>();
-            for (Map.Entry<String, ExecutionUnit[]> entry : jobs.entrySet()) {
-                String stepName = entry.getKey();
-                Task currentTask = Config.getPersistenceManager().getTask(job.getId(), stepName);
-                JobHelper.update(currentTask, ActivityStatus.RUNNING);
-                if (stepName.toLowerCase().startsWith("amplitude") && ProcessFlag.isReset(processFlag, ProcessFlag.AMPLITUDE)) {
-                    ProductLog.debug(productFolderName, String.format("Step %s will be skipped (amplitude flag reset)", stepName));
-                    i++;
-                    continue;
+            final int flags = processFlag;
+            while (true) {
+                final StepGraph graph = createExecutionUnits(job, polarisation, masterProduct, slaveProduct,
+                                                             useMasterBand, name, metadataBuilder,
+                                                             stepName -> isSkipped(stepName, flags));
+                final Map<String, Task> tasks = new HashMap<>();
+                final Map<String, Instant> stepStarts = new HashMap<>();
+                final Map<String, Integer> remainingSubSteps = new HashMap<>();
+                final Set<String> cleanedSteps = new HashSet<>();
+                for (StepGraph.Node node : graph.getNodes()) {
+                    remainingSubSteps.merge(node.getStepName(), 1, Integer::sum);
                 }
-                if (stepName.toLowerCase().startsWith("coherence") && ProcessFlag.isReset(processFlag, ProcessFlag.COHERENCE)) {
-                    ProductLog.debug(productFolderName, String.format("Step %s will be skipped (coherence flag reset)", stepName));
-                    i++;
-                    continue;
-                }
-                ExecutionUnit[] subSteps = entry.getValue();
-                Instant stepStart = Instant.now();
-                for (int j = 0; j < subSteps.length; j++) {
-                    JobHelper.update(this.dbJobSteps.get(subSteps[j]), ActivityStatus.RUNNING, null);
-                }
-                try {
-                    long availableDisk = productFolder.toFile().getUsableSpace() >> 20;
-                    long requiredDisk = Arrays.stream(subSteps).mapToLong(ExecutionUnit::getMinDisk).sum();
-                    if (availableDisk < requiredDisk) {
-                        message = String.format("Not enough disk space for step %d (%s). Available: %dMB; required: %dMB",
-                                                i, stepName, availableDisk, requiredDisk);
-                        ProductLog.error(productFolderName, message);
-                        notify(Level.SEVERE, message);
-                        errors.add("Not enough disk space");
-                        status = false;
-                        break;
+                final StepScheduler scheduler = new StepScheduler(productFolder,
+                                                                  configuration.hasParallelSteps() ? graph.getNodes().size() : 1,
+                                                                  timeoutMinutes * 60, monitor);
+                status = scheduler.execute(graph, new StepScheduler.Listener() {
+                    @Override
+                    public void started(StepGraph.Node node) {
+                        final String stepName = node.getStepName();
+                        startTask(stepName);
+                        JobHelper.update(dbJobSteps.get(node.getUnit()), ActivityStatus.RUNNING, null);
+                        ProductLog.debug(productFolderName, String.format("Executing step %d-%d (%s): %s",
+                                                                          node.getStepNumber(), node.getSubStepNumber(), stepName,
+                                                                          jobsToString(new ExecutionUnit[] { node.getUnit() })));
                     }
-                    args = jobsToString(subSteps);
-                    ProductLog.debug(productFolderName, String.format("Executing step %d (%s): %s", i, stepName, args));
-                    OutputAccumulator outputConsumer = new OutputAccumulator();
-                    int[] codes;
-                    final Step firstStep = this.dbJobSteps.get(subSteps[0]);
-                    Instant startTIme = Instant.now();
-                    if (configuration.hasParallelSteps()) {
-                        codes = Executor.execute(outputConsumer, timeoutMinutes * 60, monitor, subSteps);
-                        for (int j = 0; j < subSteps.length; j++) {
-                            JobHelper.update(this.dbJobSteps.get(subSteps[j]),
-                                             codes[j] == 0 ? ActivityStatus.FINISHED : ActivityStatus.ERROR,
-                                             codes[j]);
-                        }
-                        status = (Arrays.stream(codes).allMatch(c -> c == 0));
-                    } else {
-                        codes = new int[subSteps.length];
-                        for (int si = 0; si < subSteps.length; si++) {
-                            codes[si] = Executor.execute(outputConsumer, timeoutMinutes * 60, subSteps[si], monitor);
-                            status = codes[si] == 0;
-                            JobHelper.update(this.dbJobSteps.get(subSteps[si]),
-                                             status ? ActivityStatus.FINISHED : ActivityStatus.ERROR,
-                                             codes[si]);
-                            if (!status) {
-                                break;
-                            }
+
+                    @Override
+                    public void completed(StepGraph.Node node, int code, String output, Duration duration) {
+                        final String stepName = node.getStepName();
+                        final ExecutionUnit unit = node.getUnit();
+                        final Step dbStep = dbJobSteps.get(unit);
+                        final Task task = tasks.get(stepName);
+                        JobHelper.update(dbStep, code == 0 ? ActivityStatus.FINISHED : ActivityStatus.ERROR, code);
+                        String message = "";
+                        if (code != 0) {
+                            message = String.format("Error executing step %d-%d (%s) [code=%d]: %s",
+                                                    node.getStepNumber(), node.getSubStepNumber(), stepName, code,
+                                                    jobsToString(new ExecutionUnit[] { unit }));
+                            ProductLog.error(productFolderName, message);
                         }
-                    }
-                    i++;
-                    final String output = outputConsumer.getOutput();
-                    if (!status) {
-                        // stop the steps execution
-                        message = String.format("Error executing step %d (%s) [codes=%s]: %s",
-                                                i - 1, stepName, Arrays.toString(codes), args);
-                        ProductLog.error(productFolderName, message);
                         try {
-                            Config.getPersistenceManager().saveLog(firstStep.getName(), currentTask.getId(), subSteps[0].getHost(),
-                                                                   Duration.between(startTIme, Instant.now()).toMillis(), output, message);
+                            Config.getPersistenceManager().saveLog(dbStep.getName(), task.getId(), unit.getHost(),
+                                                                   duration.toMillis(), output, message);
                         } catch (Exception ex) {
                             logger.warning(String.format("Cannot save step output to database. Reason: %s", ex.getMessage()));
                         }
-                        notify(Level.SEVERE, message);
-                        JobHelper.update(currentTask, ActivityStatus.ERROR);
-                        errors.add(output);
-                        break;
-                    } else {
+                        // used to size the memory reserved for the next executions of this sub-step
+                        StepStatistics.save(node.getKey(), unit.getHost(), StepSizing.cacheSize(unit),
+                                            AdmissionController.cpuSlots(unit), StepSizing.peakMemory(output),
+                                            duration.toMillis(), code);
+                        if (code != 0) {
+                            Sentinel1Level2Worker.this.notify(Level.SEVERE, message);
+                            JobHelper.update(task, ActivityStatus.ERROR);
+                            errors.add(output);
+                            return;
+                        }
+                        subStepFinished(node);
+                    }
+
+                    @Override
+                    public void reused(StepGraph.Node node, boolean restored) {
+                        final String stepName = node.getStepName();
+                        final Task task = startTask(stepName);
+                        final Step dbStep = dbJobSteps.get(node.getUnit());
+                        final String message = restored ?
+                                String.format("Step %d-%d (%s) outputs restored from the intermediate products cache",
+                                              node.getStepNumber(), node.getSubStepNumber(), stepName) :
+                                String.format("Step %d-%d (%s) not executed, its outputs are not needed",
+                                              node.getStepNumber(), node.getSubStepNumber(), stepName);
+                        ProductLog.debug(productFolderName, message);
+                        JobHelper.update(dbStep, ActivityStatus.FINISHED, 0);
                         try {
-                            Config.getPersistenceManager().saveLog(firstStep.getName(), currentTask.getId(), subSteps[0].getHost(),
-                                                                   Duration.between(startTIme, Instant.now()).toMillis(), output, "");
+                            Config.getPersistenceManager().saveLog(dbStep.getName(), task.getId(), node.getUnit().getHost(),
+                                                                   0, message, "");
                         } catch (Exception ex) {
                             logger.warning(String.format("Cannot save step output to database. Reason: %s", ex.getMessage()));
                         }
+                        subStepFinished(node);
                     }
-                } finally {
-                    ProductLog.debug(productFolderName,
-                                     String.format("Step %d (%s) completed in %s", i - 1,
-                                                   stepName,
-                                                   DateUtils.formatDuration(Duration.between(stepStart, Instant.now()))));
-                }
-                JobHelper.update(currentTask, ActivityStatus.FINISHED);
-                String previousStep = queue.enqueue(stepName);
-                if (previousStep != null && !configuration.keepIntermediate() && deletionStatus.containsKey(previousStep)) {
-                    if (deletionStatus.get(previousStep)) {
-                        ProductType productType = stepName.contains("Coherence") ? ProductType.L2A_COHE : ProductType.L2A_AMP;
-                        cleanupStepOutput(productFolder, productType, previousStep);
-                    } else {
-                        deletionStatus.put(previousStep, true);
+
+                    private Task startTask(String stepName) {
+                        Task task = tasks.get(stepName);
+                        if (task == null) {
+                            task = Config.getPersistenceManager().getTask(job.getId(), stepName);
+                            JobHelper.update(task, ActivityStatus.RUNNING);
+                            tasks.put(stepName, task);
+                            stepStarts.put(stepName, Instant.now());
+                        }
+                        return task;
                     }
+
+                    private void subStepFinished(StepGraph.Node node) {
+                        final String stepName = node.getStepName();
+                        final Task task = tasks.get(stepName);
+                        if (remainingSubSteps.merge(stepName, -1, Integer::sum) == 0) {
+                            JobHelper.update(task, ActivityStatus.FINISHED);
+                            ProductLog.debug(productFolderName,
+                                             String.format("Step %d (%s) completed in %s", node.getStepNumber(), stepName,
+                                                           DateUtils.formatDuration(Duration.between(stepStarts.get(stepName),
+                                                                                                     Instant.now()))));
+                        }
+                        if (!configuration.keepIntermediate()) {
+                            // the outputs of a step are removed as soon as all the steps reading them completed
+                            for (String step : stepDeletionStatus.keySet()) {
+                                if (!cleanedSteps.contains(step) && graph.isConsumed(step)) {
+                                    cleanupStepOutput(productFolder,
+                                                      StepCommandBuilder.getStepOutputFiles(ProductType.L2A_AMP, step) != null ?
+                                                              ProductType.L2A_AMP : ProductType.L2A_COHE,
+                                                      step);
+                                    cleanedSteps.add(step);
+                                }
+                            }
+                        }
+                    }
+                });
+                if (scheduler.getAdmissionError() != null) {
+                    message = scheduler.getAdmissionError();
+                    ProductLog.error(productFolderName, message);
+                    notify(Level.SEVERE, message);
+                    errors.add("Not enough disk space");
+                }
+                if (status || this.fusedSteps == null || scheduler.getAdmissionError() != null) {
+                    break;
                 }
+                // the fused graph may not fit in memory, its steps are executed again one by one
+                failedFusions.add(this.fusedSteps);
+                ProductLog.warn(productFolderName, String.format("Fused steps [%s] failed, they will be executed separately",
+                                                                 this.fusedSteps));
+                errors.clear();
             }
             if (status) {
                 for (HighLevelProduct hlp : products) {
@@ -458,11 +487,18 @@ public class Sentinel1Level2Worker {
         return succeeded ? null : String.join(";", errors);
     }
 
-    private LinkedHashMap<String, ExecutionUnit[]> createExecutionUnits(Job job, Polarisation polarisation,
-                                                                        Path masterProduct, Path slaveProduct,
-                                                                        boolean useMasterBand,
-                                                                        String targetName,
-                                                                        MetadataBuilder builder) throws IOException {
+    private boolean isSkipped(String stepName, int processFlag) {
+        return (stepName.toLowerCase().startsWith("amplitude") && ProcessFlag.isReset(processFlag, ProcessFlag.AMPLITUDE)) ||
+                (stepName.toLowerCase().startsWith("coherence") && ProcessFlag.isReset(processFlag, ProcessFlag.COHERENCE));
+    }
+
+    private StepGraph createExecutionUnits(Job job, Polarisation polarisation,
+                                           Path masterProduct, Path slaveProduct,
+                                           boolean useMasterBand,
+                                           String targetName,
+                                           MetadataBuilder builder,
+                                           Predicate<String> skippedSteps) throws IOException {
+        this.fusedSteps = null;
         Map<String, List<Map.Entry<String, List<String>>>> steps = new LinkedHashMap<>();
         if (configuration.amplitudeEnabled()) {
             steps.putAll(StepCommandBuilder.getCommands(ProductType.L2A_AMP));
@@ -472,8 +508,8 @@ public class Sentinel1Level2Worker {
         }
         final Path productPath = this.temporaryPath.resolve(targetName);
         final String productPathString = productPath.toString();
-        final LinkedHashMap<String, ExecutionUnit[]> units = new LinkedHashMap<>();
-        int stepNumber = 1;
+        final StepGraph graph = new StepGraph();
+        final List<UnitTemplate> templates = new ArrayList<>();
         final String productName = targetName + "_" + ProductType.L2A_AMP.shortName().replace("l2-", "").toUpperCase();
         final Sentinel1ProductHelper helper = (Sentinel1ProductHelper) SentinelProductHelper.create(
                 useMasterBand ? masterProduct.getFileName().toString() : slaveProduct.getFileName().toString());
@@ -487,14 +523,12 @@ public class Sentinel1Level2Worker {
         }
         MetadataInspector.Metadata masterMetadata = masterInspector.getMetadata(masterProduct);
         MetadataInspector.Metadata slaveMetadata = slaveInspector.getMetadata(slaveProduct);
-        Task prevTask = null;
+        // the graphs of all the sub-steps are prepared first, since they may be fused into a single one
+        LinkedHashMap<String, List<Map.Entry<String, List<String>>>> preparedSteps = new LinkedHashMap<>();
         for (Map.Entry<String, List<Map.Entry<String, List<String>>>> step : steps.entrySet()) {
-            Task task = prevTask == null ?
-                    JobHelper.createTask(job, step.getKey(), job.getParameters()) :
-                    JobHelper.createTask(job, step.getKey(), job.getParameters(), prevTask.getId());
             final List<Map.Entry<String, List<String>>> entries = step.getValue();
+            final List<Map.Entry<String, List<String>>> preparedEntries = new ArrayList<>();
             final int entriesSize = entries.size();
-            final ExecutionUnit[] subSteps = new ExecutionUnit[entriesSize];
             for (int i = 0; i < entriesSize; i++) {
                 String fileContents =
                         StringUtils.replaceEach(entries.get(i).getKey(),
@@ -549,8 +583,6 @@ public class Sentinel1Level2Worker {
                                                             productName.replace("AMP", "COHE") + configuration.outputExtension());
                     }
                 }
-                Files.write(productPath.resolve(String.format("s1_step_%d_%d.xml", stepNumber, i + 1)), fileContents.getBytes());
-
                 final List<String> subStepArguments = entries.get(i).getValue()
                         .stream()
                         .map(a -> {
@@ -565,30 +597,175 @@ public class Sentinel1Level2Worker {
                             return a;
                         })
                         .collect(Collectors.toList());
-                subSteps[i] = new ExecutionUnit(ExecutorType.PROCESS,
-                                                InetAddress.getLocalHost().getHostName(), null, null,
-                                                subStepArguments,
-                                                false, SSHMode.EXEC);
-                Step subStep = JobHelper.createStep(task,
-                                                    task.getModuleShortName() + " " + stepNumber + "-" + (i + 1),
-                                                    subStepArguments);
-                this.dbJobSteps.put(subSteps[i], subStep);
-                String minMemory = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MIN_MEMORY);
-                if (minMemory != null && !minMemory.isEmpty()) {
-                    subSteps[i].setMinMemory(Long.parseLong(minMemory));
+                preparedEntries.add(new AbstractMap.SimpleEntry<>(fileContents, subStepArguments));
+            }
+            preparedSteps.put(step.getKey(), preparedEntries);
+        }
+        final String host = InetAddress.getLocalHost().getHostName();
+        final Map<String, Long> memoryEstimates = new HashMap<>();
+        if (StepCommandBuilder.isFusionEnabled()) {
+            preparedSteps = fuseSteps(preparedSteps, skippedSteps, host, targetName, memoryEstimates);
+        }
+        int stepNumber = 1;
+        Task prevTask = null;
+        for (Map.Entry<String, List<Map.Entry<String, List<String>>>> step : preparedSteps.entrySet()) {
+            Task task = prevTask == null ?
+                    JobHelper.createTask(job, step.getKey(), job.getParameters()) :
+                    JobHelper.createTask(job, step.getKey(), job.getParameters(), prevTask.getId());
+            final boolean skipped = skippedSteps.test(step.getKey());
+            if (skipped) {
+                ProductLog.debug(targetName, String.format("Step %s will be skipped (%s flag reset)",
+                                                           step.getKey(), step.getKey().toLowerCase().startsWith("amplitude") ?
+                                                                   "amplitude" : "coherence"));
+            }
+            final List<Map.Entry<String, List<String>>> entries = step.getValue();
+            final int entriesSize = entries.size();
+            for (int i = 0; i < entriesSize; i++) {
+                final String fileContents = entries.get(i).getKey();
+                final String graphFile = String.format("s1_step_%d_%d.xml", stepNumber, i + 1);
+                Files.write(productPath.resolve(graphFile), fileContents.getBytes());
+                // a fused step executes the graph file of its position in the chain
+                final List<String> subStepArguments = entries.get(i).getValue()
+                        .stream()
+                        .map(a -> a.replaceAll("s1_step_\\d+_\\d+\\.xml$", graphFile))
+                        .collect(Collectors.toList());
+                final StepGraph.Node node = skipped ? null : graph.add(step.getKey(), stepNumber, fileContents);
+                if (node != null && cache.isEnabled(productPath) && StepCommandBuilder.getCommonSteps().contains(step.getKey())) {
+                    node.setCacheKey(cacheKey(node, fileContents, productPathString, masterProduct, slaveProduct));
                 }
-                String minDisk = Configuration.getSetting(ConfigurationKeys.DISK_SAMPLING_INTERVAL);
-                subSteps[i].setMinDisk(minDisk != null && !minDisk.isEmpty() ? Long.parseLong(minDisk) : 0);
-                logger.finest(String.format("Command for step %d-%d : %s {requires: memory %s, disk %s",
-                                            stepNumber, i + 1, String.join(",", subSteps[i].getArguments()),
-                                            minMemory != null ? minMemory + "MB" : "n/a",
-                                            minDisk != null ? minDisk + "MB" : "n/a"));
+                // the units are created once the whole graph is known, since their sizing depends on it
+                templates.add(new UnitTemplate(task, step.getKey(), stepNumber, i + 1, entriesSize, subStepArguments, node));
             }
             stepNumber++;
-            units.put(step.getKey(), subSteps);
             prevTask = task;
         }
-        return units;
+        final String minMemory = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MIN_MEMORY);
+        final String minDisk = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_MIN_DISK);
+        for (UnitTemplate template : templates) {
+            final int concurrency = !configuration.hasParallelSteps() ? 1 :
+                    template.node != null ? graph.getConcurrency(template.node) : template.siblings;
+            final List<String> arguments = template.arguments.stream()
+                    .map(a -> a.replace(StepCommandBuilder.GPT_CACHE_TOKEN, String.valueOf(StepSizing.cacheSizeFor(concurrency)))
+                               .replace(StepCommandBuilder.GPT_PROCS_TOKEN, String.valueOf(StepSizing.threadsFor(concurrency))))
+                    .collect(Collectors.toList());
+            final ExecutionUnit unit = new ExecutionUnit(ExecutorType.PROCESS, host, null, null,
+                                                         arguments, false, SSHMode.EXEC);
+            Step subStep = JobHelper.createStep(template.task,
+                                                template.task.getModuleShortName() + " " + template.stepNumber + "-" + template.subStepNumber,
+                                                arguments);
+            this.dbJobSteps.put(unit, subStep);
+            final String stepKey = template.stepName + "-" + template.subStepNumber;
+            Long profiledMemory = StepSizing.minMemory(stepKey, host);
+            if (profiledMemory == null) {
+                profiledMemory = memoryEstimates.get(stepKey);
+            }
+            if (profiledMemory != null) {
+                unit.setMinMemory(profiledMemory);
+            } else if (minMemory != null && !minMemory.isEmpty()) {
+                unit.setMinMemory(Long.parseLong(minMemory));
+            }
+            unit.setMinDisk(minDisk != null && !minDisk.isEmpty() ? Long.parseLong(minDisk) : 0);
+            logger.finest(String.format("Command for step %d-%d : %s {requires: memory %s, disk %s",
+                                        template.stepNumber, template.subStepNumber, String.join(",", unit.getArguments()),
+                                        unit.getMinMemory() != null ? unit.getMinMemory() + "MB" : "n/a",
+                                        minDisk != null ? minDisk + "MB" : "n/a"));
+            if (template.node != null) {
+                template.node.setUnit(unit);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Replaces the steps to be executed by a single step running all their sub-steps in one gpt graph, so that
+     * the intermediate products are no longer written to (and read back from) the disk.
+     * The memory of the fused graph is estimated from the recent executions of the fused step or, if there are
+     * not enough of them, as the sum of the memory of the fused sub-steps. The steps are fused only if the estimate
+     * fits the node memory budget, otherwise (or if the memory cannot be estimated) they are left unchanged.
+     *
+     * @param memoryEstimates   Receives the estimated memory of the fused step
+     */
+    private LinkedHashMap<String, List<Map.Entry<String, List<String>>>> fuseSteps(LinkedHashMap<String, List<Map.Entry<String, List<String>>>> steps,
+                                                                                 Predicate<String> skippedSteps,
+                                                                                 String host, String targetName,
+                                                                                 Map<String, Long> memoryEstimates) {
+        final List<String> fusedNames = new ArrayList<>();
+        final List<String> graphs = new ArrayList<>();
+        List<String> arguments = null;
+        Long estimate = 0L;
+        for (Map.Entry<String, List<Map.Entry<String, List<String>>>> step : steps.entrySet()) {
+            if (skippedSteps.test(step.getKey())) {
+                continue;
+            }
+            fusedNames.add(step.getKey());
+            final List<Map.Entry<String, List<String>>> entries = step.getValue();
+            for (int i = 0; i < entries.size(); i++) {
+                graphs.add(entries.get(i).getKey());
+                if (arguments == null) {
+                    // the first sub-step is the one receiving the source products
+                    arguments = entries.get(i).getValue();
+                }
+                final Long memory = StepSizing.minMemory(step.getKey() + "-" + (i + 1), host);
+                estimate = estimate != null && memory != null ? estimate + memory : null;
+            }
+        }
+        if (fusedNames.size() < 2) {
+            return steps;
+        }
+        final String fusedName = String.join(", ", fusedNames);
+        if (failedFusions.contains(fusedName)) {
+            ProductLog.debug(targetName, "Steps not fused, their fused execution failed before");
+            return steps;
+        }
+        final Long fusedMemory = StepSizing.minMemory(fusedName + "-1", host);
+        if (fusedMemory != null) {
+            estimate = fusedMemory;
+        }
+        final long budget = AdmissionController.getInstance().getMemoryBudget();
+        if (estimate == null || estimate > budget) {
+            ProductLog.debug(targetName, estimate == null ?
+                    "Steps not fused, their memory cannot be estimated yet" :
+                    String.format("Steps not fused, the estimated memory (%dMB) exceeds the budget (%dMB)", estimate, budget));
+            return steps;
+        }
+        final String fusedGraph = StepCommandBuilder.fuse(graphs);
+        if (fusedGraph == null) {
+            ProductLog.debug(targetName, "Steps not fused, the graphs cannot be chained");
+            return steps;
+        }
+        // the heap of gpt is sized after the estimate, the default one may be too small for the whole chain
+        final List<String> fusedArguments = new ArrayList<>(arguments);
+        fusedArguments.add(fusedArguments.indexOf("gpt") + 1, "-J-Xmx" + estimate + "M");
+        final LinkedHashMap<String, List<Map.Entry<String, List<String>>>> fusedSteps = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Map.Entry<String, List<String>>>> step : steps.entrySet()) {
+            if (skippedSteps.test(step.getKey())) {
+                fusedSteps.put(step.getKey(), step.getValue());
+            } else if (!fusedSteps.containsKey(fusedName)) {
+                fusedSteps.put(fusedName, Collections.singletonList(new AbstractMap.SimpleEntry<>(fusedGraph, fusedArguments)));
+            }
+        }
+        this.fusedSteps = fusedName;
+        memoryEstimates.put(fusedName + "-1", estimate);
+        ProductLog.debug(targetName, String.format("Steps [%s] fused into a single graph (estimated memory %dMB, budget %dMB)",
+                                                   fusedName, estimate, budget));
+        return fusedSteps;
+    }
+
+    /**
+     * The key of the outputs of a sub-step of the common chain: the sub-steps reading the source products are
+     * identified by them, the others by the sub-steps producing their inputs.
+     */
+    private String cacheKey(StepGraph.Node node, String graph, String location, Path masterProduct, Path slaveProduct) {
+        final List<String> upstreamKeys = new ArrayList<>();
+        for (StepGraph.Node dependency : node.getDependencies()) {
+            if (dependency.getCacheKey() == null) {
+                return null;
+            }
+            upstreamKeys.add(dependency.getCacheKey());
+        }
+        return upstreamKeys.isEmpty() ?
+                cache.key(graph, location, upstreamKeys, masterProduct, slaveProduct) :
+                cache.key(graph, location, upstreamKeys);
     }
 
     private static ExecutionUnit createCropNoDataUnit(Path productPath, Path outputPath) {
@@ -665,7 +842,8 @@ public class Sentinel1Level2Worker {
                     if (Files.isDirectory(path)) {
                         FileUtilities.deleteTree(path);
                     } else {
-                        Files.delete(path);
+                        // the outputs of the steps not executed (see IntermediateCache) do not exist
+                        Files.deleteIfExists(path);
                     }
                 } catch (Exception ex) {
                     logger.warning(ex.getMessage());
@@ -874,6 +1052,27 @@ public class Sentinel1Level2Worker {
         }
     }
 
+    private static class UnitTemplate {
+        private final Task task;
+        private final String stepName;
+        private final int stepNumber;
+        private final int subStepNumber;
+        private final int siblings;
+        private final List<String> arguments;
+        private final StepGraph.Node node;
+
+        UnitTemplate(Task task, String stepName, int stepNumber, int subStepNumber, int siblings,
+                     List<String> arguments, StepGraph.Node node) {
+            this.task = task;
+            this.stepName = stepName;
+            this.stepNumber = stepNumber;
+            this.subStepNumber = subStepNumber;
+            this.siblings = siblings;
+            this.arguments = arguments;
+            this.node = node;
+        }
+    }
+
     private static class ProductLog {
         private static final Map<String, FileHandler> loggers = new ConcurrentHashMap<>();
         private static Logger parentLogger;
@@ -27,8 +27,12 @@ import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 class StepCommandBuilder {
     private static final String optionalSubsetNode = "<node id=\"Subset\">\n" +
@@ -44,18 +48,33 @@ class StepCommandBuilder {
     private static Map<ProductType, LinkedHashMap<String, List<Map.Entry<String, List<String>>>>> commands;
     private static Map<ProductType, Map<String, String[]>> outputFiles;
     private static Map<String, Boolean> canDeleteMap;
+    private static Set<String> commonSteps;
     private static int gptCache;
     private static int gptProcs;
+    private static final Pattern graphIdPattern = Pattern.compile("<graph id=\"([^\"]*)\">");
+    private static final Pattern nodePattern = Pattern.compile("<node id=\"([^\"]*)\">(.*?)</node>", Pattern.DOTALL);
+    private static final Pattern operatorPattern = Pattern.compile("<operator>([^<]+)</operator>");
+    private static final Pattern filePattern = Pattern.compile("<file>([^<]+)</file>");
+    private static final Pattern fileListPattern = Pattern.compile("<fileList>([^<]+)</fileList>");
+    private static final Pattern refidPattern = Pattern.compile("refid=\"([^\"]+)\"");
+    private static final Pattern sourcePattern = Pattern.compile("<(sourceProduct[.0-9]*) refid=\"([^\"]+)\"/>");
+    private static boolean fusionEnabled;
     private static final char[] buffer = new char[1024];
+    // measures the peak resident memory of the gpt process
+    private static final Path timeCommand = Paths.get("/usr/bin/time");
+    static final String GPT_CACHE_TOKEN = "$GPT_CACHE";
+    static final String GPT_PROCS_TOKEN = "$GPT_PROCS";
 
     static void initialize() {
         gptCache = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_GPT_CACHE));
         gptProcs = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_GPT_PARALLELISM));
+        fusionEnabled = Boolean.parseBoolean(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_FUSE_STEPS));
         final boolean joinAmpSteps = Boolean.parseBoolean(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_JOIN_AMPLITUDE_STEPS));
         final boolean joinCoheSteps = Boolean.parseBoolean(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_JOIN_COHERENCE_STEPS));
         final LinkedHashMap<String, String[]> commonStepFiles = new LinkedHashMap<>(parseJson(Configuration.getDefaultValue(Configuration.COMMON_CHAIN)));
         final LinkedHashMap<String, String[]> amplitudeStepFiles = new LinkedHashMap<>();
         final LinkedHashMap<String, String[]> coherenceStepFiles = new LinkedHashMap<>();
+        commonSteps = new HashSet<>(commonStepFiles.keySet());
         canDeleteMap = new HashMap<>();
         Map<String, String[]> commonOutputFiles = new HashMap<>();
         commonOutputFiles.put("Calibration", new String[]{
@@ -142,18 +161,166 @@ class StepCommandBuilder {
 
     static String getOptionalSubsetNode() { return optionalSubsetNode; }
 
+    /**
+     * The maximum tile cache size (MB) of a gpt process.
+     */
+    static int getGptCache() { return gptCache; }
+
+    /**
+     * The maximum number of threads of a gpt process.
+     */
+    static int getGptProcs() { return gptProcs; }
+
+    /**
+     * Whether the steps of a product pair may be fused into a single gpt graph (see {@link #fuse(List)}).
+     */
+    static boolean isFusionEnabled() { return fusionEnabled; }
+
     static Map<String, List<Map.Entry<String, List<String>>>> getCommands(ProductType productType) {
         return commands.get(productType);
     }
 
     static Map<String, Boolean> getStepDeletionStatus() { return canDeleteMap; }
 
+    /**
+     * The steps shared by the amplitude and coherence chains (calibration, coregistration).
+     */
+    static Set<String> getCommonSteps() { return commonSteps; }
+
     static String[] getStepOutputFiles(ProductType productType, String stepName) {
         final Map<String, String[]> map = outputFiles.get(productType);
         // if the productType is disabled, check to avoid NPE
         return map != null ? map.get(stepName) : null;
     }
 
+    /**
+     * Merges the graphs of consecutive sub-steps into a single graph. A Read (or ProductSet-Reader) of a product
+     * written by one of the graphs is replaced by the node producing it, and the Write of a product read by
+     * one of the graphs is removed, hence only the products not consumed inside the merged graph are written.
+     * The node identifiers are prefixed by the position of their graph, to keep them unique.
+     *
+     * @param graphs    The contents of the graphs, in the order of the processing chain
+     * @return The merged graph, or <code>null</code> if a product set is only partially produced by the graphs
+     */
+    static String fuse(List<String> graphs) {
+        final Map<String, String> nodes = new LinkedHashMap<>();
+        final Set<String> graphIds = new LinkedHashSet<>();
+        for (int i = 0; i < graphs.size(); i++) {
+            final String graph = graphs.get(i);
+            final Matcher graphId = graphIdPattern.matcher(graph);
+            if (graphId.find()) {
+                graphIds.add(graphId.group(1));
+            }
+            final String prefix = (i + 1) + ".";
+            final Map<String, String> graphNodes = new LinkedHashMap<>();
+            final Matcher node = nodePattern.matcher(graph);
+            while (node.find()) {
+                graphNodes.put(node.group(1), node.group(2));
+            }
+            for (Map.Entry<String, String> entry : graphNodes.entrySet()) {
+                final StringBuffer body = new StringBuffer();
+                final Matcher refid = refidPattern.matcher(entry.getValue());
+                while (refid.find()) {
+                    // references to the source products of the command line are kept as they are
+                    final String reference = graphNodes.containsKey(refid.group(1)) ? prefix + refid.group(1) : refid.group(1);
+                    refid.appendReplacement(body, Matcher.quoteReplacement("refid=\"" + reference + "\""));
+                }
+                refid.appendTail(body);
+                nodes.put(prefix + entry.getKey(), body.toString());
+            }
+        }
+        // the node written to each product
+        final Map<String, String> producers = new HashMap<>();
+        for (Map.Entry<String, String> entry : nodes.entrySet()) {
+            if ("Write".equals(operatorOf(entry.getValue()))) {
+                final Matcher file = filePattern.matcher(entry.getValue());
+                final Matcher refid = refidPattern.matcher(entry.getValue());
+                if (file.find() && refid.find()) {
+                    producers.put(file.group(1).trim(), refid.group(1));
+                }
+            }
+        }
+        // the readers replaced by the producers of the products they read
+        final Map<String, List<String>> readers = new HashMap<>();
+        final Set<String> consumed = new HashSet<>();
+        for (Map.Entry<String, String> entry : nodes.entrySet()) {
+            final String operator = operatorOf(entry.getValue());
+            final List<String> files = new ArrayList<>();
+            if ("Read".equals(operator)) {
+                final Matcher file = filePattern.matcher(entry.getValue());
+                if (file.find()) {
+                    files.add(file.group(1).trim());
+                }
+            } else if ("ProductSet-Reader".equals(operator)) {
+                final Matcher fileList = fileListPattern.matcher(entry.getValue());
+                if (fileList.find()) {
+                    for (String file : fileList.group(1).split(",")) {
+                        files.add(file.trim());
+                    }
+                }
+            }
+            final List<String> sources = new ArrayList<>();
+            for (String file : files) {
+                if (producers.containsKey(file)) {
+                    sources.add(producers.get(file));
+                }
+            }
+            if (sources.isEmpty()) {
+                continue;
+            }
+            if (sources.size() != files.size()) {
+                return null;
+            }
+            readers.put(entry.getKey(), sources);
+            consumed.addAll(files);
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append("<graph id=\"").append(String.join("+", graphIds)).append("\">\n");
+        builder.append("  <version>1.0</version>\n");
+        for (Map.Entry<String, String> entry : nodes.entrySet()) {
+            if (readers.containsKey(entry.getKey())) {
+                continue;
+            }
+            if ("Write".equals(operatorOf(entry.getValue()))) {
+                final Matcher file = filePattern.matcher(entry.getValue());
+                if (file.find() && consumed.contains(file.group(1).trim())) {
+                    continue;
+                }
+            }
+            final StringBuffer body = new StringBuffer();
+            final Matcher source = sourcePattern.matcher(entry.getValue());
+            while (source.find()) {
+                final List<String> sources = readers.get(source.group(2));
+                String replacement = source.group();
+                if (sources != null) {
+                    if (sources.size() == 1) {
+                        replacement = String.format("<%s refid=\"%s\"/>", source.group(1), sources.get(0));
+                    } else {
+                        // a product set becomes a list of source products
+                        final StringBuilder list = new StringBuilder();
+                        for (int i = 0; i < sources.size(); i++) {
+                            if (i > 0) {
+                                list.append("\n      ");
+                            }
+                            list.append(String.format("<sourceProduct%s refid=\"%s\"/>", i > 0 ? "." + i : "", sources.get(i)));
+                        }
+                        replacement = list.toString();
+                    }
+                }
+                source.appendReplacement(body, Matcher.quoteReplacement(replacement));
+            }
+            source.appendTail(body);
+            builder.append("  <node id=\"").append(entry.getKey()).append("\">").append(body).append("</node>\n");
+        }
+        builder.append("</graph>\n");
+        return builder.toString();
+    }
+
+    private static String operatorOf(String nodeBody) {
+        final Matcher operator = operatorPattern.matcher(nodeBody);
+        return operator.find() ? operator.group(1).trim() : null;
+    }
+
     static List<String> createCropNoDataCommand(Path productPath, Path outputPath) {
         Path scriptFolder = ConfigurationManager.getInstance().getScriptsFolder();
         if (scriptFolder == null) {
@@ -179,11 +346,16 @@ class StepCommandBuilder {
                     builder.append(buffer, 0, read);
                 }
                 final List<String> cmd = new ArrayList<>();
+                if (Files.isExecutable(timeCommand)) {
+                    cmd.add(timeCommand.toString());
+                    cmd.add("-v");
+                }
                 cmd.add("gpt");
+                // the cache and threads are sized for each sub-step, depending on the sub-steps running together
                 cmd.add("-c");
-                cmd.add(gptCache + "M");
+                cmd.add(GPT_CACHE_TOKEN + "M");
                 cmd.add("-q");
-                cmd.add(String.valueOf(gptProcs));
+                cmd.add(GPT_PROCS_TOKEN);
                 cmd.add("$TMPFOLDER" + File.separator + String.format("s1_step_%d_%d.xml", stepIndex, idx));
                 if (inputProducts && idx == 1) {
                     cmd.add("$masterProduct");
@@ -0,0 +1,212 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing;
+
+import ro.cs.tao.utils.executors.ExecutionUnit;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The sub-steps (gpt invocations) of a product pair processing, seen as a dependency graph.
+ * The dependencies are inferred from the products read and written by the graph of each sub-step, so that
+ * a sub-step can be executed as soon as the products it reads were written (for example, the deburst of IW1
+ * only needs the coregistration of IW1).
+ * A sub-step whose graph does not reveal its inputs depends on all the sub-steps of the previous step.
+ */
+class StepGraph {
+    private static final Pattern nodePattern = Pattern.compile("<node id=\"[^\"]*\">(.*?)</node>", Pattern.DOTALL);
+    private static final Pattern operatorPattern = Pattern.compile("<operator>([^<]+)</operator>");
+    private static final Pattern filePattern = Pattern.compile("<file>([^<]+)</file>");
+    private static final Pattern fileListPattern = Pattern.compile("<fileList>([^<]+)</fileList>");
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Adds a sub-step. The sub-steps have to be added in the order of the processing chain.
+     *
+     * The execution unit of the sub-step can be set later, but before the graph is executed.
+     *
+     * @param stepName      The name of the step the sub-step belongs to
+     * @param stepNumber    The (1-based) position of the step in the chain
+     * @param graph         The contents of the gpt graph executed by the sub-step
+     */
+    Node add(String stepName, int stepNumber, String graph) {
+        final int subStepNumber = (int) this.nodes.stream().filter(n -> n.stepNumber == stepNumber).count() + 1;
+        final Node node = new Node(stepName, stepNumber, subStepNumber);
+        final Matcher nodeMatcher = nodePattern.matcher(graph);
+        while (nodeMatcher.find()) {
+            final String body = nodeMatcher.group(1);
+            final Matcher operator = operatorPattern.matcher(body);
+            final boolean isWriter = operator.find() && "Write".equals(operator.group(1).trim());
+            Matcher matcher = filePattern.matcher(body);
+            while (matcher.find()) {
+                (isWriter ? node.outputs : node.inputs).add(matcher.group(1).trim());
+            }
+            matcher = fileListPattern.matcher(body);
+            while (matcher.find()) {
+                for (String file : matcher.group(1).split(",")) {
+                    node.inputs.add(file.trim());
+                }
+            }
+        }
+        final Map<String, Node> producers = new HashMap<>();
+        for (Node previous : this.nodes) {
+            for (String output : previous.outputs) {
+                producers.put(output, previous);
+            }
+        }
+        final Set<Node> dependencies = new LinkedHashSet<>();
+        for (String input : node.inputs) {
+            final Node producer = producers.get(input);
+            if (producer != null) {
+                dependencies.add(producer);
+            }
+        }
+        if (dependencies.isEmpty() && node.inputs.isEmpty() && !this.nodes.isEmpty()) {
+            // cannot tell what the sub-step reads, so it waits for the whole previous step
+            final int previousStep = this.nodes.stream().mapToInt(n -> n.stepNumber).filter(n -> n < stepNumber).max().orElse(-1);
+            this.nodes.stream().filter(n -> n.stepNumber == previousStep).forEach(dependencies::add);
+        }
+        for (Node dependency : dependencies) {
+            node.dependencies.add(dependency);
+            dependency.dependents.add(node);
+            node.level = Math.max(node.level, dependency.level + 1);
+        }
+        this.nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Returns the sub-steps, in the order of the processing chain.
+     */
+    List<Node> getNodes() { return Collections.unmodifiableList(this.nodes); }
+
+    boolean isEmpty() { return this.nodes.isEmpty(); }
+
+    /**
+     * Returns the sub-steps of the given step.
+     */
+    List<Node> getNodes(String stepName) {
+        final List<Node> stepNodes = new ArrayList<>();
+        for (Node node : this.nodes) {
+            if (node.stepName.equals(stepName)) {
+                stepNodes.add(node);
+            }
+        }
+        return stepNodes;
+    }
+
+    /**
+     * Returns the number of sub-steps that are expected to run at the same time with the given one, including it.
+     * These are the sub-steps at the same distance from the beginning of the chain (for example, the three
+     * coregistration sub-steps, or the amplitude and coherence deburst sub-steps).
+     */
+    int getConcurrency(Node node) {
+        return (int) this.nodes.stream().filter(n -> n.level == node.level).count();
+    }
+
+    /**
+     * Checks if all the sub-steps of the given step, as well as all the sub-steps reading their outputs, completed.
+     * In this case, the outputs of the step are no longer needed.
+     */
+    boolean isConsumed(String stepName) {
+        final List<Node> stepNodes = getNodes(stepName);
+        if (stepNodes.isEmpty()) {
+            return false;
+        }
+        for (Node node : stepNodes) {
+            if (!node.completed || node.dependents.stream().anyMatch(d -> !d.completed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class Node {
+        private final String stepName;
+        private final int stepNumber;
+        private final int subStepNumber;
+        private ExecutionUnit unit;
+        private String cacheKey;
+        private int level;
+        private final Set<String> inputs = new LinkedHashSet<>();
+        private final Set<String> outputs = new LinkedHashSet<>();
+        private final List<Node> dependencies = new ArrayList<>();
+        private final List<Node> dependents = new ArrayList<>();
+        private boolean completed;
+
+        private Node(String stepName, int stepNumber, int subStepNumber) {
+            this.stepName = stepName;
+            this.stepNumber = stepNumber;
+            this.subStepNumber = subStepNumber;
+        }
+
+        String getStepName() { return stepName; }
+
+        int getStepNumber() { return stepNumber; }
+
+        int getSubStepNumber() { return subStepNumber; }
+
+        ExecutionUnit getUnit() { return unit; }
+
+        void setUnit(ExecutionUnit unit) { this.unit = unit; }
+
+        /**
+         * The key of the outputs of the sub-step in the {@link IntermediateCache}, or <code>null</code> if
+         * the outputs are not cached.
+         */
+        String getCacheKey() { return cacheKey; }
+
+        void setCacheKey(String cacheKey) { this.cacheKey = cacheKey; }
+
+        /**
+         * The key under which the execution statistics of the sub-step are recorded.
+         */
+        String getKey() { return stepName + "-" + subStepNumber; }
+
+        Set<String> getOutputs() { return Collections.unmodifiableSet(outputs); }
+
+        List<Node> getDependencies() { return Collections.unmodifiableList(dependencies); }
+
+        List<Node> getDependents() { return Collections.unmodifiableList(dependents); }
+
+        boolean isCompleted() { return completed; }
+
+        void setCompleted(boolean completed) { this.completed = completed; }
+
+        /**
+         * A sub-step is ready when all the sub-steps it depends on completed.
+         */
+        boolean isReady() {
+            for (Node dependency : dependencies) {
+                if (!dependency.completed) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d-%d (%s)", stepNumber, subStepNumber, stepName);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing;
+
+import ro.cs.tao.utils.executors.Executor;
+import ro.cs.tao.utils.executors.OutputAccumulator;
+import ro.cs.tao.utils.executors.monitoring.ActivityListener;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Executes the sub-steps of a {@link StepGraph}. A sub-step is started as soon as the sub-steps it depends on
+ * completed, provided that the {@link AdmissionController} admits it, i.e. the resources it requires are not
+ * committed to other sub-steps (of this or of other product pairs).
+ * The sub-steps are considered in the order of the processing chain, hence, when only one sub-step is allowed
+ * to run at a time, the execution is the same as the sequential one.
+ * The sub-steps whose outputs are found in the {@link IntermediateCache} are not executed.
+ * The controller reserves the resources for the oldest deferred sub-step, hence it is retried before the other
+ * ready sub-steps of the graph, and the sub-steps left pending when the execution stops are withdrawn from it.
+ */
+class StepScheduler {
+    // how often the admission of the waiting sub-steps is retried while sub-steps of this graph are running
+    private static final long RECHECK_INTERVAL_MILLIS = 2000;
+    private final AdmissionController admissionController = AdmissionController.getInstance();
+    private final IntermediateCache cache = IntermediateCache.getInstance();
+    private final Path workingFolder;
+    private final int maxParallelSteps;
+    private final long timeoutSeconds;
+    private final ActivityListener monitor;
+    private String admissionError;
+
+    /**
+     * Receives the notifications about the sub-steps execution. The methods are invoked from the thread
+     * that called {@link #execute(StepGraph, Listener)}.
+     */
+    interface Listener {
+        void started(StepGraph.Node node);
+
+        void completed(StepGraph.Node node, int code, String output, Duration duration);
+
+        /**
+         * Invoked for the sub-steps that are not executed.
+         *
+         * @param restored  <code>true</code> if the outputs of the sub-step were restored from the cache,
+         *                  <code>false</code> if they are not needed since all the sub-steps reading them were restored
+         */
+        void reused(StepGraph.Node node, boolean restored);
+    }
+
+    /**
+     * @param workingFolder     The folder where the sub-steps write their outputs
+     * @param maxParallelSteps  The maximum number of sub-steps running at the same time
+     * @param timeoutSeconds    The timeout of a sub-step
+     * @param monitor           The disk activity monitor (may be null)
+     */
+    StepScheduler(Path workingFolder, int maxParallelSteps, long timeoutSeconds, ActivityListener monitor) {
+        this.workingFolder = workingFolder;
+        this.maxParallelSteps = Math.max(1, maxParallelSteps);
+        this.timeoutSeconds = timeoutSeconds;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Executes the sub-steps of the graph. After a sub-step failed, no other sub-step is started, but the running
+     * ones are allowed to complete.
+     *
+     * @return <code>true</code> if all the sub-steps were executed successfully
+     */
+    boolean execute(StepGraph graph, Listener listener) throws InterruptedException, IOException {
+        this.admissionError = null;
+        final List<StepGraph.Node> pending = new ArrayList<>(graph.getNodes());
+        pending.removeAll(reuseCached(graph, listener));
+        final List<StepGraph.Node> running = new ArrayList<>();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final CompletionService<Result> completionService = new ExecutorCompletionService<>(executor);
+        boolean failed = false;
+        try {
+            while (true) {
+                final List<StepGraph.Node> candidates = new ArrayList<>(pending);
+                // a sub-step deferred after an earlier one of the chain must not wait behind it with the reservation
+                for (StepGraph.Node node : pending) {
+                    if (node.isReady() && this.admissionController.isReserved(node.getUnit())) {
+                        candidates.remove(node);
+                        candidates.add(0, node);
+                        break;
+                    }
+                }
+                final Iterator<StepGraph.Node> iterator = candidates.iterator();
+                while (!failed && running.size() < this.maxParallelSteps && iterator.hasNext()) {
+                    final StepGraph.Node node = iterator.next();
+                    if (!node.isReady()) {
+                        continue;
+                    }
+                    final AdmissionController.Decision decision = this.admissionController.tryAdmit(graph, node.getUnit(), this.workingFolder);
+                    if (decision == AdmissionController.Decision.REJECTED) {
+                        this.admissionError = String.format("Not enough disk space for step %s. Available: %dMB; required: %dMB",
+                                                            node, this.workingFolder.toFile().getUsableSpace() >> 20,
+                                                            AdmissionController.minDisk(node.getUnit()));
+                        failed = true;
+                    }
+                    if (decision != AdmissionController.Decision.ADMITTED) {
+                        // the sub-steps are started in the chain order, the next ones wait for this one
+                        break;
+                    }
+                    pending.remove(node);
+                    running.add(node);
+                    listener.started(node);
+                    completionService.submit(() -> run(node));
+                }
+                if (running.isEmpty()) {
+                    if (failed || pending.isEmpty()) {
+                        break;
+                    }
+                    // the resources are used by other product pairs
+                    this.admissionController.awaitRelease(RECHECK_INTERVAL_MILLIS);
+                    continue;
+                }
+                final Future<Result> future = completionService.poll(RECHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    continue;
+                }
+                final Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    // run() does not throw
+                    throw new IllegalStateException(e.getCause());
+                }
+                running.remove(result.node);
+                this.admissionController.release(result.node.getUnit());
+                result.node.setCompleted(result.code == 0);
+                if (result.code != 0) {
+                    failed = true;
+                } else if (result.node.getCacheKey() != null && this.cache.isEnabled(this.workingFolder)) {
+                    this.cache.store(result.node.getCacheKey(), result.node.getOutputs());
+                }
+                listener.completed(result.node, result.code, result.output, result.duration);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (StepGraph.Node node : running) {
+                this.admissionController.release(node.getUnit());
+            }
+            // the sub-steps that will not be started must not keep their reservation
+            for (StepGraph.Node node : pending) {
+                this.admissionController.abandon(node.getUnit());
+            }
+        }
+        return !failed && pending.isEmpty();
+    }
+
+    /**
+     * Returns the reason for which the execution stopped before all the sub-steps were started,
+     * or <code>null</code> if the execution did not stop for lack of resources.
+     */
+    String getAdmissionError() { return admissionError; }
+
+    /**
+     * Restores the outputs of the sub-steps found in the cache, then marks as completed the sub-steps whose outputs
+     * are only read by restored sub-steps (for example, the calibration, if all the coregistrations were restored).
+     * The restores are done before anything is executed, so that an entry evicted meanwhile cannot leave
+     * a sub-step without its inputs.
+     *
+     * @return The sub-steps that do not have to be executed
+     */
+    private Set<StepGraph.Node> reuseCached(StepGraph graph, Listener listener) {
+        final Set<StepGraph.Node> reused = new HashSet<>();
+        if (!this.cache.isEnabled(this.workingFolder)) {
+            return reused;
+        }
+        final Set<StepGraph.Node> restored = new HashSet<>();
+        for (StepGraph.Node node : graph.getNodes()) {
+            if (node.getCacheKey() != null && this.cache.restore(node.getCacheKey(), node.getOutputs())) {
+                restored.add(node);
+            }
+        }
+        final List<StepGraph.Node> nodes = new ArrayList<>(graph.getNodes());
+        Collections.reverse(nodes);
+        final Set<StepGraph.Node> notNeeded = new HashSet<>();
+        for (StepGraph.Node node : nodes) {
+            if (!restored.contains(node) && !node.getDependents().isEmpty() &&
+                    node.getDependents().stream().allMatch(d -> restored.contains(d) || notNeeded.contains(d))) {
+                notNeeded.add(node);
+            }
+        }
+        // notified in the order of the chain
+        for (StepGraph.Node node : graph.getNodes()) {
+            if (restored.contains(node) || notNeeded.contains(node)) {
+                node.setCompleted(true);
+                reused.add(node);
+                listener.reused(node, restored.contains(node));
+            }
+        }
+        return reused;
+    }
+
+    private Result run(StepGraph.Node node) {
+        final OutputAccumulator consumer = new OutputAccumulator();
+        final Instant start = Instant.now();
+        int code;
+        String error = null;
+        try {
+            code = Executor.execute(consumer, this.timeoutSeconds, node.getUnit(), this.monitor);
+        } catch (Exception e) {
+            code = -1;
+            error = e.getMessage();
+        }
+        final String output = consumer.getOutput();
+        return new Result(node, code, error != null ? (output != null ? output + "\n" : "") + error : output,
+                          Duration.between(start, Instant.now()));
+    }
+
+    private static class Result {
+        private final StepGraph.Node node;
+        private final int code;
+        private final String output;
+        private final Duration duration;
+
+        Result(StepGraph.Node node, int code, String output, Duration duration) {
+            this.node = node;
+            this.code = code;
+            this.output = output;
+            this.duration = duration;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing;
+
+import org.esa.sen4cap.preprocessing.db.StepStatistics;
+import org.esa.sen4cap.preprocessing.scheduling.ConfigurationKeys;
+import ro.cs.tao.utils.executors.ExecutionUnit;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sizes the resources of the gpt sub-steps:
+ * <ul>
+ *     <li>the tile cache (-c) and the threads (-q) of a sub-step are its share of the node budgets,
+ *     the budgets being divided among the sub-steps expected to run at the same time, and bounded
+ *     by the configured gpt cache and parallelism;</li>
+ *     <li>the memory reserved for a sub-step is derived from the peak resident memory of its recent executions,
+ *     when enough of them were recorded.</li>
+ * </ul>
+ */
+class StepSizing {
+    private static final Pattern peakMemoryPattern = Pattern.compile("Maximum resident set size \\(kbytes\\): (\\d+)");
+    private static final int MIN_CACHE_SIZE = 64;
+    private static final int PROFILE_SAMPLES = 3;
+    private static final long PROFILE_REFRESH_MILLIS = 10 * 60 * 1000;
+    private static final double MEMORY_MARGIN = 1.2;
+    private static Map<String, StepStatistics.Profile> profiles = Collections.emptyMap();
+    private static long profilesTimestamp;
+
+    /**
+     * The number of threads of a sub-step running together with <code>concurrency - 1</code> other sub-steps.
+     */
+    static int threadsFor(int concurrency) {
+        final int share = AdmissionController.getInstance().getCpuBudget() / Math.max(1, concurrency);
+        final int max = StepCommandBuilder.getGptProcs();
+        return Math.max(1, max > 0 ? Math.min(max, share) : share);
+    }
+
+    /**
+     * The tile cache size (MB) of a sub-step running together with <code>concurrency - 1</code> other sub-steps.
+     * The cache takes at most half of the memory share of the sub-step.
+     */
+    static int cacheSizeFor(int concurrency) {
+        final long share = AdmissionController.getInstance().getMemoryBudget() / Math.max(1, concurrency) / 2;
+        final int max = StepCommandBuilder.getGptCache();
+        return (int) Math.max(MIN_CACHE_SIZE, max > 0 ? Math.min(max, share) : share);
+    }
+
+    /**
+     * The memory (MB) to reserve for the given sub-step, or <code>null</code> if there are not enough
+     * recorded executions of it.
+     */
+    static Long minMemory(String stepKey, String host) {
+        if (!Boolean.parseBoolean(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_GPT_AUTOTUNE))) {
+            return null;
+        }
+        final StepStatistics.Profile profile = getProfiles(host).get(stepKey);
+        return profile != null && profile.getPeakMemory() > 0 ? (long) Math.ceil(profile.getPeakMemory() * MEMORY_MARGIN) : null;
+    }
+
+    /**
+     * Extracts the peak resident memory (MB) from the output of a sub-step executed with <code>time -v</code>.
+     */
+    static Long peakMemory(String output) {
+        if (output == null) {
+            return null;
+        }
+        final Matcher matcher = peakMemoryPattern.matcher(output);
+        Long value = null;
+        while (matcher.find()) {
+            value = Long.parseLong(matcher.group(1)) >> 10;
+        }
+        return value;
+    }
+
+    /**
+     * The tile cache size (MB) given to a sub-step.
+     */
+    static int cacheSize(ExecutionUnit unit) {
+        final String value = argumentOf(unit, "-c");
+        try {
+            return value != null ? Integer.parseInt(value.replace("M", "")) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String argumentOf(ExecutionUnit unit, String name) {
+        final List<String> arguments = unit.getArguments();
+        final int idx = arguments != null ? arguments.indexOf(name) : -1;
+        return idx >= 0 && idx < arguments.size() - 1 ? arguments.get(idx + 1) : null;
+    }
+
+    private static synchronized Map<String, StepStatistics.Profile> getProfiles(String host) {
+        if (System.currentTimeMillis() - profilesTimestamp > PROFILE_REFRESH_MILLIS) {
+            profiles = StepStatistics.getProfiles(host, PROFILE_SAMPLES);
+            profilesTimestamp = System.currentTimeMillis();
+        }
+        return profiles;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.preprocessing.db;
+
+import org.esa.sen2agri.db.Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution statistics (peak resident memory and duration) of the gpt sub-steps of the Sentinel-1 processing.
+ * They are used to size the resources reserved for the next executions of the same sub-steps.
+ */
+public class StepStatistics extends Database {
+    private static volatile boolean tableChecked;
+
+    /**
+     * Records an execution of a sub-step.
+     *
+     * @param stepKey       The sub-step key (step name and sub-step number)
+     * @param host          The node on which the sub-step was executed
+     * @param cacheSize     The gpt tile cache size (MB)
+     * @param threads       The number of gpt threads
+     * @param peakMemory    The peak resident memory (MB), if it was measured
+     * @param durationMillis    The execution time
+     * @param exitCode      The exit code of the sub-step
+     */
+    public static void save(String stepKey, String host, int cacheSize, int threads, Long peakMemory,
+                            long durationMillis, int exitCode) {
+        try (Connection connection = getConnection()) {
+            checkTable(connection);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO s1_step_statistics (step_key, host, cache_size, threads, peak_memory, duration, exit_code) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                statement.setString(1, stepKey);
+                statement.setString(2, host);
+                statement.setInt(3, cacheSize);
+                statement.setInt(4, threads);
+                if (peakMemory != null) {
+                    statement.setLong(5, peakMemory);
+                } else {
+                    statement.setNull(5, Types.BIGINT);
+                }
+                statement.setLong(6, durationMillis);
+                statement.setInt(7, exitCode);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot save the statistics of step %s. Reason: %s", stepKey, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns, for each sub-step having at least the given number of successful executions on the given node,
+     * the statistics of its most recent executions.
+     *
+     * @param host      The node
+     * @param samples   The number of recent executions to consider
+     */
+    public static Map<String, Profile> getProfiles(String host, int samples) {
+        final Map<String, Profile> profiles = new HashMap<>();
+        try (Connection connection = getConnection()) {
+            checkTable(connection);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT step_key, percentile_cont(0.95) WITHIN GROUP (ORDER BY peak_memory), avg(duration), count(*) FROM " +
+                            "(SELECT step_key, peak_memory, duration, " +
+                            "row_number() OVER (PARTITION BY step_key ORDER BY recorded DESC) AS rn " +
+                            "FROM s1_step_statistics WHERE host = ? AND exit_code = 0 AND peak_memory IS NOT NULL) s " +
+                            "WHERE rn <= ? GROUP BY step_key HAVING count(*) >= ?")) {
+                statement.setString(1, host);
+                statement.setInt(2, samples);
+                statement.setInt(3, samples);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        profiles.put(resultSet.getString(1),
+                                     new Profile((long) Math.ceil(resultSet.getDouble(2)), (long) resultSet.getDouble(3),
+                                                 resultSet.getInt(4)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.warning(String.format("Cannot read the step statistics. Reason: %s", e.getMessage()));
+        }
+        return profiles;
+    }
+
+    private static void checkTable(Connection connection) throws SQLException {
+        if (!tableChecked) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS s1_step_statistics (id serial PRIMARY KEY, " +
+                                          "step_key varchar NOT NULL, host varchar NOT NULL, cache_size integer, threads integer, " +
+                                          "peak_memory bigint, duration bigint NOT NULL, exit_code integer NOT NULL, " +
+                                          "recorded timestamp NOT NULL DEFAULT now())");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_s1_step_statistics ON s1_step_statistics (host, step_key, recorded)");
+            }
+            tableChecked = true;
+        }
+    }
+
+    /**
+     * The statistics of the recent executions of a sub-step.
+     */
+    public static class Profile {
+        private final long peakMemory;
+        private final long duration;
+        private final int samples;
+
+        Profile(long peakMemory, long duration, int samples) {
+            this.peakMemory = peakMemory;
+            this.duration = duration;
+            this.samples = samples;
+        }
+
+        /** The 95th percentile of the peak resident memory (MB) */
+        public long getPeakMemory() { return peakMemory; }
+
+        /** The average execution time (milliseconds) */
+        public long getDuration() { return duration; }
+
+        public int getSamples() { return samples; }
+    }
+}
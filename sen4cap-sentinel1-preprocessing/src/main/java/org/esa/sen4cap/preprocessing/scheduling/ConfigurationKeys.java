@@ -56,6 +56,12 @@ public class ConfigurationKeys {
     public static final String S1_PROCESSOR_TIMEOUT = "processor.l2s1.step.timeout";
     public static final String S1_PROCESSOR_JOIN_AMPLITUDE_STEPS = "processor.l2s1.join.amplitude.steps";
     public static final String S1_PROCESSOR_JOIN_COHERENCE_STEPS = "processor.l2s1.join.coherence.steps";
+    public static final String S1_PROCESSOR_MEMORY_BUDGET = "processor.l2s1.memory.budget";
+    public static final String S1_PROCESSOR_CPU_BUDGET = "processor.l2s1.cpu.budget";
+    public static final String S1_PROCESSOR_GPT_AUTOTUNE = "processor.l2s1.gpt.autotune";
+    public static final String S1_PROCESSOR_INTERMEDIATE_CACHE = "processor.l2s1.intermediate.cache.dir";
+    public static final String S1_PROCESSOR_INTERMEDIATE_CACHE_SIZE = "processor.l2s1.intermediate.cache.size";
+    public static final String S1_PROCESSOR_FUSE_STEPS = "processor.l2s1.fuse.steps";
 
     public static final String DISK_SAMPLING_INTERVAL = "disk.monitor.interval";
     public static final String REPORTS_ENABLED = "scheduled.reports.enabled";
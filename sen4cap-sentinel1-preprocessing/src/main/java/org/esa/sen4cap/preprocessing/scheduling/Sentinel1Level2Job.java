@@ -25,6 +25,7 @@ import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.entities.enums.Status;
 import org.esa.sen2agri.scheduling.AbstractJob;
 import org.esa.sen2agri.scheduling.JobDescriptor;
+import org.esa.sen4cap.preprocessing.AdmissionController;
 import org.esa.sen4cap.preprocessing.Configuration;
 import org.esa.sen4cap.preprocessing.MasterChoice;
 import org.esa.sen4cap.preprocessing.Polarisation;
@@ -55,7 +56,10 @@ public class Sentinel1Level2Job extends AbstractJob {
 
     static {
         targetRootPath = Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_OUTPUT_PATH);
-        parallelism = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_PARALLELISM));
+        final int configuredParallelism = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_PARALLELISM));
+        // the steps of all the pairs are admitted by the same controller, so more pairs can be started
+        // than the resources allow at once without oversubscribing the node
+        parallelism = configuredParallelism > 0 ? configuredParallelism : AdmissionController.getInstance().suggestedParallelism();
         daysOffset = Integer.parseInt(Configuration.getSetting(ConfigurationKeys.S1_PROCESSOR_DAYS_BACK));
         filter = new HashSet<>();
         filter.add(Satellite.Sentinel1);
@@ -0,0 +1,45 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent database writes performed by the imports, regardless of how many
+ * files are imported at the same time and of how many writers each import uses.
+ */
+public final class ConnectionBudget {
+    private static final Semaphore permits =
+            new Semaphore(Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_IMPORT_MAX_CONNECTIONS_CFG_KEY, "8"))), true);
+
+    private ConnectionBudget() { }
+
+    public static <T> T execute(Supplier<T> action) {
+        permits.acquireUninterruptibly();
+        try {
+            return action.get();
+        } finally {
+            permits.release();
+        }
+    }
+}
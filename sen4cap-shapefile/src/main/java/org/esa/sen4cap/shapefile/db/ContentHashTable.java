@@ -0,0 +1,196 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.esa.sen2agri.commons.Config;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps, for each record of a {@link GeneralizedLPISTable} imported with an identifier, the content hash
+ * of the record (see {@link GeneralizedLPISTable.Record#computeContentHash()}), so that a re-import of the same
+ * <code>lpis_gsaa_file</code> can skip the unchanged records.
+ * The hashes are kept in a side table named <code>&lt;table&gt;_hash</code>.
+ */
+public class ContentHashTable {
+    private static final int DELETE_BATCH_SIZE = 10000;
+    private final JdbcTemplate jdbcTemplate;
+    private final String tableName;
+    private final Logger logger;
+
+    public static ContentHashTable forTable(String dataTableName) {
+        return new ContentHashTable(dataTableName + "_hash");
+    }
+
+    private ContentHashTable(String tableName) {
+        this.jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+        this.tableName = tableName;
+        this.logger = Logger.getLogger(ContentHashTable.class.getName());
+        create();
+    }
+
+    private void create() {
+        SqlRowSet rowSet = jdbcTemplate.queryForRowSet("SELECT table_name FROM information_schema.tables WHERE table_name = ?",
+                                                       this.tableName);
+        if (!rowSet.next()) {
+            logger.info(String.format("Table %s was not found and it will be created", this.tableName));
+            List<String> statements = new LinkedList<>();
+            statements.add(String.format("CREATE TABLE %s (item_id bigint not null, file_id integer not null, hash bigint not null, " +
+                                                 "CONSTRAINT pk_%s PRIMARY KEY (file_id, item_id)) WITH (OIDS=FALSE);",
+                                         this.tableName, this.tableName));
+            statements.add(String.format("ALTER TABLE %s OWNER TO postgres;", this.tableName));
+            for (String statement : statements) {
+                try {
+                    logger.finest(statement);
+                    jdbcTemplate.execute(statement);
+                } catch (DataAccessException ex) {
+                    logger.severe(String.format("SQL Statement failed ('%s'): %s", statement, ex.getMessage()));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the hashes stored for the given file, sorted by the record identifier.
+     */
+    public Snapshot load(int fileId) throws DataAccessException {
+        long[] ids = new long[1 << 16];
+        long[] hashes = new long[1 << 16];
+        int count = 0;
+        try (QueryCursor<long[]> cursor = QueryCursor.open(this.jdbcTemplate.getDataSource(),
+                                                           String.format("SELECT item_id, hash FROM %s WHERE file_id = ? ORDER BY item_id",
+                                                                         this.tableName),
+                                                           statement -> statement.setInt(1, fileId), 50000,
+                                                           (resultSet, rowNum) -> new long[] { resultSet.getLong(1), resultSet.getLong(2) })) {
+            while (cursor.hasNext()) {
+                final long[] row = cursor.next();
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                ids[count] = row[0];
+                hashes[count] = row[1];
+                count++;
+            }
+        }
+        return new Snapshot(Arrays.copyOf(ids, count), Arrays.copyOf(hashes, count));
+    }
+
+    /**
+     * Saves the hashes of the given records (which are expected to have an identifier).
+     */
+    public int[] save(int fileId, List<GeneralizedLPISTable.Record> records) throws DataAccessException {
+        final List<GeneralizedLPISTable.Record> rows = new ArrayList<>(records.size());
+        for (GeneralizedLPISTable.Record record : records) {
+            if (record.getId() != null) {
+                rows.add(record);
+            }
+        }
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        return jdbcTemplate.batchUpdate(String.format("INSERT INTO %s (item_id, file_id, hash) VALUES (?,?,?) " +
+                                                              "ON CONFLICT (file_id, item_id) DO UPDATE SET hash = EXCLUDED.hash",
+                                                      this.tableName),
+                                        new BatchPreparedStatementSetter() {
+                                            @Override
+                                            public void setValues(PreparedStatement preparedStatement, int row) throws SQLException {
+                                                final GeneralizedLPISTable.Record record = rows.get(row);
+                                                preparedStatement.setLong(1, record.getId());
+                                                preparedStatement.setInt(2, fileId);
+                                                preparedStatement.setLong(3, record.getContentHash());
+                                            }
+
+                                            @Override
+                                            public int getBatchSize() {
+                                                return rows.size();
+                                            }
+                                        });
+    }
+
+    /**
+     * Removes the hashes of the given records.
+     */
+    public int delete(int fileId, long[] itemIds) throws DataAccessException {
+        return deleteByIds(this.jdbcTemplate, this.tableName, fileId, itemIds);
+    }
+
+    /**
+     * Removes all the hashes of the given file.
+     */
+    public int deleteAll(int fileId) throws DataAccessException {
+        return jdbcTemplate.update(String.format("DELETE FROM %s WHERE file_id = ?", this.tableName), fileId);
+    }
+
+    /**
+     * Deletes, in batches, the rows of the given table having the given file and item identifiers.
+     */
+    static int deleteByIds(JdbcTemplate jdbcTemplate, String tableName, int fileId, long[] itemIds) throws DataAccessException {
+        final String statement = String.format("DELETE FROM %s WHERE file_id = ? AND item_id = ANY(?)", tableName);
+        int deleted = 0;
+        for (int from = 0; from < itemIds.length; from += DELETE_BATCH_SIZE) {
+            final Long[] ids = new Long[Math.min(DELETE_BATCH_SIZE, itemIds.length - from)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = itemIds[from + i];
+            }
+            deleted += jdbcTemplate.update(connection -> {
+                final PreparedStatement preparedStatement = connection.prepareStatement(statement);
+                preparedStatement.setInt(1, fileId);
+                preparedStatement.setArray(2, connection.createArrayOf("bigint", ids));
+                return preparedStatement;
+            });
+        }
+        return deleted;
+    }
+
+    /**
+     * The hashes of the records of a file, sorted by record identifier.
+     */
+    public static class Snapshot {
+        private final long[] ids;
+        private final long[] hashes;
+
+        Snapshot(long[] ids, long[] hashes) {
+            this.ids = ids;
+            this.hashes = hashes;
+        }
+
+        public int size() { return ids.length; }
+
+        /**
+         * Returns the position of the record in this snapshot, or a negative value if the record is not present.
+         */
+        public int indexOf(long itemId) { return Arrays.binarySearch(ids, itemId); }
+
+        public long hashAt(int index) { return hashes[index]; }
+
+        public long idAt(int index) { return ids[index]; }
+    }
+}
@@ -22,9 +22,12 @@ import org.esa.sen2agri.entities.Site;
 import org.esa.sen4cap.shapefile.entities.Practice;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
 import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -169,6 +172,35 @@ public final class Database {
                 new Object[] { siteId, year }, String.class);
     }
 
+    /**
+     * Returns a value that changes whenever an L4C product is added or removed (the count and the highest id
+     * of the L4C products).
+     */
+    public static String getL4CProductsSignature() throws DataAccessException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+
+        return jdbcTemplate.queryForObject("SELECT count(id) || ':' || coalesce(max(id), 0) FROM product WHERE product_type_id = (SELECT id FROM product_type WHERE name = 's4c_l4c')",
+                String.class);
+    }
+
+    public static long getLastL4CProductId() throws DataAccessException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+
+        return jdbcTemplate.queryForObject("SELECT coalesce(max(id), 0) FROM product WHERE product_type_id = (SELECT id FROM product_type WHERE name = 's4c_l4c')",
+                Long.class);
+    }
+
+    /**
+     * Returns the paths (by product id) of the L4C products having the id greater than the given one.
+     */
+    public static Map<Long, String> getL4CProductsAfter(long productId) throws DataAccessException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+        Map<Long, String> products = new LinkedHashMap<>();
+        jdbcTemplate.query("SELECT id, full_path FROM product WHERE product_type_id = (SELECT id FROM product_type WHERE name = 's4c_l4c') AND id > ? ORDER BY id",
+                new Object[] { productId }, (RowCallbackHandler) rs -> products.put(rs.getLong(1), rs.getString(2)));
+        return products;
+    }
+
     private static InSituDataTable createTable(Site site, DataType tableType) throws Exception {
         InSituDataTable newTable = null;
         DataSource dataSource = Config.getPersistenceManager().getDataSource();
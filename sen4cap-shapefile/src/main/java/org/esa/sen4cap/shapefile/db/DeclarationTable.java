@@ -20,7 +20,6 @@ package org.esa.sen4cap.shapefile.db;
 
 import org.esa.sen2agri.entities.Site;
 import org.esa.sen4cap.shapefile.entities.Declaration;
-import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 import org.springframework.dao.DataAccessException;
@@ -50,7 +49,7 @@ public class DeclarationTable extends InSituDataTable<Declaration> {
         List<Declaration> rows = new ArrayList<>();
         JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
         final WKTReader wktReader = new WKTReader();
-        jdbcTemplate.query(connection ->
+        rows.addAll(jdbcTemplate.query(connection ->
                            {
                                PreparedStatement statement =
                                        connection.prepareStatement("SELECT lpis_id, parcel_id, orig_land_use_code, sys_land_use_code, area, st_astext(footprint), updated, source, attributes " +
@@ -76,7 +75,7 @@ public class DeclarationTable extends InSituDataTable<Declaration> {
                                declaration.setSourceFile(resultSet.getString(8));
                                declaration.setAttributes(resultSet.getString(9));
                                return declaration;
-                           });
+                           }));
         return rows;
     }
 
@@ -85,8 +84,8 @@ public class DeclarationTable extends InSituDataTable<Declaration> {
         JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
         Date updated = Date.valueOf(LocalDate.now());
         int[] r = jdbcTemplate.batchUpdate("INSERT INTO declaration (lpis_id, parcel_id, site_id, orig_land_use_code, sys_land_use_code, area, footprint, updated, source, attributes) " +
-                                                "VALUES (?,?,?,?,?,?,st_geogfromtext(?),?,?,?) ON CONFLICT (lpis_id, parcel_id) " +
-                                                "DO UPDATE SET orig_land_use_code = ?, sys_land_use_code = ?, area = ?, footprint = st_geogfromtext(?), updated = ?, source = ?, attributes = ?",
+                                                "VALUES (?,?,?,?,?,?,st_geogfromwkb(?),?,?,?) ON CONFLICT (lpis_id, parcel_id) " +
+                                                "DO UPDATE SET orig_land_use_code = ?, sys_land_use_code = ?, area = ?, footprint = st_geogfromwkb(?), updated = ?, source = ?, attributes = ?",
                                         new BatchPreparedStatementSetter() {
                                             @Override
                                             public void setValues(PreparedStatement preparedStatement, int row) throws SQLException {
@@ -107,9 +106,8 @@ public class DeclarationTable extends InSituDataTable<Declaration> {
                                                 } else {
                                                     preparedStatement.setNull(6, Types.DOUBLE);
                                                 }
-                                                Geometry footprint = declaration.getFootprint();
-                                                String wkt = footprint == null ? "POLYGON EMPTY" : footprint.toText();
-                                                preparedStatement.setString(7, wkt);
+                                                byte[] wkb = encodeFootprint(GeometryEncoder.orEmpty(declaration.getFootprint()));
+                                                preparedStatement.setBytes(7, wkb);
                                                 preparedStatement.setDate(8, updated);
                                                 preparedStatement.setString(9, declaration.getSourceFile());
                                                 preparedStatement.setString(10, declaration.getAttributes());
@@ -124,7 +122,7 @@ public class DeclarationTable extends InSituDataTable<Declaration> {
                                                 } else {
                                                     preparedStatement.setNull(13, Types.DOUBLE);
                                                 }
-                                                preparedStatement.setString(14, wkt);
+                                                preparedStatement.setBytes(14, wkb);
                                                 preparedStatement.setDate(15, updated);
                                                 preparedStatement.setString(16, declaration.getSourceFile());
                                                 preparedStatement.setString(17, declaration.getAttributes());
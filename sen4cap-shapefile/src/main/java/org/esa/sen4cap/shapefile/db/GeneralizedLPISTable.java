@@ -20,13 +20,25 @@ package org.esa.sen4cap.shapefile.db;
 
 import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
@@ -37,14 +49,24 @@ public class GeneralizedLPISTable {
     private static final Map<String, String> mandatoryColumns;
     private static final Map<String, String> optionalColumns;
     private static final Map<String, String> internalColumns;
+    private static final ThreadLocal<MessageDigest> hashDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     private final Map<String, String> additionalColumns;
     private final Map<String, String> rowColumnsTemplate;
     private final JdbcTemplate jdbcTemplate;
     private final String tableName;
+    private String stagingTableName;
+    private final String columnList;
     private final String upsertQuery;
     private final String upsertQueryWithoutId;
     private final StringBuilder statementBuilder;
     private final Logger logger;
+    private final boolean bulkLoad;
 
     static {
         mandatoryColumns = new LinkedHashMap<>();
@@ -69,7 +91,51 @@ public class GeneralizedLPISTable {
     }
 
     public static GeneralizedLPISTable create(Site site, DataType tableType, List<String> additionalColumns) {
-        return new GeneralizedLPISTable(site, tableType, additionalColumns);
+        return new GeneralizedLPISTable(site, tableType, additionalColumns, false, true);
+    }
+
+    /**
+     * Creates the table (if it doesn't exist) for a bulk load. In this case, the spatial index of a new table
+     * is built only once, after the data is loaded, by {@link #updateIndexes()}.
+     */
+    public static GeneralizedLPISTable createForBulkLoad(Site site, DataType tableType, List<String> additionalColumns) {
+        return new GeneralizedLPISTable(site, tableType, additionalColumns, true, true);
+    }
+
+    /**
+     * Returns the existing table of the given type for the given site, with the additional columns it was created with,
+     * or <code>null</code> if the table doesn't exist.
+     */
+    public static GeneralizedLPISTable open(Site site, DataType tableType) {
+        final String tableName = tableName(site, tableType);
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+        final List<String> columns = jdbcTemplate.queryForList("SELECT column_name FROM information_schema.columns " +
+                                                                       "WHERE table_name = ? ORDER BY ordinal_position",
+                                                               String.class, tableName);
+        if (columns.isEmpty()) {
+            return null;
+        }
+        final Set<String> knownColumns = new HashSet<>();
+        internalColumns.keySet().forEach(c -> knownColumns.add(c.toLowerCase()));
+        mandatoryColumns.keySet().forEach(c -> knownColumns.add(c.toLowerCase()));
+        optionalColumns.keySet().forEach(c -> knownColumns.add(c.toLowerCase()));
+        final List<String> additionalColumns = new ArrayList<>();
+        for (String column : columns) {
+            if (!knownColumns.contains(column)) {
+                additionalColumns.add(column);
+            }
+        }
+        // the table was just found, there is nothing to create
+        return new GeneralizedLPISTable(site, tableType, additionalColumns, false, false);
+    }
+
+    /**
+     * Returns the name of the table holding the records of the given type for the given site.
+     */
+    public static String tableName(Site site, DataType tableType) {
+        return String.format("%s_%s",
+                             tableType.baseName(),
+                             site.getShortName().toLowerCase().replace(" ", "_"));
     }
 
     public static Set<String> mandatoryColumnNames() {
@@ -80,10 +146,9 @@ public class GeneralizedLPISTable {
         return new HashSet<>(optionalColumns.keySet());
     }
 
-    private GeneralizedLPISTable(Site site, DataType tableType, List<String> additionalColumns) {
-        this.tableName = String.format("%s_%s",
-                                       tableType.baseName(),
-                                       site.getShortName().toLowerCase().replace(" ", "_"));
+    private GeneralizedLPISTable(Site site, DataType tableType, List<String> additionalColumns, boolean bulkLoad,
+                                 boolean create) {
+        this.tableName = tableName(site, tableType);
         this.additionalColumns = new LinkedHashMap<>();
         this.rowColumnsTemplate = new LinkedHashMap<>();
         if (additionalColumns != null) {
@@ -102,8 +167,8 @@ public class GeneralizedLPISTable {
         for (String colName : internalColumns.keySet()) {
             this.statementBuilder.append(colName).append(",");
             if ("footprint".equals(colName)) {
-                valuesBuilder.append("st_geogfromtext(?),");
-                updateBuilder.append(colName).append("=st_geogfromtext(?),");
+                valuesBuilder.append("st_geogfromwkb(?),");
+                updateBuilder.append(colName).append("=st_geogfromwkb(?),");
             } else {
                 valuesBuilder.append("?,");
                 //updateBuilder.append(colName).append(",");
@@ -131,11 +196,65 @@ public class GeneralizedLPISTable {
         updateBuilder.setLength(updateBuilder.length() - 1);
         this.upsertQuery = this.statementBuilder.toString() + valuesBuilder.toString() + updateBuilder.toString();
         this.upsertQueryWithoutId = this.upsertQuery.replace(this.tableName + " (item_id,", this.tableName  +" (").replace("VALUES(?,", "VALUES(");
+        this.columnList = this.statementBuilder.substring(this.statementBuilder.indexOf("(") + 1, this.statementBuilder.length() - 1);
         valuesBuilder.setLength(0);
         updateBuilder.setLength(0);
         this.statementBuilder.setLength(0);
         this.logger = Logger.getLogger(GeneralizedLPISTable.class.getName());
-        create();
+        this.bulkLoad = bulkLoad;
+        if (create) {
+            create();
+        }
+    }
+
+    /**
+     * Brings the indexes of the table up to date after an import.
+     * The spatial index is created if it was deferred by a bulk load (of this or of an earlier import).
+     * Then after a bulk load the statistics are refreshed, otherwise the table is vacuumed and reindexed.
+     */
+    public void updateIndexes() {
+        ensureSpatialIndex();
+        if (this.bulkLoad) {
+            final String statement = String.format("ANALYZE %s", this.tableName);
+            try {
+                logger.finest(statement);
+                jdbcTemplate.execute(statement);
+            } catch (DataAccessException ex) {
+                logger.severe(String.format("SQL Statement failed ('%s'): %s", statement, ex.getMessage()));
+            }
+        } else {
+            reindex();
+        }
+    }
+
+    /**
+     * Reclaims the space of the updated or deleted rows and refreshes the planner statistics,
+     * without rebuilding the indexes. The spatial index is created if it is missing.
+     */
+    public void analyze() {
+        ensureSpatialIndex();
+        final String statement = String.format("VACUUM ANALYZE %s", this.tableName);
+        try {
+            logger.finest(statement);
+            jdbcTemplate.execute(statement);
+        } catch (DataAccessException ex) {
+            logger.severe(String.format("SQL Statement failed ('%s'): %s", statement, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Creates the spatial index of the table, unless it already exists.
+     */
+    public void ensureSpatialIndex() {
+        final boolean concurrently = Boolean.parseBoolean(Config.getSetting(ConfigurationKeys.LPIS_INDEX_CONCURRENTLY_CFG_KEY, "false"));
+        final String statement = String.format("CREATE INDEX %s IF NOT EXISTS idx_%s ON %s USING GIST(footprint)",
+                                               concurrently ? "CONCURRENTLY" : "", this.tableName, this.tableName);
+        try {
+            logger.finest(statement);
+            jdbcTemplate.execute(statement);
+        } catch (DataAccessException ex) {
+            logger.severe(String.format("SQL Statement failed ('%s'): %s", statement, ex.getMessage()));
+        }
     }
 
     public void reindex() {
@@ -158,6 +277,120 @@ public class GeneralizedLPISTable {
 
     public Record newRow() { return new Record(this.rowColumnsTemplate); }
 
+    public String getName() { return this.tableName; }
+
+    public boolean isBulkLoad() { return this.bulkLoad; }
+
+    public List<String> getAdditionalColumns() { return new ArrayList<>(this.additionalColumns.keySet()); }
+
+    /**
+     * Selects the records whose footprint intersects the given bounding box (in EPSG:4326).
+     * The records are read through a server-side cursor, hence the returned cursor has to be closed.
+     *
+     * @param bbox      The bounding box
+     * @param fileId    If not null, only the records of this <code>lpis_gsaa_file</code> are returned
+     */
+    public QueryCursor<Record> select(Envelope bbox, Integer fileId) throws DataAccessException {
+        return select("footprint && ST_MakeEnvelope(?,?,?,?,4326)::geography", fileId,
+                      statement -> {
+                          statement.setDouble(1, bbox.getMinX());
+                          statement.setDouble(2, bbox.getMinY());
+                          statement.setDouble(3, bbox.getMaxX());
+                          statement.setDouble(4, bbox.getMaxY());
+                          return 5;
+                      });
+    }
+
+    /**
+     * Selects the records whose footprint intersects the given WKT polygon (in EPSG:4326).
+     * The records are read through a server-side cursor, hence the returned cursor has to be closed.
+     *
+     * @param wkt       The polygon
+     * @param fileId    If not null, only the records of this <code>lpis_gsaa_file</code> are returned
+     */
+    public QueryCursor<Record> select(String wkt, Integer fileId) throws DataAccessException {
+        return select("ST_Intersects(footprint, ST_GeogFromText(?))", fileId,
+                      statement -> {
+                          statement.setString(1, wkt);
+                          return 2;
+                      });
+    }
+
+    /**
+     * Selects all the records of the given <code>lpis_gsaa_file</code> (or of the table, if <code>fileId</code> is null)
+     * through a server-side cursor.
+     */
+    public QueryCursor<Record> selectAll(Integer fileId) throws DataAccessException {
+        return select(null, fileId, statement -> 1);
+    }
+
+    private QueryCursor<Record> select(String condition, Integer fileId, ParameterSetter spatialParameters) {
+        final StringBuilder builder = new StringBuilder("SELECT ");
+        for (String colName : this.columnList.split(",")) {
+            builder.append("footprint".equals(colName) ? "ST_AsBinary(footprint)" : colName).append(",");
+        }
+        builder.setLength(builder.length() - 1);
+        builder.append(" FROM ").append(this.tableName);
+        if (condition != null || fileId != null) {
+            builder.append(" WHERE ");
+            if (condition != null) {
+                builder.append(condition);
+            }
+            if (fileId != null) {
+                builder.append(condition != null ? " AND " : "").append("file_id = ?");
+            }
+        }
+        final String query = builder.toString();
+        logger.finest(query);
+        final int fetchSize = Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_QUERY_FETCH_SIZE_CFG_KEY, "5000"));
+        final WKBReader wkbReader = new WKBReader();
+        return QueryCursor.open(this.jdbcTemplate.getDataSource(), query,
+                                statement -> {
+                                    final int idx = spatialParameters.setValues(statement);
+                                    if (fileId != null) {
+                                        statement.setInt(idx, fileId);
+                                    }
+                                },
+                                fetchSize,
+                                (resultSet, rowNum) -> {
+                                    final Record record = newRow();
+                                    int idx = 1;
+                                    record.id = resultSet.getLong(idx++);
+                                    record.fileId = resultSet.getInt(idx++);
+                                    final byte[] wkb = resultSet.getBytes(idx++);
+                                    if (wkb != null) {
+                                        try {
+                                            record.footprint = wkbReader.read(wkb);
+                                        } catch (ParseException e) {
+                                            logger.warning(String.format("Invalid footprint for record %d: %s",
+                                                                         record.id, e.getMessage()));
+                                        }
+                                    }
+                                    record.CR_CO_GSAA = resultSet.getString(idx++);
+                                    record.CR_NA_GSAA = resultSet.getString(idx++);
+                                    record.CR_CO_L4A = resultSet.getString(idx++);
+                                    record.CR_NA_L4A = resultSet.getString(idx++);
+                                    record.CR_CO_DIV = resultSet.getString(idx++);
+                                    record.CR_NA_DIV = resultSet.getString(idx++);
+                                    record.CR_CAT = resultSet.getInt(idx++);
+                                    Number value = (Number) resultSet.getObject(idx++);
+                                    record.S1Pix = value != null ? value.intValue() : null;
+                                    value = (Number) resultSet.getObject(idx++);
+                                    record.S2Pix = value != null ? value.intValue() : null;
+                                    value = (Number) resultSet.getObject(idx++);
+                                    record.Area = value != null ? value.doubleValue() : null;
+                                    value = (Number) resultSet.getObject(idx++);
+                                    record.ShapeIndex = value != null ? value.doubleValue() : null;
+                                    value = (Number) resultSet.getObject(idx++);
+                                    record.Overlap = value != null ? value.longValue() : null;
+                                    record.GeomValid = resultSet.getBoolean(idx++);
+                                    for (String colName : this.additionalColumns.keySet()) {
+                                        record.otherColumns.put(colName, resultSet.getString(idx++));
+                                    }
+                                    return record;
+                                });
+    }
+
     public int[] insertOrUpdate(List<Record> rows) throws DataAccessException {
         final boolean hasId = rows.get(0).getId() != null;
         String statement = hasId ? this.upsertQuery : this.upsertQueryWithoutId;
@@ -171,9 +404,8 @@ public class GeneralizedLPISTable {
                                                        preparedStatement.setLong(idx++, record.id);
                                                    }
                                                    preparedStatement.setInt(idx++, record.fileId);
-                                                   Geometry footprint = record.getFootprint();
-                                                   String wkt = footprint == null ? "POLYGON EMPTY" : footprint.toText();
-                                                   preparedStatement.setString(idx++, wkt);
+                                                   byte[] wkb = GeometryEncoder.toWKB(GeometryEncoder.orEmpty(record.getFootprint()));
+                                                   preparedStatement.setBytes(idx++, wkb);
                                                    preparedStatement.setString(idx++, record.CR_CO_GSAA);
                                                    preparedStatement.setString(idx++, record.CR_NA_GSAA);
                                                    preparedStatement.setString(idx++, record.CR_CO_L4A);
@@ -211,7 +443,7 @@ public class GeneralizedLPISTable {
                                                        preparedStatement.setString(idx++, col.getValue());
                                                    }
                                                    //preparedStatement.setInt(idx++, record.fileId);
-                                                   preparedStatement.setString(idx++, wkt);
+                                                   preparedStatement.setBytes(idx++, wkb);
                                                    preparedStatement.setString(idx++, record.CR_CO_GSAA);
                                                    preparedStatement.setString(idx++, record.CR_NA_GSAA);
                                                    preparedStatement.setString(idx++, record.CR_CO_L4A);
@@ -257,13 +489,148 @@ public class GeneralizedLPISTable {
                                            });
     }
 
+    /**
+     * Deletes the records of the given file having the given identifiers.
+     */
+    public int delete(int fileId, long[] itemIds) throws DataAccessException {
+        return ContentHashTable.deleteByIds(this.jdbcTemplate, this.tableName, fileId, itemIds);
+    }
+
+    /**
+     * Prepares a bulk load by creating an unlogged staging table having the same columns as this table.
+     * Rows are then streamed into the staging table with {@link #copy(List)} and moved into this table
+     * by {@link #endBulkLoad()}.
+     *
+     * @param source    The name of the loaded file, used to give each concurrent load its own staging table
+     */
+    public void beginBulkLoad(String source) throws DataAccessException {
+        this.stagingTableName = String.format("%s_staging_%s", this.tableName, Integer.toHexString(source.hashCode()));
+        jdbcTemplate.execute(String.format("DROP TABLE IF EXISTS %s", this.stagingTableName));
+        jdbcTemplate.execute(String.format("CREATE UNLOGGED TABLE %s AS SELECT * FROM %s WITH NO DATA",
+                                           this.stagingTableName, this.tableName));
+        // the load order, which tells which of the rows with the same identifier is the last one
+        jdbcTemplate.execute(String.format("ALTER TABLE %s ADD COLUMN staging_row bigserial", this.stagingTableName));
+    }
+
+    /**
+     * Streams the given rows into the staging table using the PostgreSQL COPY protocol.
+     */
+    public long copy(List<Record> rows) throws DataAccessException {
+        final StringBuilder buffer = new StringBuilder(rows.size() * 512);
+        for (Record record : rows) {
+            appendCopyValue(buffer, record.id);
+            appendCopyValue(buffer, record.fileId);
+            appendCopyValue(buffer, GeometryEncoder.toHexWKB(GeometryEncoder.orEmpty(record.getFootprint())));
+            appendCopyValue(buffer, record.CR_CO_GSAA);
+            appendCopyValue(buffer, record.CR_NA_GSAA);
+            appendCopyValue(buffer, record.CR_CO_L4A);
+            appendCopyValue(buffer, record.CR_NA_L4A);
+            appendCopyValue(buffer, record.CR_CO_DIV);
+            appendCopyValue(buffer, record.CR_NA_DIV);
+            appendCopyValue(buffer, record.CR_CAT);
+            appendCopyValue(buffer, record.S1Pix);
+            appendCopyValue(buffer, record.S2Pix);
+            appendCopyValue(buffer, record.Area);
+            appendCopyValue(buffer, record.ShapeIndex);
+            appendCopyValue(buffer, record.Overlap);
+            appendCopyValue(buffer, record.GeomValid);
+            for (Map.Entry<String, String> col : record.otherColumns.entrySet()) {
+                appendCopyValue(buffer, col.getValue());
+            }
+            buffer.setCharAt(buffer.length() - 1, '\n');
+        }
+        final String statement = String.format("COPY %s (%s) FROM STDIN", this.stagingTableName, this.columnList);
+        return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            try {
+                return copyManager.copyIn(statement, new StringReader(buffer.toString()));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        });
+    }
+
+    /**
+     * Merges the contents of the staging table into this table with a single statement and drops the staging table.
+     * When the file contains several rows with the same identifier, only the last one is merged (as the row by row
+     * upsert would do), since a single INSERT .. ON CONFLICT cannot update the same row twice.
+     */
+    public int endBulkLoad() throws DataAccessException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("INSERT INTO ").append(this.tableName).append(" (").append(this.columnList).append(") ")
+               .append("SELECT DISTINCT ON (item_id, file_id) ").append(this.columnList).append(" FROM (SELECT ")
+               .append("COALESCE(item_id, nextval('").append(this.tableName).append("_sequence')) AS item_id")
+               .append(this.columnList.substring(this.columnList.indexOf(",")))
+               .append(", staging_row FROM ").append(this.stagingTableName)
+               .append(") staged ORDER BY item_id, file_id, staging_row DESC")
+               .append(" ON CONFLICT (item_id, file_id) DO UPDATE SET ");
+        for (String colName : this.columnList.split(",")) {
+            if (!"item_id".equals(colName) && !"file_id".equals(colName)) {
+                builder.append(colName).append("=EXCLUDED.").append(colName).append(",");
+            }
+        }
+        builder.setLength(builder.length() - 1);
+        try {
+            return jdbcTemplate.update(builder.toString());
+        } finally {
+            dropStagingTable();
+        }
+    }
+
+    /**
+     * Drops the staging table without merging its contents, when the load failed.
+     */
+    public void abortBulkLoad() {
+        if (this.stagingTableName != null) {
+            dropStagingTable();
+        }
+    }
+
+    private void dropStagingTable() {
+        try {
+            jdbcTemplate.execute(String.format("DROP TABLE IF EXISTS %s", this.stagingTableName));
+        } catch (DataAccessException ex) {
+            logger.warning(String.format("Cannot drop table %s: %s", this.stagingTableName, ex.getMessage()));
+        }
+    }
+
+    private static void appendCopyValue(StringBuilder buffer, Object value) {
+        if (value == null) {
+            buffer.append("\\N");
+        } else {
+            final String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '\\':
+                        buffer.append("\\\\");
+                        break;
+                    case '\t':
+                        buffer.append("\\t");
+                        break;
+                    case '\n':
+                        buffer.append("\\n");
+                        break;
+                    case '\r':
+                        buffer.append("\\r");
+                        break;
+                    default:
+                        buffer.append(c);
+                        break;
+                }
+            }
+        }
+        buffer.append('\t');
+    }
+
     private void create() {
         SqlRowSet rowSet = jdbcTemplate.queryForRowSet("SELECT table_name FROM information_schema.tables WHERE table_name = ?",
                                                        this.tableName);
         if (!rowSet.next()) {
+            // the statements are idempotent, in case another import creates the table at the same time
             logger.info(String.format("Table %s was not found and it will be created", this.tableName));
             List<String> statements = new LinkedList<>();
-            statementBuilder.append("CREATE TABLE ").append(this.tableName).append(" (");
+            statementBuilder.append("CREATE TABLE IF NOT EXISTS ").append(this.tableName).append(" (");
             for (Map.Entry<String, String> entry : internalColumns.entrySet()) {
                 statementBuilder.append(entry.getKey()).append(" ").append(entry.getValue()).append(", ");
             }
@@ -283,11 +650,13 @@ public class GeneralizedLPISTable {
             statementBuilder.append("ALTER TABLE ").append(this.tableName).append(" OWNER TO postgres;");
             statements.add(statementBuilder.toString());
             statementBuilder.setLength(0);
-            statementBuilder.append("CREATE INDEX idx_").append(this.tableName)
-                    .append(" ON ").append(this.tableName).append(" USING GIST(footprint);");
-            statements.add(statementBuilder.toString());
-            statementBuilder.setLength(0);
-            statementBuilder.append("CREATE SEQUENCE ").append(this.tableName).append("_sequence INCREMENT BY 1 MINVALUE 1 START WITH 1 NO CYCLE;");
+            if (!this.bulkLoad) {
+                statementBuilder.append("CREATE INDEX IF NOT EXISTS idx_").append(this.tableName)
+                        .append(" ON ").append(this.tableName).append(" USING GIST(footprint);");
+                statements.add(statementBuilder.toString());
+                statementBuilder.setLength(0);
+            }
+            statementBuilder.append("CREATE SEQUENCE IF NOT EXISTS ").append(this.tableName).append("_sequence INCREMENT BY 1 MINVALUE 1 START WITH 1 NO CYCLE;");
             statements.add(statementBuilder.toString());
             statementBuilder.setLength(0);
             statementBuilder.append("ALTER TABLE ").append(this.tableName)
@@ -312,6 +681,14 @@ public class GeneralizedLPISTable {
         }
     }
 
+    @FunctionalInterface
+    private interface ParameterSetter {
+        /**
+         * Binds the parameters of the spatial condition and returns the index of the next parameter.
+         */
+        int setValues(PreparedStatement statement) throws SQLException;
+    }
+
     public class Record {
         private Long id;
         private int fileId;
@@ -330,6 +707,8 @@ public class GeneralizedLPISTable {
         private boolean GeomValid;
         private Geometry footprint;
         private Map<String, String> otherColumns;
+        // not persisted in this table, see ContentHashTable
+        private long contentHash;
 
         Record(Map<String, String> otherColumns) {
             this.otherColumns = new LinkedHashMap<>(otherColumns);
@@ -383,6 +762,50 @@ public class GeneralizedLPISTable {
         public Geometry getFootprint() { return footprint; }
         public void setFootprint(Geometry footprint) { this.footprint = footprint; }
 
+        public long getContentHash() { return contentHash; }
+        public void setContentHash(long contentHash) { this.contentHash = contentHash; }
+
+        /**
+         * Computes a 64-bit hash of the attributes and of the footprint (WKB) of this record.
+         * The identifier and the file are not part of the hash.
+         */
+        public long computeContentHash() {
+            final MessageDigest digest = hashDigest.get();
+            digest.reset();
+            updateDigest(digest, CR_CO_GSAA);
+            updateDigest(digest, CR_NA_GSAA);
+            updateDigest(digest, CR_CO_L4A);
+            updateDigest(digest, CR_NA_L4A);
+            updateDigest(digest, CR_CO_DIV);
+            updateDigest(digest, CR_NA_DIV);
+            updateDigest(digest, CR_CAT);
+            updateDigest(digest, S1Pix);
+            updateDigest(digest, S2Pix);
+            updateDigest(digest, Area);
+            updateDigest(digest, ShapeIndex);
+            updateDigest(digest, Overlap);
+            updateDigest(digest, GeomValid);
+            for (String value : otherColumns.values()) {
+                updateDigest(digest, value);
+            }
+            digest.update(GeometryEncoder.toWKB(GeometryEncoder.orEmpty(footprint)));
+            final byte[] hash = digest.digest();
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (hash[i] & 0xFF);
+            }
+            return value;
+        }
+
+        private void updateDigest(MessageDigest digest, Object value) {
+            if (value == null) {
+                digest.update((byte) 0);
+            } else {
+                digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0x1F);
+            }
+        }
+
         public String getColumn(String columnName) {
             if (!this.otherColumns.containsKey(columnName)) {
                 throw new IllegalArgumentException(String.format("columnName=%s", columnName));
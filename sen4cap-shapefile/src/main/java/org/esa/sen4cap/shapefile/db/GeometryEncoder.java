@@ -0,0 +1,57 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.WKBWriter;
+
+/**
+ * Encodes the geometries sent to the database as WKB, which is bound as <code>bytea</code> and decoded
+ * server-side with <code>st_geogfromwkb</code>. This is considerably cheaper than formatting and parsing WKT.
+ */
+public final class GeometryEncoder {
+    private static final ThreadLocal<WKBWriter> writer = ThreadLocal.withInitial(WKBWriter::new);
+    private static final Geometry emptyGeometry = new GeometryFactory().createPolygon();
+
+    private GeometryEncoder() { }
+
+    /**
+     * Returns the WKB representation of the geometry, or <code>null</code> (bound as SQL NULL) for a <code>null</code> geometry.
+     */
+    public static byte[] toWKB(Geometry geometry) {
+        return geometry != null ? writer.get().write(geometry) : null;
+    }
+
+    /**
+     * Returns the hex-encoded WKB representation of the geometry (as accepted by the PostGIS text input),
+     * or <code>null</code> for a <code>null</code> geometry.
+     */
+    public static String toHexWKB(Geometry geometry) {
+        return geometry != null ? WKBWriter.toHex(toWKB(geometry)) : null;
+    }
+
+    /**
+     * Returns the given geometry, or an empty polygon if it is <code>null</code>, for the tables that store
+     * the records without a footprint.
+     */
+    public static Geometry orEmpty(Geometry geometry) {
+        return geometry != null ? geometry : emptyGeometry;
+    }
+}
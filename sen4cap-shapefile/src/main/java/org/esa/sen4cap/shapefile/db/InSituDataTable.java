@@ -20,6 +20,7 @@ package org.esa.sen4cap.shapefile.db;
 
 import org.esa.sen2agri.entities.Site;
 import org.esa.sen4cap.shapefile.entities.VectorRecord;
+import org.locationtech.jts.geom.Geometry;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
@@ -51,6 +52,14 @@ public abstract class InSituDataTable<RecordType extends VectorRecord> {
 
     public abstract List<RecordType> select(Site site, String wkt) throws DataAccessException;
 
+    /**
+     * Encodes the footprint of a record to be bound with <code>st_geogfromwkb(?)</code>.
+     * A <code>null</code> footprint is bound as SQL NULL, which the NOT NULL footprint columns reject.
+     */
+    protected byte[] encodeFootprint(Geometry footprint) {
+        return GeometryEncoder.toWKB(footprint);
+    }
+
     public abstract int[] insertOrUpdate(List<RecordType> rows) throws DataAccessException;
 
     public abstract int[] delete(List<RecordType> rows) throws DataAccessException;
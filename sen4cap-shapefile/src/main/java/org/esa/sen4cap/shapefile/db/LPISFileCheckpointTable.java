@@ -0,0 +1,99 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.esa.sen2agri.commons.Config;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.rowset.SqlRowSet;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Keeps, for each <code>lpis_gsaa_file</code> record and shape file, the number of shapefile records that were already
+ * committed to the database, so that an interrupted import can be resumed from that point.
+ */
+public class LPISFileCheckpointTable {
+    private static final LPISFileCheckpointTable instance = new LPISFileCheckpointTable();
+    private final JdbcTemplate jdbcTemplate;
+    private final Logger logger;
+
+    public static LPISFileCheckpointTable getInstance() { return instance; }
+
+    private LPISFileCheckpointTable() {
+        this.jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+        this.logger = Logger.getLogger(LPISFileCheckpointTable.class.getName());
+        create();
+    }
+
+    private void create() {
+        SqlRowSet rowSet = jdbcTemplate.queryForRowSet("SELECT table_name FROM information_schema.tables WHERE table_name = 'lpis_gsaa_file_checkpoint'");
+        if (!rowSet.next()) {
+            logger.info("Table 'lpis_gsaa_file_checkpoint' was not found and it will be created");
+            List<String> statements = new LinkedList<>();
+            statements.add("CREATE TABLE lpis_gsaa_file_checkpoint (file_id integer not null, file_name text not null, " +
+                                   "records bigint not null, updated timestamp with time zone not null, " +
+                                   "CONSTRAINT pk_lpis_gsaa_file_checkpoint PRIMARY KEY (file_id, file_name)) WITH (OIDS=FALSE);");
+            statements.add("ALTER TABLE lpis_gsaa_file_checkpoint OWNER TO postgres;");
+            for (String statement : statements) {
+                try {
+                    logger.finest(statement);
+                    jdbcTemplate.execute(statement);
+                } catch (DataAccessException ex) {
+                    logger.severe(String.format("SQL Statement failed ('%s'): %s", statement, ex.getMessage()));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the first <code>records</code> records of the file were committed.
+     */
+    public int save(int fileId, String fileName, long records) throws DataAccessException {
+        return jdbcTemplate.update("INSERT INTO lpis_gsaa_file_checkpoint (file_id, file_name, records, updated) VALUES (?,?,?,?) " +
+                                           "ON CONFLICT (file_id, file_name) DO UPDATE SET records = ?, updated = ?",
+                                   preparedStatement -> {
+                                       Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+                                       preparedStatement.setInt(1, fileId);
+                                       preparedStatement.setString(2, fileName);
+                                       preparedStatement.setLong(3, records);
+                                       preparedStatement.setTimestamp(4, now);
+                                       preparedStatement.setLong(5, records);
+                                       preparedStatement.setTimestamp(6, now);
+                                   });
+    }
+
+    /**
+     * Returns the number of committed records of the given file, or 0 if there is no checkpoint for it.
+     */
+    public long select(int fileId, String fileName) throws DataAccessException {
+        List<Long> values = jdbcTemplate.queryForList("SELECT records FROM lpis_gsaa_file_checkpoint WHERE file_id = ? AND file_name = ?",
+                                                      new Object[] { fileId, fileName }, Long.class);
+        return values.isEmpty() || values.get(0) == null ? 0 : values.get(0);
+    }
+
+    public int delete(int fileId, String fileName) throws DataAccessException {
+        return jdbcTemplate.update("DELETE FROM lpis_gsaa_file_checkpoint WHERE file_id = ? AND file_name = ?", fileId, fileName);
+    }
+}
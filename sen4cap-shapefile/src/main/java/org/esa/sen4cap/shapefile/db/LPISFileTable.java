@@ -115,6 +115,41 @@ public class LPISFileTable {
                                    });
     }
 
+    /**
+     * Marks the file record as updated now. It is called after the records of the file were (re-)imported,
+     * so that the consumers keyed by the update time (such as the vector tile cache) see the new data.
+     */
+    public int touch(int id) throws DataAccessException {
+        return jdbcTemplate.update("UPDATE lpis_gsaa_file SET updated = ? WHERE id = ?",
+                                   preparedStatement -> {
+                                       preparedStatement.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+                                       preparedStatement.setInt(2, id);
+                                   });
+    }
+
+    public boolean exists(Site site, DataType fileType, int year) throws DataAccessException {
+        Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM lpis_gsaa_file WHERE site_id = ? AND file_type = ? AND year = ?",
+                                                    new Object[] { site.getId(), fileType.baseName(), year }, Integer.class);
+        return count != null && count > 0;
+    }
+
+    public Record select(Site site, DataType fileType, int year) throws DataAccessException {
+        return jdbcTemplate.queryForObject("SELECT id, site_id, file_name, file_type, year, crs, created, updated FROM lpis_gsaa_file WHERE site_id = ? AND file_type = ? AND year = ?",
+                                           new Object[] { site.getId(), fileType.baseName(), year },
+                                           (resultSet, i) -> {
+                                               Record record = new Record();
+                                               record.id = resultSet.getInt(1);
+                                               record.siteId = resultSet.getInt(2);
+                                               record.fileName = resultSet.getString(3);
+                                               record.fileType = DataType.fromBaseName(resultSet.getString(4));
+                                               record.year = resultSet.getInt(5);
+                                               record.crs = resultSet.getString(6);
+                                               record.created = resultSet.getTimestamp(7).toLocalDateTime();
+                                               record.updated = resultSet.getTimestamp(8).toLocalDateTime();
+                                               return record;
+                                           });
+    }
+
     public Record select(String fileName) throws DataAccessException {
         return jdbcTemplate.queryForObject("SELECT id, site_id, file_name, file_type, year, crs, created, updated FROM lpis_gsaa_file WHERE file_name = '" + fileName + "'",
                                            (resultSet, i) -> {
@@ -49,7 +49,7 @@ public class LPISTable extends InSituDataTable<Parcel> {
         List<Parcel> rows = new ArrayList<>();
         JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
         final WKTReader wktReader = new WKTReader();
-        jdbcTemplate.query(connection ->
+        rows.addAll(jdbcTemplate.query(connection ->
                 {
                     PreparedStatement statement =
                             connection.prepareStatement("SELECT identifier, orig_land_use_code, sys_land_use_code, area, st_astext(footprint), updated, source, attributes " +
@@ -77,7 +77,7 @@ public class LPISTable extends InSituDataTable<Parcel> {
                         parcel.setAttributes(attributes);
                     }
                     return parcel;
-                });
+                }));
         return rows;
     }
 
@@ -86,8 +86,8 @@ public class LPISTable extends InSituDataTable<Parcel> {
         JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
         Date updated = Date.valueOf(LocalDate.now());
         return jdbcTemplate.batchUpdate("INSERT INTO lpis (identifier, site_id, orig_land_use_code, sys_land_use_code, area, footprint, updated, source, attributes) " +
-                                         "VALUES (?,?,?,?,?,st_geogfromtext(?),?,?,?) ON CONFLICT (identifier) " +
-                                                "DO UPDATE SET orig_land_use_code = ?, sys_land_use_code = ?, area = ?, footprint = st_geogfromtext(?), updated = ?, source = ?, attributes = ?",
+                                         "VALUES (?,?,?,?,?,st_geogfromwkb(?),?,?,?) ON CONFLICT (identifier) " +
+                                                "DO UPDATE SET orig_land_use_code = ?, sys_land_use_code = ?, area = ?, footprint = st_geogfromwkb(?), updated = ?, source = ?, attributes = ?",
                                  new BatchPreparedStatementSetter() {
                                      @Override
                                      public void setValues(PreparedStatement preparedStatement, int row) throws SQLException {
@@ -107,7 +107,8 @@ public class LPISTable extends InSituDataTable<Parcel> {
                                          } else {
                                              preparedStatement.setNull(5, Types.DOUBLE);
                                          }
-                                         preparedStatement.setString(6, parcel.getFootprint().toText());
+                                         byte[] wkb = encodeFootprint(parcel.getFootprint());
+                                         preparedStatement.setBytes(6, wkb);
                                          preparedStatement.setDate(7, updated);
                                          preparedStatement.setString(8, parcel.getSourceFile());
                                          preparedStatement.setString(9, parcel.getAttributes());
@@ -122,7 +123,7 @@ public class LPISTable extends InSituDataTable<Parcel> {
                                          } else {
                                              preparedStatement.setNull(12, Types.DOUBLE);
                                          }
-                                         preparedStatement.setString(13, parcel.getFootprint().toText());
+                                         preparedStatement.setBytes(13, wkb);
                                          preparedStatement.setDate(14, updated);
                                          preparedStatement.setString(15, parcel.getSourceFile());
                                          preparedStatement.setString(16, parcel.getAttributes());
@@ -0,0 +1,120 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.esa.sen2agri.commons.Config;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ro.cs.tao.utils.Tuple;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads the parcels of a {@link GeneralizedLPISTable} that intersect a vector tile.
+ * The footprints are returned in Web Mercator (EPSG:3857), clipped by the database to the (buffered) tile envelope,
+ * together with the crop code attributes of the parcels. The simplification is left to
+ * {@link org.esa.sen4cap.shapefile.services.ConversionService#encodeTile}.
+ */
+public class ParcelTileTable {
+    private static final ParcelTileTable instance = new ParcelTileTable();
+    private static final String[] attributeColumns = {
+            "cr_co_gsaa", "cr_na_gsaa", "cr_co_l4a", "cr_na_l4a", "cr_cat"
+    };
+    private final JdbcTemplate jdbcTemplate;
+    private final Logger logger;
+
+    public static ParcelTileTable getInstance() { return instance; }
+
+    private ParcelTileTable() {
+        this.jdbcTemplate = new JdbcTemplate(Config.getPersistenceManager().getDataSource());
+        this.logger = Logger.getLogger(ParcelTileTable.class.getName());
+    }
+
+    /**
+     * Selects the parcels of the given file that intersect the tile envelope.
+     *
+     * @param tableName     The name of the parcels table
+     * @param fileId        The id of the <code>lpis_gsaa_file</code> record
+     * @param tileEnvelope  The tile envelope, in EPSG:3857
+     * @param buffer        The distance (in EPSG:3857 units) by which the geometries are allowed to exceed the tile
+     * @return  A list of (geometry, attributes) pairs
+     */
+    public List<Tuple<Geometry, Map<String, Object>>> select(String tableName, int fileId, Envelope tileEnvelope,
+                                                             double buffer) throws DataAccessException {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("SELECT ST_AsBinary(ST_ClipByBox2D(ST_Transform(footprint::geometry, 3857), ")
+               .append("ST_MakeEnvelope(?,?,?,?,3857))), item_id");
+        for (String column : attributeColumns) {
+            builder.append(", ").append(column);
+        }
+        builder.append(" FROM ").append(tableName)
+               .append(" WHERE file_id = ? AND footprint && ST_Transform(ST_MakeEnvelope(?,?,?,?,3857), 4326)::geography");
+        final String query = builder.toString();
+        logger.finest(query);
+        final List<Tuple<Geometry, Map<String, Object>>> features = new ArrayList<>();
+        final WKBReader reader = new WKBReader();
+        jdbcTemplate.query(query,
+                           preparedStatement -> {
+                               preparedStatement.setDouble(1, tileEnvelope.getMinX() - buffer);
+                               preparedStatement.setDouble(2, tileEnvelope.getMinY() - buffer);
+                               preparedStatement.setDouble(3, tileEnvelope.getMaxX() + buffer);
+                               preparedStatement.setDouble(4, tileEnvelope.getMaxY() + buffer);
+                               preparedStatement.setInt(5, fileId);
+                               preparedStatement.setDouble(6, tileEnvelope.getMinX());
+                               preparedStatement.setDouble(7, tileEnvelope.getMinY());
+                               preparedStatement.setDouble(8, tileEnvelope.getMaxX());
+                               preparedStatement.setDouble(9, tileEnvelope.getMaxY());
+                           },
+                           resultSet -> {
+                               final byte[] wkb = resultSet.getBytes(1);
+                               if (wkb == null) {
+                                   return;
+                               }
+                               final Geometry geometry;
+                               try {
+                                   geometry = reader.read(wkb);
+                               } catch (ParseException e) {
+                                   logger.warning(String.format("Invalid footprint for parcel %d: %s",
+                                                                resultSet.getLong(2), e.getMessage()));
+                                   return;
+                               }
+                               if (geometry.isEmpty()) {
+                                   return;
+                               }
+                               final Map<String, Object> attributes = new LinkedHashMap<>();
+                               attributes.put("id", resultSet.getLong(2));
+                               for (int i = 0; i < attributeColumns.length; i++) {
+                                   final Object value = resultSet.getObject(i + 3);
+                                   if (value != null) {
+                                       attributes.put(attributeColumns[i], value);
+                                   }
+                               }
+                               features.add(new Tuple<>(geometry, attributes));
+                           });
+        return features;
+    }
+}
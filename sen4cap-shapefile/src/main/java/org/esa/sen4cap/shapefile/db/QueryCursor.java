@@ -0,0 +1,156 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates the results of a query through a server-side cursor, so that only <code>fetchSize</code> rows
+ * are held in memory at a time.
+ * PostgreSQL uses a cursor only inside a transaction, hence the connection is kept out of auto-commit mode
+ * until the cursor is closed. The cursor must be closed (or the stream returned by {@link #stream()}
+ * must be closed) in order to release the connection.
+ *
+ * @param <T>   The type of the mapped rows
+ */
+public class QueryCursor<T> implements Iterator<T>, AutoCloseable {
+    private final DataSource dataSource;
+    private final Connection connection;
+    private final boolean autoCommit;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final RowMapper<T> rowMapper;
+    private final Logger logger = Logger.getLogger(QueryCursor.class.getName());
+    private T next;
+    private int rowNumber;
+    private boolean closed;
+
+    public static <T> QueryCursor<T> open(DataSource dataSource, String query, PreparedStatementSetter parameters,
+                                          int fetchSize, RowMapper<T> rowMapper) throws DataAccessException {
+        return new QueryCursor<>(dataSource, query, parameters, fetchSize, rowMapper);
+    }
+
+    private QueryCursor(DataSource dataSource, String query, PreparedStatementSetter parameters,
+                        int fetchSize, RowMapper<T> rowMapper) throws DataAccessException {
+        this.dataSource = dataSource;
+        this.rowMapper = rowMapper;
+        this.connection = DataSourceUtils.getConnection(dataSource);
+        PreparedStatement statement = null;
+        boolean autoCommit = true;
+        try {
+            autoCommit = this.connection.getAutoCommit();
+            this.connection.setAutoCommit(false);
+            statement = this.connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            if (parameters != null) {
+                parameters.setValues(statement);
+            }
+            this.statement = statement;
+            this.autoCommit = autoCommit;
+            this.resultSet = statement.executeQuery();
+        } catch (SQLException ex) {
+            closeQuietly(statement, autoCommit);
+            throw new UncategorizedSQLException("QueryCursor", query, ex);
+        }
+    }
+
+    /**
+     * Returns a sequential stream over the remaining rows. Closing the stream closes the cursor.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.next != null) {
+            return true;
+        }
+        if (this.closed) {
+            return false;
+        }
+        try {
+            if (this.resultSet.next()) {
+                this.next = this.rowMapper.mapRow(this.resultSet, this.rowNumber++);
+                return true;
+            }
+        } catch (SQLException ex) {
+            close();
+            throw new UncategorizedSQLException("QueryCursor", null, ex);
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final T current = this.next;
+        this.next = null;
+        return current;
+    }
+
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            try {
+                this.resultSet.close();
+            } catch (SQLException ex) {
+                logger.warning(String.format("Cannot close the result set: %s", ex.getMessage()));
+            }
+            closeQuietly(this.statement, this.autoCommit);
+        }
+    }
+
+    private void closeQuietly(PreparedStatement statement, boolean autoCommit) {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+            // the query didn't change anything, ending the transaction also closes the cursor on the server
+            this.connection.rollback();
+            this.connection.setAutoCommit(autoCommit);
+        } catch (SQLException ex) {
+            logger.warning(String.format("Cannot close the cursor: %s", ex.getMessage()));
+        } finally {
+            DataSourceUtils.releaseConnection(this.connection, this.dataSource);
+        }
+    }
+}
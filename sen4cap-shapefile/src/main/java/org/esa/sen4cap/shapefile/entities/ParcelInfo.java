@@ -19,16 +19,19 @@
 package org.esa.sen4cap.shapefile.entities;
 
 import java.time.LocalDate;
-import java.util.LinkedHashMap;
 
+/**
+ * Information of an L4C parcel. The ndvi, amplitude and coherence series are kept in primitive-backed
+ * {@link TimeSeries}, which are serialized as date-value maps.
+ */
 public class ParcelInfo {
     private String id;
     private String origId;
     private IntervalInfos practice;
     private IntervalInfos harvest;
-    private LinkedHashMap<LocalDate, Double> ndvi;
-    private LinkedHashMap<LocalDate, Double> amp;
-    private LinkedHashMap<LocalDate, Double> coh;
+    private TimeSeries ndvi;
+    private TimeSeries amp;
+    private TimeSeries coh;
 
     public String getId() {
         return id;
@@ -62,48 +65,60 @@ public class ParcelInfo {
         this.practice = practice;
     }
 
-    public LinkedHashMap<LocalDate, Double> getNdvi() {
+    public TimeSeries getNdvi() {
         return ndvi;
     }
 
-    public void setNdvi(LinkedHashMap<LocalDate, Double> ndvi) {
+    public void setNdvi(TimeSeries ndvi) {
         this.ndvi = ndvi;
     }
 
     public void addNdvi(LocalDate date, double value) {
+        addNdvi((int) date.toEpochDay(), value);
+    }
+
+    public void addNdvi(int epochDay, double value) {
         if (this.ndvi == null) {
-            this.ndvi = new LinkedHashMap<>();
+            this.ndvi = new TimeSeries();
         }
-        this.ndvi.put(date, value);
+        this.ndvi.add(epochDay, value);
     }
 
-    public LinkedHashMap<LocalDate, Double> getAmp() {
+    public TimeSeries getAmp() {
         return amp;
     }
 
-    public void setAmp(LinkedHashMap<LocalDate, Double> amp) {
+    public void setAmp(TimeSeries amp) {
         this.amp = amp;
     }
 
     public void addAmp(LocalDate date, double value) {
+        addAmp((int) date.toEpochDay(), value);
+    }
+
+    public void addAmp(int epochDay, double value) {
         if (this.amp == null) {
-            this.amp = new LinkedHashMap<>();
+            this.amp = new TimeSeries();
         }
-        this.amp.put(date, value);
+        this.amp.add(epochDay, value);
     }
 
-    public LinkedHashMap<LocalDate, Double> getCoh() {
+    public TimeSeries getCoh() {
         return coh;
     }
 
-    public void setCoh(LinkedHashMap<LocalDate, Double> coh) {
+    public void setCoh(TimeSeries coh) {
         this.coh = coh;
     }
 
     public void addCoh(LocalDate date, double value) {
+        addCoh((int) date.toEpochDay(), value);
+    }
+
+    public void addCoh(int epochDay, double value) {
         if (this.coh == null) {
-            this.coh = new LinkedHashMap<>();
+            this.coh = new TimeSeries();
         }
-        this.coh.put(date, value);
+        this.coh.add(epochDay, value);
     }
 }
@@ -0,0 +1,149 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.entities;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Series of (date, value) pairs backed by primitive arrays (dates are kept as epoch days).
+ * It is serialized to JSON as an object having the dates as keys, i.e. as a <code>Map&lt;LocalDate, Double&gt;</code>.
+ */
+@JsonSerialize(using = TimeSeries.Serializer.class)
+public class TimeSeries {
+    private int[] days;
+    private double[] values;
+    private int size;
+    // true while the dates were added in ascending order, which allows the duplicates to be found by binary search
+    private boolean ascending;
+
+    public TimeSeries() {
+        this(16);
+    }
+
+    public TimeSeries(int capacity) {
+        this.days = new int[Math.max(1, capacity)];
+        this.values = new double[this.days.length];
+        this.ascending = true;
+    }
+
+    /**
+     * Creates a series from parallel arrays of (distinct) epoch days and values, which are used as such.
+     */
+    public TimeSeries(int[] epochDays, double[] values) {
+        if (epochDays.length != values.length) {
+            throw new IllegalArgumentException("Dates and values must have the same length");
+        }
+        this.days = epochDays.length > 0 ? epochDays : new int[1];
+        this.values = values.length > 0 ? values : new double[1];
+        this.size = epochDays.length;
+        this.ascending = true;
+        for (int i = 1; i < this.size && this.ascending; i++) {
+            this.ascending = epochDays[i - 1] < epochDays[i];
+        }
+    }
+
+    /**
+     * Adds a value for the given date (as epoch day). If the date already exists, its value is replaced.
+     */
+    public void add(int epochDay, double value) {
+        // values usually come in ascending date order, then a new date is simply appended
+        if (this.size > 0 && (!this.ascending || epochDay <= this.days[this.size - 1])) {
+            final int index = indexOf(epochDay);
+            if (index >= 0) {
+                this.values[index] = value;
+                return;
+            }
+            this.ascending = false;
+        }
+        if (this.size == this.days.length) {
+            this.days = Arrays.copyOf(this.days, this.size << 1);
+            this.values = Arrays.copyOf(this.values, this.size << 1);
+        }
+        this.days[this.size] = epochDay;
+        this.values[this.size++] = value;
+    }
+
+    public void add(LocalDate date, double value) {
+        add((int) date.toEpochDay(), value);
+    }
+
+    public int size() { return this.size; }
+
+    public boolean isEmpty() { return this.size == 0; }
+
+    public int getEpochDay(int index) {
+        checkIndex(index);
+        return this.days[index];
+    }
+
+    public LocalDate getDate(int index) {
+        return LocalDate.ofEpochDay(getEpochDay(index));
+    }
+
+    public double getValue(int index) {
+        checkIndex(index);
+        return this.values[index];
+    }
+
+    public LinkedHashMap<LocalDate, Double> toMap() {
+        LinkedHashMap<LocalDate, Double> map = new LinkedHashMap<>();
+        for (int i = 0; i < this.size; i++) {
+            map.put(LocalDate.ofEpochDay(this.days[i]), this.values[i]);
+        }
+        return map;
+    }
+
+    private int indexOf(int epochDay) {
+        if (this.ascending) {
+            final int index = Arrays.binarySearch(this.days, 0, this.size, epochDay);
+            return index >= 0 ? index : -1;
+        }
+        int index = this.size - 1;
+        while (index >= 0 && this.days[index] != epochDay) {
+            index--;
+        }
+        return index;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, this.size));
+        }
+    }
+
+    public static class Serializer extends JsonSerializer<TimeSeries> {
+        @Override
+        public void serialize(TimeSeries series, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            for (int i = 0; i < series.size; i++) {
+                generator.writeFieldName(LocalDate.ofEpochDay(series.days[i]).toString());
+                generator.writeNumber(series.values[i]);
+            }
+            generator.writeEndObject();
+        }
+    }
+}
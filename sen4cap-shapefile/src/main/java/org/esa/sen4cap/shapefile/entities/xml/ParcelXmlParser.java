@@ -0,0 +1,130 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.entities.xml;
+
+import org.esa.sen4cap.shapefile.entities.IntervalInfos;
+import org.esa.sen4cap.shapefile.entities.ParcelInfo;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.time.LocalDate;
+
+/**
+ * Streaming (StAX) parser of the <code>fid</code> records of the L4C <code>_PLOT</code> files.
+ * It decodes a record directly into a {@link ParcelInfo}, without the intermediate {@link ParcelXml}
+ * and {@link Measure} objects built by JAXB.
+ */
+public final class ParcelXmlParser {
+    private static final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    private ParcelXmlParser() { }
+
+    /**
+     * Parses a <code>fid</code> element.
+     *
+     * @throws XMLStreamException if the fragment is not well-formed or is not a <code>fid</code> element
+     */
+    public static ParcelInfo parse(String contents) throws XMLStreamException {
+        final XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(contents));
+        try {
+            ParcelInfo info = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                final String name = reader.getLocalName();
+                if (info == null) {
+                    if (!"fid".equals(name)) {
+                        throw new XMLStreamException(String.format("Unexpected element '%s'", name));
+                    }
+                    info = new ParcelInfo();
+                    info.setId(reader.getAttributeValue(null, "id"));
+                    info.setOrigId(reader.getAttributeValue(null, "orig_id"));
+                    continue;
+                }
+                switch (name) {
+                    case "harvest":
+                        info.setHarvest(new IntervalInfos(reader.getAttributeValue(null, "start"),
+                                                          reader.getAttributeValue(null, "end")));
+                        break;
+                    case "practice":
+                        info.setPractice(new IntervalInfos(reader.getAttributeValue(null, "start"),
+                                                           reader.getAttributeValue(null, "end")));
+                        break;
+                    case "ndvi":
+                        info.addNdvi(epochDay(reader.getAttributeValue(null, "date")),
+                                     Double.parseDouble(reader.getAttributeValue(null, "val")));
+                        break;
+                    case "amp":
+                        info.addAmp(epochDay(reader.getAttributeValue(null, "date")),
+                                    Double.parseDouble(reader.getAttributeValue(null, "val")));
+                        break;
+                    case "coh":
+                        info.addCoh(epochDay(reader.getAttributeValue(null, "date")),
+                                    Double.parseDouble(reader.getAttributeValue(null, "val")));
+                        break;
+                    default:
+                        // wrappers (ndvis, amps, cohs) and unknown elements
+                        break;
+                }
+            }
+            if (info == null) {
+                throw new XMLStreamException("No 'fid' element found");
+            }
+            return info;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Fast path for yyyy-MM-dd dates, falling back to LocalDate.parse for anything else
+    private static int epochDay(String date) {
+        if (date != null && date.length() == 10 && date.charAt(4) == '-' && date.charAt(7) == '-') {
+            final int year = digits(date, 0, 4);
+            final int month = digits(date, 5, 7);
+            final int day = digits(date, 8, 10);
+            if (year >= 0 && month >= 0 && day >= 0) {
+                return (int) LocalDate.of(year, month, day).toEpochDay();
+            }
+        }
+        return (int) LocalDate.parse(date).toEpochDay();
+    }
+
+    private static int digits(String value, int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -18,10 +18,15 @@
 
 package org.esa.sen4cap.shapefile.parsers;
 
+import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.ConnectionBudget;
+import org.esa.sen4cap.shapefile.db.ContentHashTable;
 import org.esa.sen4cap.shapefile.db.DataType;
 import org.esa.sen4cap.shapefile.db.GeneralizedLPISTable;
+import org.esa.sen4cap.shapefile.db.LPISFileCheckpointTable;
 import org.esa.sen4cap.shapefile.db.LPISFileTable;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.feature.FeatureCollection;
@@ -48,11 +53,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class GenericParser {
     private static final int BATCH_SIZE = 5000;
+    private static final int CHUNK_SIZE = 500;
+    // how often a stage blocked on a full queue checks whether the import was aborted
+    private static final long QUEUE_POLL_SECONDS = 1;
+    private static final FeatureChunk END_OF_FEATURES = new FeatureChunk(-1, -1, null);
+    private static final RecordBatch END_OF_RECORDS = new RecordBatch(null, null);
     private final Logger logger;
     private final ProgressListener progressListener;
     private final int year;
@@ -62,7 +75,17 @@ public class GenericParser {
     private final String reprojectionCode;
     private String topic;
     private GeneralizedLPISTable table;
+    private CoordinateReferenceSystem sourceCrs;
+    private String crs;
+    // the bulk load decision taken once for all the files of a folder, null when the file decides for itself
+    private Boolean bulkLoadDecision;
     private final Map<String, Integer> conversionFlags;
+    // the first failure of a pipeline stage, which aborts the import
+    private final AtomicReference<Throwable> failure;
+    // the batches that could not be written in this run
+    private final AtomicLong failedBatches;
+    // the features that could not be read or decoded in this run
+    private final AtomicLong failedFeatures;
 
     public static GenericParser create(Site site, DataType type, int year, Path shapeFilePath, String reprojectionCode) {
         return new GenericParser(site, type, year, shapeFilePath, reprojectionCode);
@@ -77,7 +100,10 @@ public class GenericParser {
         this.fileType = fileType;
         this.year = year;
         this.reprojectionCode = reprojectionCode;
-        this.conversionFlags = new HashMap<>();
+        this.conversionFlags = new ConcurrentHashMap<>();
+        this.failure = new AtomicReference<>();
+        this.failedBatches = new AtomicLong();
+        this.failedFeatures = new AtomicLong();
         this.conversionFlags.put("NewID", 0);
         this.conversionFlags.put("newid", 0);
         this.conversionFlags.put("seqid", 0);
@@ -90,75 +116,307 @@ public class GenericParser {
 
     public GeneralizedLPISTable getTable() { return table; }
 
+    /**
+     * Sets whether the file is bulk loaded, as decided by {@link #prepare()} for all the files of a folder,
+     * instead of each file checking for a previous import while the others are already writing.
+     */
+    public void setBulkLoad(boolean bulkLoad) { this.bulkLoadDecision = bulkLoad; }
+
+    /**
+     * Creates the <code>lpis_gsaa_file</code> record and the table of the file, without importing any record.
+     * When the files of a folder are imported concurrently, this is done once before the imports start,
+     * so that they do not race on creating the same record and table.
+     *
+     * @return <code>true</code> if there was no previous import, hence the files can be bulk loaded
+     */
+    public boolean prepare() throws Exception {
+        final String shapeFileName = this.shapeFilePath.getFileName().toString();
+        readProjection();
+        final boolean fileExists = LPISFileTable.getInstance().exists(this.site, this.fileType, this.year);
+        saveFileRecord(shapeFileName);
+        final ShapefileDataStore dataStore = new ShapefileDataStore(this.shapeFilePath.toUri().toURL());
+        try {
+            openTable(dataStore.getFeatureSource(dataStore.getTypeNames()[0]).getFeatures(Filter.INCLUDE),
+                      !fileExists, shapeFileName);
+        } finally {
+            dataStore.dispose();
+        }
+        return !fileExists;
+    }
+
     public long parse(long offset) throws Exception {
+        return parse(offset, false);
+    }
+
+    /**
+     * Parses the shape file and imports its records.
+     *
+     * @param offset    The index of the first record to import
+     * @param resume    If <code>true</code>, the import starts after the last checkpoint saved for this file (if any)
+     */
+    public long parse(long offset, boolean resume) throws Exception {
+        return parse(offset, resume, false, false);
+    }
+
+    /**
+     * Re-imports the shape file, writing only the records whose content hash differs from the one stored
+     * by the previous import of the same <code>lpis_gsaa_file</code>.
+     * If there was no previous import or the file has no identifier column, all the records are imported.
+     *
+     * @param deleteMissing If <code>true</code>, the records of the previous import that are no longer in the file
+     *                      are deleted. It should be <code>false</code> when several shape files share the same
+     *                      <code>lpis_gsaa_file</code> (i.e. when a folder is imported).
+     */
+    public long parseIncremental(boolean deleteMissing) throws Exception {
+        return parse(0, false, true, deleteMissing);
+    }
+
+    private long parse(long offset, boolean resume, boolean incremental, boolean deleteMissing) throws Exception {
+        this.failure.set(null);
+        this.failedBatches.set(0);
+        this.failedFeatures.set(0);
         String shapeFileName = this.shapeFilePath.getFileName().toString();
         markStart(topic);
+        readProjection();
+        MathTransform mathTransform = null;
+        if (this.reprojectionCode != null && sourceCrs != null) {
+            CoordinateReferenceSystem targetCrs = CRS.decode(this.reprojectionCode);
+            try {
+                mathTransform = CRS.findMathTransform(sourceCrs, targetCrs);
+            } catch (Exception ex) {
+                // fall back to lenient transform if Bursa Wolf parameters are not provided
+                mathTransform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+            }
+        }
+        LPISFileTable fileTable = LPISFileTable.getInstance();
+        final boolean fileExists = this.bulkLoadDecision != null ?
+                !this.bulkLoadDecision : fileTable.exists(this.site, this.fileType, this.year);
+        final int fileId = saveFileRecord(shapeFileName);
+        final LPISFileCheckpointTable checkpointTable = LPISFileCheckpointTable.getInstance();
+        if (resume) {
+            final long committed = checkpointTable.select(fileId, shapeFileName);
+            if (committed > 0) {
+                logger.info(String.format("Resuming import of %s after record %d", shapeFileName, committed));
+                offset = committed;
+            }
+        }
+        // first-time loads go through the COPY-based bulk path
+        final boolean bulkLoad = offset <= 0 && !fileExists;
+        ShapefileDataStore dataStore = new ShapefileDataStore(this.shapeFilePath.toUri().toURL());
+        dataStore.setMemoryMapped(true);
+        String typeName = dataStore.getTypeNames()[0];
+        FeatureSource<SimpleFeatureType, SimpleFeature> source = dataStore.getFeatureSource(typeName);
+        Filter filter = Filter.INCLUDE;
+        FeatureCollection<SimpleFeatureType, SimpleFeature> collection = source.getFeatures(filter);
+        final long total = collection.size();
+        final Set<String> mandatoryColumnNames = GeneralizedLPISTable.mandatoryColumnNames();
+        final Set<String> optionalColumnNames = GeneralizedLPISTable.optionalColumnNames();
+        final String idColumn;
+        try {
+            idColumn = openTable(collection, bulkLoad, shapeFileName);
+        } catch (IOException ex) {
+            markEnd();
+            throw ex;
+        }
+        logger.info(String.format("%s contains %s records", shapeFileName, collection.size()));
+        // without an identifier, the records of two imports cannot be matched
+        final ContentHashTable hashTable = idColumn != null ? ContentHashTable.forTable(table.getName()) : null;
+        ImportDiff diff = null;
+        if (incremental) {
+            if (hashTable != null && fileExists) {
+                final ContentHashTable.Snapshot previous = hashTable.load(fileId);
+                logger.info(String.format("Comparing %s with the %d records of the previous import", shapeFileName, previous.size()));
+                diff = new ImportDiff(previous);
+            } else {
+                logger.info(String.format("No previous import with identifiers found for %s, all records will be imported",
+                                          shapeFileName));
+            }
+        }
+        final ImportDiff importDiff = diff;
+        final int workers = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_PARSER_WORKERS_CFG_KEY,
+                                                                           String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() - 2)))));
+        final int writers = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_PARSER_WRITERS_CFG_KEY, "2")));
+        final int queueSize = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_PARSER_QUEUE_SIZE_CFG_KEY, "4")));
+        final BlockingQueue<FeatureChunk> featureQueue = new ArrayBlockingQueue<>(queueSize * workers);
+        final BlockingQueue<RecordBatch> recordQueue = new ArrayBlockingQueue<>(queueSize * writers);
+        if (bulkLoad) {
+            logger.info(String.format("No previous import found for %s, bulk loading", shapeFileName));
+            table.beginBulkLoad(shapeFileName);
+        }
+        final long start = Math.max(offset, 0);
+        final boolean seek = start > 0 && IndexedFeatureIterator.canSeek(this.shapeFilePath);
+        // checkpoints are meaningless while the records are only staged
+        // an incremental import is always complete, when interrupted it is simply run again
+        final CheckpointTracker tracker = bulkLoad || incremental ? null : new CheckpointTracker(checkpointTable, fileId, shapeFileName, start);
+        final AtomicLong records = new AtomicLong(start);
+        final ExecutorService executor = Executors.newFixedThreadPool(workers + writers);
+        boolean merged = false;
+        try (FeatureIterator<SimpleFeature> features = seek ?
+                new IndexedFeatureIterator(dataStore, this.shapeFilePath, start) : collection.features();
+             OutputStream os = Files.newOutputStream(getLogFile(shapeFileName), StandardOpenOption.CREATE)) {
+            final String idCol = idColumn;
+            final MathTransform transform = mathTransform;
+            final List<Future<?>> workerTasks = new ArrayList<>(workers);
+            final List<Future<?>> writerTasks = new ArrayList<>(writers);
+            for (int i = 0; i < workers; i++) {
+                workerTasks.add(executor.submit(() -> decodeFeatures(featureQueue, recordQueue, idCol, mandatoryColumnNames,
+                                                                     optionalColumnNames, transform, fileId,
+                                                                     hashTable != null, importDiff)));
+            }
+            for (int i = 0; i < writers; i++) {
+                writerTasks.add(executor.submit(() -> writeRecords(recordQueue, records, total, bulkLoad, tracker,
+                                                                   hashTable, fileId, os)));
+            }
+            // The current thread is the (single) reader: the shapefile iterator is not thread-safe
+            long index = seek ? start : 0;
+            long chunkStart = start;
+            List<SimpleFeature> chunk = new ArrayList<>(CHUNK_SIZE);
+            while (features.hasNext()) {
+                SimpleFeature feature;
+                try {
+                    feature = features.next();
+                } catch (Exception ex) {
+                    failedFeatures.incrementAndGet();
+                    logger.warning("Parser error: " + ex.getMessage());
+                    continue;
+                } finally {
+                    index++;
+                }
+                if (index <= start) {
+                    chunkStart = index;
+                    continue;
+                }
+                chunk.add(feature);
+                if (chunk.size() == CHUNK_SIZE) {
+                    put(featureQueue, new FeatureChunk(chunkStart, index, chunk));
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                    chunkStart = index;
+                }
+            }
+            if (index > chunkStart) {
+                put(featureQueue, new FeatureChunk(chunkStart, index, chunk));
+            }
+            for (int i = 0; i < workers; i++) {
+                put(featureQueue, END_OF_FEATURES);
+            }
+            awaitAll(workerTasks);
+            for (int i = 0; i < writers; i++) {
+                put(recordQueue, END_OF_RECORDS);
+            }
+            awaitAll(writerTasks);
+            checkFailure();
+            if (bulkLoad) {
+                logger.info(String.format("Merging %s staged records", records.get()));
+                table.endBulkLoad();
+                merged = true;
+            }
+            if (importDiff != null) {
+                long deleted = 0;
+                if (deleteMissing && (this.failedFeatures.get() > 0 || this.failedBatches.get() > 0)) {
+                    // the records which failed were not marked as seen, they would be deleted as well
+                    logger.warning(String.format("%d features and %d batches of %s failed, the missing records are not deleted",
+                                                 this.failedFeatures.get(), this.failedBatches.get(), shapeFileName));
+                } else if (deleteMissing) {
+                    final long[] missing = importDiff.missing();
+                    if (missing.length > 0) {
+                        deleted = table.delete(fileId, missing);
+                        hashTable.delete(fileId, missing);
+                    }
+                }
+                final String summary = String.format("%s: %d inserted, %d updated, %d deleted, %d unchanged",
+                                                     shapeFileName, importDiff.inserted.get(), importDiff.updated.get(),
+                                                     deleted, importDiff.unchanged.get());
+                logger.info(summary);
+                progressListener.notifyProgress(summary, 1.0);
+            }
+            os.flush();
+        } catch (Exception ex) {
+            if (bulkLoad && !merged) {
+                table.abortBulkLoad();
+                // the hashes must not describe records that were not loaded
+                if (hashTable != null) {
+                    hashTable.deleteAll(fileId);
+                }
+            }
+            markEnd();
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (tracker != null && this.failedBatches.get() > 0) {
+            // the checkpoint stops before the first failed batch, resuming the import writes it again
+            logger.warning(String.format("%d batches of %s could not be written, the checkpoint is kept",
+                                         this.failedBatches.get(), shapeFileName));
+        } else {
+            // the file was completely imported, no need to keep its checkpoint
+            checkpointTable.delete(fileId, shapeFileName);
+        }
+        // bump the update time of the file, which invalidates the cached vector tiles of the table
+        fileTable.touch(fileId);
+        markEnd();
+        return records.get();
+    }
+
+    /**
+     * Reads the CRS of the file from its .qpj (or .prj) file.
+     */
+    private void readProjection() throws IOException {
+        String shapeFileName = this.shapeFilePath.getFileName().toString();
         Path prjFile = this.shapeFilePath.resolveSibling(shapeFileName.replace(".shp", ".qpj"));
         if (!Files.exists(prjFile)) {
             prjFile = this.shapeFilePath.resolveSibling(shapeFileName.replace(".shp", ".prj"));
         }
         String wkt = new String(Files.readAllBytes(prjFile));
-        CoordinateReferenceSystem sourceCrs = null;
-        String crs = null;
+        this.sourceCrs = null;
+        this.crs = null;
         try {
-            sourceCrs = CRS.parseWKT(wkt);
+            this.sourceCrs = CRS.parseWKT(wkt);
             if (sourceCrs != null) {
                 if (sourceCrs.getIdentifiers() != null && sourceCrs.getIdentifiers().size() > 0) {
                     ReferenceIdentifier identifier = sourceCrs.getIdentifiers().stream().findFirst().get();
-                    crs = identifier.getCodeSpace() + ":" + identifier.getCode();
+                    this.crs = identifier.getCodeSpace() + ":" + identifier.getCode();
                 } else {
                     String lowerCase = sourceCrs.getName().toString().toLowerCase();
                     int idx = lowerCase.indexOf("utm_zone");
                     if (idx > 0) {
                         idx = lowerCase.lastIndexOf("_");
-                        crs = "EPSG:32" + (lowerCase.endsWith("n") ? "6" : "7") + lowerCase.substring(idx + 1, idx + 3);
+                        this.crs = "EPSG:32" + (lowerCase.endsWith("n") ? "6" : "7") + lowerCase.substring(idx + 1, idx + 3);
                     } else {
-                        crs = wkt;
+                        this.crs = wkt;
                     }
                 }
             }
         } catch (FactoryException e) {
             logger.warning(String.format("Cannot determine the source CRS: %s", e.getMessage()));
         }
-        MathTransform mathTransform = null;
-        if (this.reprojectionCode != null && sourceCrs != null) {
-            CoordinateReferenceSystem targetCrs = CRS.decode(this.reprojectionCode);
-            try {
-                mathTransform = CRS.findMathTransform(sourceCrs, targetCrs);
-            } catch (Exception ex) {
-                // fall back to lenient transform if Bursa Wolf parameters are not provided
-                mathTransform = CRS.findMathTransform(sourceCrs, targetCrs, true);
-            }
-        }
+    }
+
+    private int saveFileRecord(String shapeFileName) throws Exception {
         LPISFileTable fileTable = LPISFileTable.getInstance();
-        if (fileTable.insertOrUpdate(shapeFileName, this.site, this.fileType, this.year, this.reprojectionCode != null ? this.reprojectionCode : crs) == 0) {
+        if (fileTable.insertOrUpdate(shapeFileName, this.site, this.fileType, this.year, this.reprojectionCode != null ? this.reprojectionCode : this.crs) == 0) {
             throw new Exception(String.format("Cannot insert/update the file record for %s", shapeFileName));
         }
-        LPISFileTable.Record fileRecord = fileTable.select(shapeFileName);
-        int fileId = fileRecord.getId();
-        ShapefileDataStore dataStore = new ShapefileDataStore(this.shapeFilePath.toUri().toURL());
-        dataStore.setMemoryMapped(true);
-        String typeName = dataStore.getTypeNames()[0];
-        FeatureSource<SimpleFeatureType, SimpleFeature> source = dataStore.getFeatureSource(typeName);
-        Filter filter = Filter.INCLUDE;
-        FeatureCollection<SimpleFeatureType, SimpleFeature> collection = source.getFeatures(filter);
-        long total = collection.size();
-        int counter = 0;
-        long records = 0;
-        List<GeneralizedLPISTable.Record> batch = new ArrayList<>(BATCH_SIZE);
+        return fileTable.select(this.site, this.fileType, this.year).getId();
+    }
+
+    /**
+     * Checks the attributes of the first feature and creates (or opens) the table with the additional columns it has.
+     *
+     * @return the name of the identifier column, or <code>null</code> if the features have none
+     */
+    private String openTable(FeatureCollection<SimpleFeatureType, SimpleFeature> collection, boolean bulkLoad,
+                             String shapeFileName) throws Exception {
+        String idColumn = null;
         final Set<String> mandatoryColumnNames = GeneralizedLPISTable.mandatoryColumnNames();
         final Set<String> optionalColumnNames = GeneralizedLPISTable.optionalColumnNames();
-        String idColumn = null;
         try (FeatureIterator<SimpleFeature> tester = collection.features()) {
             if (tester.hasNext()) {
                 SimpleFeature next = tester.next();
                 if (next.getAttributeCount() == 0) {
-                    markEnd();
                     throw new IOException(String.format("This parser is not intended for '%s' (no attributes found)",
                                                         shapeFileName));
                 }
                 if (!canParse(next)) {
-                    markEnd();
                     throw new IOException(String.format("This parser is not intended for '%s' (expected attributes not found; maybe wrong shapefile type?)",
                                                         shapeFileName));
                 }
@@ -167,77 +425,166 @@ public class GenericParser {
                                                            .collect(Collectors.toList());
                 columns.removeAll(mandatoryColumnNames);
                 columns.removeAll(optionalColumnNames);
-                table = GeneralizedLPISTable.create(this.site, this.fileType, columns);
+                table = bulkLoad ?
+                        GeneralizedLPISTable.createForBulkLoad(this.site, this.fileType, columns) :
+                        GeneralizedLPISTable.create(this.site, this.fileType, columns);
                 idColumn = idColName(next);
             }
         }
         if (table == null) {
             throw new Exception("Cannot parse file");
         }
-        logger.info(String.format("%s contains %s records", shapeFileName, collection.size()));
-        try (FeatureIterator<SimpleFeature> features = collection.features();
-             OutputStream os = Files.newOutputStream(getLogFile(shapeFileName), StandardOpenOption.CREATE)) {
-            while (features.hasNext()) {
-                if (offset > 0 && ++counter <= offset) {
-                    features.next();
-                    continue;
-                } else {
-                    if (offset > 0) {
-                        records = offset;
-                        offset = -1;
-                        counter = 0;
+        return idColumn;
+    }
+
+    /**
+     * Decoding stage: reprojects the features and converts them to table records, which are grouped in batches
+     * and handed to the writers. A batch always contains whole chunks, so that the writers can tell which
+     * ranges of the file were committed.
+     */
+    private void decodeFeatures(BlockingQueue<FeatureChunk> input,
+                                BlockingQueue<RecordBatch> output,
+                                String idColumn, Set<String> mandatoryColumnNames, Set<String> optionalColumnNames,
+                                MathTransform mathTransform, int fileId, boolean computeHashes, ImportDiff diff) {
+        RecordBatch batch = new RecordBatch(new ArrayList<>(BATCH_SIZE), new ArrayList<>());
+        try {
+            FeatureChunk chunk;
+            while ((chunk = input.take()) != END_OF_FEATURES) {
+                for (SimpleFeature feature : chunk.features) {
+                    try {
+                        GeneralizedLPISTable.Record parcel = parseFeature(table, idColumn, mandatoryColumnNames, optionalColumnNames, feature, mathTransform);
+                        if (parcel != null) {
+                            parcel.setFileId(fileId);
+                            if (computeHashes) {
+                                parcel.setContentHash(parcel.computeContentHash());
+                            }
+                            if (diff == null || diff.isChanged(parcel)) {
+                                batch.records.add(parcel);
+                            } else {
+                                batch.unchanged++;
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failedFeatures.incrementAndGet();
+                        logger.warning("Parser error: " + ex.getMessage());
                     }
                 }
+                batch.ranges.add(new long[] { chunk.start, chunk.end });
+                if (batch.records.size() >= BATCH_SIZE) {
+                    put(output, batch);
+                    batch = new RecordBatch(new ArrayList<>(BATCH_SIZE), new ArrayList<>());
+                }
+            }
+            if (batch.ranges.size() > 0) {
+                put(output, batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Persistence stage: writes the batches to the database, reports the progress and advances the checkpoint.
+     */
+    private void writeRecords(BlockingQueue<RecordBatch> input, AtomicLong records, long total,
+                              boolean bulkLoad, CheckpointTracker tracker,
+                              ContentHashTable hashTable, int fileId, OutputStream errorLog) {
+        try {
+            RecordBatch batch;
+            while ((batch = input.take()) != END_OF_RECORDS) {
+                // a failed batch must not stop the writer, the other stages would wait for it forever
                 try {
-                    SimpleFeature feature = features.next();
-                    GeneralizedLPISTable.Record parcel = parseFeature(table, idColumn, mandatoryColumnNames, optionalColumnNames, feature, mathTransform);
-                    if (parcel != null) {
-                        parcel.setFileId(fileId);
-                        batch.add(parcel);
-                    }
-                    if (++counter == BATCH_SIZE) {
-                        records += BATCH_SIZE;
+                    boolean written = true;
+                    if (batch.records.size() > 0) {
                         try {
-                            table.insertOrUpdate(batch);
-                        } catch (Exception inner) {
-                            String message = inner.getMessage();
-                            int idx;
-                            if ((idx = message.indexOf("Detail: ")) >= 0) {
-                                message = message.substring(idx, message.indexOf(".", idx)).replace("Detail: ", "");
+                            final List<GeneralizedLPISTable.Record> rows = batch.records;
+                            ConnectionBudget.execute(() -> bulkLoad ? table.copy(rows) : table.insertOrUpdate(rows).length);
+                            // the hashes are saved only once the records were written
+                            if (hashTable != null) {
+                                ConnectionBudget.execute(() -> hashTable.save(fileId, rows).length);
+                            }
+                        } catch (Exception ex) {
+                            written = false;
+                            failedBatches.incrementAndGet();
+                            final String message = errorMessage(ex);
+                            synchronized (errorLog) {
+                                try {
+                                    errorLog.write(message.getBytes());
+                                    errorLog.write(10);
+                                } catch (IOException e) {
+                                    logger.warning(e.getMessage());
+                                }
                             }
-                            os.write(message.getBytes());
-                            os.write(10);
                             logger.fine("Error saving to database: " + message);
                         }
-                        batch.clear();
-                        counter = 0;
-                        progressListener.notifyProgress((double) records / (double) total);
                     }
+                    // a failed batch stays pending, so that a resumed import starts again from it
+                    if (tracker != null && written) {
+                        tracker.completed(batch.ranges);
+                    }
+                    progressListener.notifyProgress((double) records.addAndGet(batch.records.size() + batch.unchanged) / (double) total);
                 } catch (Exception ex) {
-                    logger.warning("Parser error: " + ex.getMessage());
+                    logger.warning(String.format("Cannot complete batch: %s", errorMessage(ex)));
                 }
             }
-            if (batch.size() > 0) {
-                records += batch.size();
-                try {
-                    table.insertOrUpdate(batch);
-                } catch (Exception ex) {
-                    String message = ex.getMessage();
-                    int idx;
-                    if ((idx = message.indexOf("Detail: ")) >= 0) {
-                        message = message.substring(idx, message.indexOf(".", idx)).replace("Detail: ", "");
-                    }
-                    os.write(message.getBytes());
-                    os.write(10);
-                    logger.fine("Error saving to database: " + message);
-                }
-                batch.clear();
-                progressListener.notifyProgress((double) records / (double) total);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Hands an item to the next stage. The queue is polled instead of blocking on it, so that a stage
+     * waiting for a failed one gives up instead of blocking forever.
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException, IOException {
+        checkFailure();
+        while (!queue.offer(item, QUEUE_POLL_SECONDS, TimeUnit.SECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (this.failure.compareAndSet(null, cause)) {
+            logger.severe(String.format("Import stage failed: %s", errorMessage(cause)));
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable cause = this.failure.get();
+        if (cause != null) {
+            throw new IOException(String.format("Import of %s aborted: %s", this.shapeFilePath.getFileName(),
+                                                errorMessage(cause)), cause);
+        }
+    }
+
+    /**
+     * Returns the message of the exception, reduced to its detail part for database errors.
+     */
+    private static String errorMessage(Throwable ex) {
+        String message = ex.getMessage();
+        if (message == null) {
+            return ex.getClass().getSimpleName();
+        }
+        final int idx = message.indexOf("Detail: ");
+        if (idx >= 0) {
+            final int end = message.indexOf(".", idx);
+            message = message.substring(idx + "Detail: ".length(), end > idx ? end : message.length());
+        }
+        return message;
+    }
+
+    private void awaitAll(List<Future<?>> tasks) throws InterruptedException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                fail(e.getCause());
             }
-            os.flush();
         }
-        markEnd();
-        return records;
     }
 
     private boolean canParse(SimpleFeature sample) {
@@ -404,4 +751,124 @@ public class GenericParser {
     private void markEnd() {
         this.progressListener.ended();
     }
+
+    /**
+     * A run of consecutive features of the file, from record <code>start</code> (exclusive)
+     * to record <code>end</code> (inclusive).
+     */
+    private static class FeatureChunk {
+        private final long start;
+        private final long end;
+        private final List<SimpleFeature> features;
+
+        FeatureChunk(long start, long end, List<SimpleFeature> features) {
+            this.start = start;
+            this.end = end;
+            this.features = features;
+        }
+    }
+
+    private static class RecordBatch {
+        private final List<GeneralizedLPISTable.Record> records;
+        private final List<long[]> ranges;
+        private int unchanged;
+
+        RecordBatch(List<GeneralizedLPISTable.Record> records, List<long[]> ranges) {
+            this.records = records;
+            this.ranges = ranges;
+        }
+    }
+
+    /**
+     * Compares the decoded records with the content hashes of the previous import of the same file.
+     */
+    private static class ImportDiff {
+        private final ContentHashTable.Snapshot previous;
+        private final byte[] seen;
+        private final AtomicLong inserted = new AtomicLong();
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+
+        ImportDiff(ContentHashTable.Snapshot previous) {
+            this.previous = previous;
+            this.seen = new byte[previous.size()];
+        }
+
+        /**
+         * Returns <code>true</code> if the record is new or its content changed since the previous import.
+         * Each decoding thread marks distinct entries, and the marks are read after the decoders completed.
+         */
+        boolean isChanged(GeneralizedLPISTable.Record record) {
+            final int idx = record.getId() != null ? this.previous.indexOf(record.getId()) : -1;
+            if (idx < 0) {
+                this.inserted.incrementAndGet();
+                return true;
+            }
+            this.seen[idx] = 1;
+            if (this.previous.hashAt(idx) == record.getContentHash()) {
+                this.unchanged.incrementAndGet();
+                return false;
+            }
+            this.updated.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Returns the identifiers of the records of the previous import that were not found in this one.
+         */
+        long[] missing() {
+            int count = 0;
+            for (byte mark : this.seen) {
+                if (mark == 0) {
+                    count++;
+                }
+            }
+            final long[] ids = new long[count];
+            int idx = 0;
+            for (int i = 0; i < this.seen.length; i++) {
+                if (this.seen[i] == 0) {
+                    ids[idx++] = this.previous.idAt(i);
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Since batches are committed out of order by the writers, the checkpoint is the end of the longest
+     * sequence of committed chunks starting at the beginning of the import.
+     */
+    private class CheckpointTracker {
+        private final LPISFileCheckpointTable checkpointTable;
+        private final int fileId;
+        private final String fileName;
+        private final Map<Long, Long> pending;
+        private long committed;
+
+        CheckpointTracker(LPISFileCheckpointTable checkpointTable, int fileId, String fileName, long start) {
+            this.checkpointTable = checkpointTable;
+            this.fileId = fileId;
+            this.fileName = fileName;
+            this.pending = new HashMap<>();
+            this.committed = start;
+        }
+
+        synchronized void completed(List<long[]> ranges) {
+            for (long[] range : ranges) {
+                this.pending.put(range[0], range[1]);
+            }
+            final long previous = this.committed;
+            Long end;
+            while ((end = this.pending.remove(this.committed)) != null) {
+                this.committed = end;
+            }
+            if (this.committed > previous) {
+                try {
+                    this.checkpointTable.save(this.fileId, this.fileName, this.committed);
+                } catch (Exception ex) {
+                    logger.warning(String.format("Cannot save checkpoint for %s: %s", this.fileName, ex.getMessage()));
+                }
+            }
+        }
+    }
 }
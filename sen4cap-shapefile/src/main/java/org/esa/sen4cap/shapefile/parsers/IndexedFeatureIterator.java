@@ -0,0 +1,149 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.parsers;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.dbf.DbaseFileReader;
+import org.geotools.data.shapefile.files.ShpFiles;
+import org.geotools.data.shapefile.shp.IndexFile;
+import org.geotools.data.shapefile.shp.ShapefileReader;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+/**
+ * Feature iterator that starts at a given feature of a shapefile.
+ * Instead of decoding and discarding the records before the start one, the .shp reader is positioned
+ * using the offset found in the .shx index.
+ * Like the GeoTools reader, the iterator skips the records marked as deleted in the .dbf file, hence the start
+ * feature is not always the record with the same number: the deletion flags of the previous .dbf records
+ * (without decoding their attributes) are read to find it.
+ */
+class IndexedFeatureIterator implements FeatureIterator<SimpleFeature> {
+    private final ShapefileReader shpReader;
+    private final DbaseFileReader dbfReader;
+    private final SimpleFeatureBuilder builder;
+    private final String typeName;
+    private final boolean exhausted;
+    private final int fieldCount;
+    // the number of the next record to read (0-based)
+    private int recordNumber;
+    private SimpleFeature nextFeature;
+
+    /**
+     * Checks if the .shx and .dbf companions of the shape file exist, so that the records can be directly accessed.
+     */
+    static boolean canSeek(Path shapeFilePath) {
+        final String fileName = shapeFilePath.getFileName().toString();
+        final String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+        return (Files.exists(shapeFilePath.resolveSibling(baseName + ".shx")) || Files.exists(shapeFilePath.resolveSibling(baseName + ".SHX"))) &&
+                (Files.exists(shapeFilePath.resolveSibling(baseName + ".dbf")) || Files.exists(shapeFilePath.resolveSibling(baseName + ".DBF")));
+    }
+
+    IndexedFeatureIterator(ShapefileDataStore dataStore, Path shapeFilePath, long startIndex) throws IOException {
+        final ShpFiles shpFiles = new ShpFiles(shapeFilePath.toFile());
+        final SimpleFeatureType schema = dataStore.getSchema();
+        final Charset charset = dataStore.getCharset() != null ? dataStore.getCharset() : StandardCharsets.ISO_8859_1;
+        this.typeName = schema.getTypeName();
+        this.builder = new SimpleFeatureBuilder(schema);
+        this.shpReader = new ShapefileReader(shpFiles, false, true, new GeometryFactory());
+        this.dbfReader = new DbaseFileReader(shpFiles, true, charset);
+        this.fieldCount = this.dbfReader.getHeader().getNumFields();
+        boolean pastEnd = false;
+        if (startIndex > 0) {
+            long skipped = 0;
+            while (skipped < startIndex && this.dbfReader.hasNext()) {
+                if (!this.dbfReader.readRow().isDeleted()) {
+                    skipped++;
+                }
+                this.recordNumber++;
+            }
+            final IndexFile indexFile = new IndexFile(shpFiles, true);
+            try {
+                if (skipped < startIndex || this.recordNumber >= indexFile.getRecordCount()) {
+                    pastEnd = true;
+                } else {
+                    this.shpReader.goTo(indexFile.getOffsetInBytes(this.recordNumber));
+                }
+            } finally {
+                indexFile.close();
+            }
+        }
+        this.exhausted = pastEnd;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.nextFeature == null && !this.exhausted) {
+            try {
+                this.nextFeature = readNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return this.nextFeature != null;
+    }
+
+    @Override
+    public SimpleFeature next() throws NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SimpleFeature feature = this.nextFeature;
+        this.nextFeature = null;
+        return feature;
+    }
+
+    private SimpleFeature readNext() throws IOException {
+        while (this.shpReader.hasNext() && this.dbfReader.hasNext()) {
+            final ShapefileReader.Record record = this.shpReader.nextRecord();
+            final DbaseFileReader.Row row = this.dbfReader.readRow();
+            this.recordNumber++;
+            if (row.isDeleted()) {
+                continue;
+            }
+            this.builder.add(record.shape());
+            for (int i = 0; i < this.fieldCount; i++) {
+                this.builder.add(row.read(i));
+            }
+            // feature ids of shapefiles are the 1-based record numbers
+            return this.builder.buildFeature(this.typeName + "." + this.recordNumber);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.shpReader.close();
+        } catch (IOException ignored) { }
+        try {
+            this.dbfReader.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -128,8 +128,15 @@ public abstract class Parser<RecordType extends VectorRecord> {
                 }
             }
             logger.info(String.format("%s contains %s records", shapeFileName, collection.size()));
-            try (FeatureIterator<SimpleFeature> features = collection.features();
+            // jump directly to the offset record using the .shx index instead of reading all the previous records
+            final boolean seek = offset > 0 && IndexedFeatureIterator.canSeek(this.shapeFilePath);
+            try (FeatureIterator<SimpleFeature> features = seek ?
+                    new IndexedFeatureIterator(dataStore, this.shapeFilePath, offset) : collection.features();
                  OutputStream os = Files.newOutputStream(getLogFile(shapeFileName), StandardOpenOption.CREATE)) {
+                if (seek) {
+                    records = offset;
+                    offset = -1;
+                }
                 while (features.hasNext()) {
                     if (offset > 0 && ++counter <= offset) {
                         features.next();
@@ -19,9 +19,13 @@
 package org.esa.sen4cap.shapefile.services;
 
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import ro.cs.tao.utils.Tuple;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author Cosmin Cara
@@ -29,4 +33,15 @@ import java.util.Collection;
 public interface ConversionService {
     byte[] encodeSingle(Geometry geometry);
     byte[] encode(Collection<Geometry> geometries);
+    /**
+     * Encodes the given features as a single layer vector tile.
+     * The features are clipped to the tile envelope (plus a small buffer), simplified with a tolerance depending
+     * on the zoom level and their coordinates are quantized to the tile extent.
+     *
+     * @param layerName     The name of the tile layer
+     * @param tileEnvelope  The envelope of the tile, in the same CRS as the feature geometries
+     * @param zoom          The zoom level of the tile
+     * @param features      The (geometry, attributes) pairs of the features
+     */
+    byte[] encodeTile(String layerName, Envelope tileEnvelope, int zoom, List<Tuple<Geometry, Map<String, Object>>> features);
 }
@@ -0,0 +1,50 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services;
+
+import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.DataType;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public interface ExportService {
+
+    enum Format {
+        FLATGEOBUF("fgb"),
+        GEOPACKAGE("gpkg");
+
+        private final String extension;
+
+        Format(String extension) { this.extension = extension; }
+
+        public String extension() { return extension; }
+
+        public static Format fromExtension(String extension) {
+            return Arrays.stream(values()).filter(v -> v.extension.equalsIgnoreCase(extension)).findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * Exports the parcels of the given type imported for the given site and year to a file.
+     *
+     * @return  The number of exported parcels
+     */
+    long exportParcels(Site site, DataType fileType, int year, Format format, Path target) throws Exception;
+}
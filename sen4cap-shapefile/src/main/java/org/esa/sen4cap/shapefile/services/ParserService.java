@@ -25,4 +25,18 @@ import java.nio.file.Path;
 
 public interface ParserService {
     long updateDatabase(Site site, DataType fileType, int year, Path shapeFile, String epsgCode, long offset) throws Exception;
+
+    /**
+     * Imports the given shape file (or all the shape files in the given folder).
+     * If <code>resume</code> is <code>true</code>, the import of a file that was previously interrupted
+     * continues after its last saved checkpoint.
+     */
+    long updateDatabase(Site site, DataType fileType, int year, Path shapeFile, String epsgCode, boolean resume) throws Exception;
+
+    /**
+     * Re-imports the given shape file (or all the shape files in the given folder), writing only the records
+     * that were added or changed since the previous import. The records that are no longer present are deleted
+     * only when a single shape file is imported.
+     */
+    long updateDatabaseIncremental(Site site, DataType fileType, int year, Path shapeFile, String epsgCode) throws Exception;
 }
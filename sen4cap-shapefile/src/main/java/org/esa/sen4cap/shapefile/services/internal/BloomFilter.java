@@ -0,0 +1,76 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact probabilistic set of parcel identifiers (about 10 bits per identifier, with a false positive
+ * rate of about 1%). A negative answer is always exact.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_FUNCTIONS = 7;
+    private final long[] bits;
+    private final long bitCount;
+
+    BloomFilter(int expectedKeys) {
+        final long size = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        this.bits = new long[(int) ((size + 63) >>> 6)];
+        this.bitCount = (long) this.bits.length << 6;
+    }
+
+    void add(ByteBuffer buffer, int position, int length) {
+        final long hash = hash(buffer, position, length);
+        final int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASH_FUNCTIONS; i++) {
+            final long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitCount;
+            this.bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+        final int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= HASH_FUNCTIONS; i++) {
+            final long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bitCount;
+            if ((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a followed by a finalization mix, so that both halves are usable as independent hashes
+    private static long hash(ByteBuffer buffer, int position, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = position; i < position + length; i++) {
+            hash ^= buffer.get(i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -20,15 +20,32 @@ package org.esa.sen4cap.shapefile.services.internal;
 
 import no.ecc.vectortile.VectorTileEncoder;
 import org.esa.sen4cap.shapefile.services.ConversionService;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.locationtech.jts.precision.GeometryPrecisionReducer;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.springframework.stereotype.Service;
+import ro.cs.tao.utils.Tuple;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author Cosmin Cara
  */
+@Service("vectorTileConversionService")
 public class ConversionServiceImpl implements ConversionService {
+    private static final int TILE_EXTENT = 4096;
+    private static final int TILE_BUFFER = 64;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final PrecisionModel extentPrecision = new PrecisionModel(1.0);
+
     @Override
     public byte[] encodeSingle(Geometry geometry) {
         Collection<Geometry> single = new HashSet<>();
@@ -48,4 +65,73 @@ public class ConversionServiceImpl implements ConversionService {
         JtsMvt mvt = new JtsMvt(layer);
         return MvtEncoder.encode(mvt);*/
     }
+
+    @Override
+    public byte[] encodeTile(String layerName, Envelope tileEnvelope, int zoom, List<Tuple<Geometry, Map<String, Object>>> features) {
+        VectorTileEncoder encoder = new VectorTileEncoder(TILE_EXTENT, TILE_BUFFER, false);
+        if (features != null && !features.isEmpty()) {
+            // all the processing is done in the tile space: [0, TILE_EXTENT) with the origin in the upper left corner
+            final double scaleX = TILE_EXTENT / tileEnvelope.getWidth();
+            final double scaleY = TILE_EXTENT / tileEnvelope.getHeight();
+            final AffineTransformation toTileSpace = new AffineTransformation(scaleX, 0, -tileEnvelope.getMinX() * scaleX,
+                                                                              0, -scaleY, tileEnvelope.getMaxY() * scaleY);
+            final Envelope clipEnvelope = new Envelope(-TILE_BUFFER, TILE_EXTENT + TILE_BUFFER,
+                                                       -TILE_BUFFER, TILE_EXTENT + TILE_BUFFER);
+            final Geometry clipGeometry = geometryFactory.toGeometry(clipEnvelope);
+            final double tolerance = simplificationTolerance(zoom);
+            final GeometryPrecisionReducer quantizer = new GeometryPrecisionReducer(extentPrecision);
+            for (Tuple<Geometry, Map<String, Object>> feature : features) {
+                Geometry geometry = toTileSpace.transform(feature.getKeyOne());
+                final Envelope envelope = geometry.getEnvelopeInternal();
+                if (!clipEnvelope.intersects(envelope) ||
+                        (geometry.getDimension() == 2 && envelope.getWidth() < tolerance && envelope.getHeight() < tolerance)) {
+                    // outside the tile or smaller than the simplification tolerance
+                    continue;
+                }
+                if (!clipEnvelope.contains(envelope)) {
+                    geometry = clip(geometry, clipGeometry);
+                }
+                if (tolerance > 0 && geometry.getDimension() > 0) {
+                    geometry = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+                }
+                geometry = quantize(quantizer, geometry);
+                if (geometry != null && !geometry.isEmpty()) {
+                    encoder.addFeature(layerName, feature.getKeyTwo(), geometry);
+                }
+            }
+        }
+        return encoder.encode();
+    }
+
+    /**
+     * Returns the simplification tolerance, in tile extent units, for the given zoom level.
+     * The low zoom levels show many small parcels in a tile, hence a coarser simplification is acceptable.
+     */
+    static double simplificationTolerance(int zoom) {
+        if (zoom < 12) {
+            return 2.0;
+        } else if (zoom < 16) {
+            return 1.0;
+        } else {
+            return 0.5;
+        }
+    }
+
+    private Geometry clip(Geometry geometry, Geometry clipGeometry) {
+        try {
+            return geometry.intersection(clipGeometry);
+        } catch (TopologyException ex) {
+            // invalid source geometry; a zero-width buffer usually repairs it
+            return geometry.buffer(0).intersection(clipGeometry);
+        }
+    }
+
+    private Geometry quantize(GeometryPrecisionReducer quantizer, Geometry geometry) {
+        try {
+            return quantizer.reduce(geometry);
+        } catch (RuntimeException ex) {
+            // the encoder rounds the coordinates anyway, only the repeated points may remain
+            return GeometryPrecisionReducer.reducePointwise(geometry, extentPrecision);
+        }
+    }
 }
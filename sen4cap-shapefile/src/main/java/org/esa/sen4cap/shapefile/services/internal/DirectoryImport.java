@@ -0,0 +1,128 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import ro.cs.tao.ProgressListener;
+import ro.cs.tao.messaging.ProgressNotifier;
+import ro.cs.tao.messaging.Topic;
+import ro.cs.tao.security.SystemPrincipal;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Imports all the shape files of a folder, several files at a time.
+ * The failure of a file does not affect the others, and the overall progress (as the fraction of the files
+ * that were imported) is reported on the '&lt;folder&gt; progress' topic.
+ */
+final class DirectoryImport {
+
+    interface FileImport {
+        long execute(Path shapeFile) throws Exception;
+    }
+
+    interface Preparation {
+        /**
+         * Runs once, before the files are imported concurrently.
+         */
+        void execute(List<Path> shapeFiles) throws Exception;
+    }
+
+    private DirectoryImport() { }
+
+    static long execute(Path folder, FileImport fileImport, Logger logger) throws IOException {
+        return execute(folder, null, fileImport, logger);
+    }
+
+    /**
+     * Imports the files of the folder after running the given preparation (if any) on the list of files.
+     * A failure of the preparation aborts the import of the folder.
+     */
+    static long execute(Path folder, Preparation preparation, FileImport fileImport, Logger logger) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> stream = Files.walk(folder, 2, FileVisitOption.FOLLOW_LINKS)) {
+            files = stream.filter(f -> Files.isRegularFile(f) && f.getFileName().toString().toLowerCase().endsWith(".shp"))
+                          .collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            logger.warning(String.format("No shape file found in %s", folder));
+            return 0;
+        }
+        if (preparation != null) {
+            try {
+                preparation.execute(files);
+            } catch (Exception ex) {
+                throw new IOException(String.format("Cannot prepare the import of %s: %s", folder, ex.getMessage()), ex);
+            }
+        }
+        final int parallelism = Math.max(1, Math.min(files.size(),
+                                                     Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_IMPORT_PARALLEL_FILES_CFG_KEY, "2"))));
+        final String folderName = folder.getFileName().toString();
+        final ProgressListener progressListener = new ProgressNotifier(SystemPrincipal.instance(),
+                                                                       DirectoryImport.class.getSimpleName(),
+                                                                       Topic.create(folderName + " progress"));
+        final AtomicInteger completed = new AtomicInteger(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        long total = 0;
+        progressListener.started(folderName);
+        try {
+            final List<Future<Long>> results = new ArrayList<>(files.size());
+            for (Path file : files) {
+                results.add(executor.submit(() -> {
+                    try {
+                        return fileImport.execute(file);
+                    } catch (Exception ex) {
+                        logger.warning(String.format("Import of %s failed: %s", file, ex.getMessage()));
+                        return 0L;
+                    } finally {
+                        progressListener.notifyProgress((double) completed.incrementAndGet() / (double) files.size());
+                    }
+                }));
+            }
+            for (Future<Long> result : results) {
+                try {
+                    total += result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    logger.warning(e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            progressListener.ended();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.DataType;
+import org.esa.sen4cap.shapefile.db.GeneralizedLPISTable;
+import org.esa.sen4cap.shapefile.db.LPISFileTable;
+import org.esa.sen4cap.shapefile.db.QueryCursor;
+import org.esa.sen4cap.shapefile.services.ExportService;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureWriter;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Service;
+import ro.cs.tao.utils.Tuple;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Exports the per-site parcel tables ({@link GeneralizedLPISTable}) to FlatGeobuf or GeoPackage files.
+ * The records are streamed from the database through a server-side cursor, hence the memory used
+ * doesn't depend on the size of the table.
+ */
+@Service("exportService")
+public class ExportServiceImpl implements ExportService {
+    private static final int GPKG_COMMIT_SIZE = 50000;
+    private static final List<Tuple<String, Class<?>>> fixedColumns;
+    private final Logger logger = Logger.getLogger(ExportServiceImpl.class.getName());
+
+    static {
+        fixedColumns = new ArrayList<>();
+        fixedColumns.add(new Tuple<>("item_id", Long.class));
+        fixedColumns.add(new Tuple<>("file_id", Integer.class));
+        fixedColumns.add(new Tuple<>("CR_CO_GSAA", String.class));
+        fixedColumns.add(new Tuple<>("CR_NA_GSAA", String.class));
+        fixedColumns.add(new Tuple<>("CR_CO_L4A", String.class));
+        fixedColumns.add(new Tuple<>("CR_NA_L4A", String.class));
+        fixedColumns.add(new Tuple<>("CR_CO_DIV", String.class));
+        fixedColumns.add(new Tuple<>("CR_NA_DIV", String.class));
+        fixedColumns.add(new Tuple<>("CR_CAT", Integer.class));
+        fixedColumns.add(new Tuple<>("S1Pix", Integer.class));
+        fixedColumns.add(new Tuple<>("S2Pix", Integer.class));
+        fixedColumns.add(new Tuple<>("Area", Double.class));
+        fixedColumns.add(new Tuple<>("ShapeIndex", Double.class));
+        fixedColumns.add(new Tuple<>("Overlap", Long.class));
+        fixedColumns.add(new Tuple<>("GeomValid", Boolean.class));
+    }
+
+    @Override
+    public long exportParcels(Site site, DataType fileType, int year, Format format, Path target) throws Exception {
+        final GeneralizedLPISTable table = GeneralizedLPISTable.open(site, fileType);
+        if (table == null) {
+            throw new IllegalArgumentException(String.format("No %s data was imported for site %s",
+                                                             fileType.baseName(), site.getShortName()));
+        }
+        final LPISFileTable.Record fileRecord;
+        try {
+            fileRecord = LPISFileTable.getInstance().select(site, fileType, year);
+        } catch (EmptyResultDataAccessException ex) {
+            throw new IllegalArgumentException(String.format("No %s data was imported for site %s and year %d",
+                                                             fileType.baseName(), site.getShortName(), year));
+        }
+        Files.createDirectories(target.getParent());
+        // the file appears under its name only when complete
+        final Path partFile = target.resolveSibling(target.getFileName() + ".part");
+        Files.deleteIfExists(partFile);
+        final List<String> additionalColumns = table.getAdditionalColumns();
+        final long start = System.currentTimeMillis();
+        long count;
+        try (QueryCursor<GeneralizedLPISTable.Record> cursor = table.selectAll(fileRecord.getId())) {
+            if (format == Format.GEOPACKAGE) {
+                count = writeGeoPackage(table.getName(), cursor, additionalColumns, partFile);
+            } else {
+                count = writeFlatGeobuf(table.getName(), cursor, additionalColumns, partFile);
+            }
+        } catch (Exception ex) {
+            Files.deleteIfExists(partFile);
+            throw ex;
+        }
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        logger.info(String.format("%d records of %s exported to %s in %d s",
+                                  count, table.getName(), target, (System.currentTimeMillis() - start) / 1000));
+        return count;
+    }
+
+    private long writeFlatGeobuf(String name, QueryCursor<GeneralizedLPISTable.Record> cursor,
+                                 List<String> additionalColumns, Path file) throws Exception {
+        final List<Tuple<String, Byte>> columns = new ArrayList<>();
+        for (Tuple<String, Class<?>> column : fixedColumns) {
+            columns.add(new Tuple<>(column.getKeyOne(), flatGeobufType(column.getKeyTwo())));
+        }
+        for (String column : additionalColumns) {
+            columns.add(new Tuple<>(column, FlatGeobufWriter.COLUMN_STRING));
+        }
+        final int threads = Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_EXPORT_THREADS_CFG_KEY,
+                                                               String.valueOf(Runtime.getRuntime().availableProcessors())));
+        final FlatGeobufWriter<GeneralizedLPISTable.Record> writer =
+                new FlatGeobufWriter<>(file, name, columns, GeneralizedLPISTable.Record::getFootprint,
+                                       record -> values(record, additionalColumns), threads);
+        return writer.write(cursor);
+    }
+
+    private long writeGeoPackage(String name, QueryCursor<GeneralizedLPISTable.Record> cursor,
+                                 List<String> additionalColumns, Path file) throws Exception {
+        final CoordinateReferenceSystem crs = CRS.decode("EPSG:4326", true);
+        final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName(name);
+        typeBuilder.setCRS(crs);
+        typeBuilder.add("footprint", Geometry.class);
+        for (Tuple<String, Class<?>> column : fixedColumns) {
+            typeBuilder.add(column.getKeyOne(), column.getKeyTwo());
+        }
+        for (String column : additionalColumns) {
+            typeBuilder.add(column, String.class);
+        }
+        final GeoPackage geoPackage = new GeoPackage(file.toFile());
+        long count = 0;
+        try {
+            geoPackage.init();
+            final FeatureEntry entry = new FeatureEntry();
+            entry.setBounds(new ReferencedEnvelope(crs));
+            geoPackage.add(entry, typeBuilder.buildFeatureType());
+            try (Transaction transaction = new DefaultTransaction()) {
+                try (SimpleFeatureWriter writer = geoPackage.writer(entry, true, null, transaction)) {
+                    while (cursor.hasNext()) {
+                        final GeneralizedLPISTable.Record record = cursor.next();
+                        final Object[] values = values(record, additionalColumns);
+                        final SimpleFeature feature = writer.next();
+                        feature.setAttribute(0, record.getFootprint());
+                        for (int i = 0; i < values.length; i++) {
+                            feature.setAttribute(i + 1, values[i]);
+                        }
+                        writer.write();
+                        // SQLite keeps the whole transaction in its journal, commit from time to time
+                        if (++count % GPKG_COMMIT_SIZE == 0) {
+                            transaction.commit();
+                        }
+                    }
+                }
+                transaction.commit();
+            }
+            geoPackage.createSpatialIndex(entry);
+        } finally {
+            geoPackage.close();
+        }
+        return count;
+    }
+
+    private static Object[] values(GeneralizedLPISTable.Record record, List<String> additionalColumns) {
+        final Object[] values = new Object[fixedColumns.size() + additionalColumns.size()];
+        int idx = 0;
+        values[idx++] = record.getId();
+        values[idx++] = record.getFileId();
+        values[idx++] = record.getCR_CO_GSAA();
+        values[idx++] = record.getCR_NA_GSAA();
+        values[idx++] = record.getCR_CO_L4A();
+        values[idx++] = record.getCR_NA_L4A();
+        values[idx++] = record.getCR_CO_DIV();
+        values[idx++] = record.getCR_NA_DIV();
+        values[idx++] = record.getCR_CAT();
+        values[idx++] = record.getS1Pix();
+        values[idx++] = record.getS2Pix();
+        values[idx++] = record.getArea();
+        values[idx++] = record.getShapeIndex();
+        values[idx++] = record.getOverlap();
+        values[idx++] = record.isGeomValid();
+        for (String column : additionalColumns) {
+            values[idx++] = record.getColumn(column);
+        }
+        return values;
+    }
+
+    private static byte flatGeobufType(Class<?> clazz) {
+        if (clazz == Long.class) {
+            return FlatGeobufWriter.COLUMN_LONG;
+        } else if (clazz == Integer.class) {
+            return FlatGeobufWriter.COLUMN_INT;
+        } else if (clazz == Double.class) {
+            return FlatGeobufWriter.COLUMN_DOUBLE;
+        } else if (clazz == Boolean.class) {
+            return FlatGeobufWriter.COLUMN_BOOL;
+        } else {
+            return FlatGeobufWriter.COLUMN_STRING;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import ro.cs.tao.utils.Tuple;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Writes features to a FlatGeobuf (v3) file with a packed Hilbert R-tree spatial index.
+ * <p>
+ * The features are encoded in parallel and appended, as they come, to a temporary file; only their bounding boxes
+ * (in a memory-mapped temporary file) and a sort key per feature are kept aside. When the input is exhausted,
+ * the header, the index and the features (in Hilbert order, as required by the index) are written to the target file.
+ * The memory needed is thus bounded by the number of batches in flight plus 8 bytes per feature.
+ *
+ * @param <T>   The type of the written records
+ */
+final class FlatGeobufWriter<T> {
+    static final byte COLUMN_BOOL = 2;
+    static final byte COLUMN_SHORT = 3;
+    static final byte COLUMN_INT = 5;
+    static final byte COLUMN_LONG = 7;
+    static final byte COLUMN_DOUBLE = 10;
+    static final byte COLUMN_STRING = 11;
+    private static final byte[] MAGIC = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+    private static final byte GEOMETRY_UNKNOWN = 0;
+    private static final byte GEOMETRY_POINT = 1;
+    private static final byte GEOMETRY_LINESTRING = 2;
+    private static final byte GEOMETRY_POLYGON = 3;
+    private static final byte GEOMETRY_MULTIPOINT = 4;
+    private static final byte GEOMETRY_MULTILINESTRING = 5;
+    private static final byte GEOMETRY_MULTIPOLYGON = 6;
+    private static final byte GEOMETRY_COLLECTION = 7;
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_ITEM_BYTES = 40;
+    private static final int META_BYTES = 44;
+    private static final int BATCH_SIZE = 1000;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    private final Path target;
+    private final String name;
+    private final List<Tuple<String, Byte>> columns;
+    private final Function<T, Geometry> geometryExtractor;
+    private final Function<T, Object[]> valuesExtractor;
+    private final int threads;
+    private final Logger logger = Logger.getLogger(FlatGeobufWriter.class.getName());
+
+    /**
+     * @param target            The FlatGeobuf file
+     * @param name              The name of the dataset
+     * @param columns           The (name, type) pairs of the attribute columns. The type is one of the COLUMN_* constants.
+     * @param geometryExtractor Gives the (EPSG:4326) geometry of a record
+     * @param valuesExtractor   Gives the attribute values of a record, in the order of the columns
+     * @param threads           The number of threads encoding the features
+     */
+    FlatGeobufWriter(Path target, String name, List<Tuple<String, Byte>> columns,
+                     Function<T, Geometry> geometryExtractor, Function<T, Object[]> valuesExtractor, int threads) {
+        this.target = target;
+        this.name = name;
+        this.columns = columns;
+        this.geometryExtractor = geometryExtractor;
+        this.valuesExtractor = valuesExtractor;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Writes all the given records and returns the number of written features.
+     * Records without geometry are skipped.
+     */
+    long write(Iterator<T> records) throws IOException {
+        final Path featuresFile = Files.createTempFile(this.target.getParent(), "fgb_features_", ".tmp");
+        final Path metaFile = Files.createTempFile(this.target.getParent(), "fgb_meta_", ".tmp");
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "fgb-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel features = FileChannel.open(featuresFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+             FileChannel meta = FileChannel.open(metaFile, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            final Envelope extent = new Envelope();
+            final long count = encodeAll(records, executor, features, meta, extent);
+            // the upper levels of the index are built by reading back the leaves
+            try (FileChannel output = FileChannel.open(this.target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                       StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFile(output, features, meta, count, extent);
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(featuresFile);
+            Files.deleteIfExists(metaFile);
+        }
+    }
+
+    private long encodeAll(Iterator<T> records, ExecutorService executor, FileChannel features, FileChannel meta,
+                           Envelope extent) throws IOException {
+        final Deque<Future<EncodedBatch>> inFlight = new ArrayDeque<>();
+        final ByteBuffer metaBuffer = ByteBuffer.allocate(BATCH_SIZE * META_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        final long[] written = new long[2];
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        while (records.hasNext()) {
+            batch.add(records.next());
+            if (batch.size() == BATCH_SIZE || !records.hasNext()) {
+                final List<T> current = batch;
+                inFlight.addLast(executor.submit(() -> encode(current)));
+                batch = new ArrayList<>(BATCH_SIZE);
+                // bounds the memory: at most two batches per encoding thread are kept
+                if (inFlight.size() >= 2 * this.threads) {
+                    append(take(inFlight.removeFirst()), features, meta, metaBuffer, extent, written);
+                }
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            append(take(inFlight.removeFirst()), features, meta, metaBuffer, extent, written);
+        }
+        return written[1];
+    }
+
+    /**
+     * Appends the encoded features to the temporary features file and their positions and boxes to the metadata file.
+     *
+     * @param written   The current size of the features file and the number of features, updated by this method
+     */
+    private void append(EncodedBatch encoded, FileChannel features, FileChannel meta, ByteBuffer metaBuffer,
+                        Envelope extent, long[] written) throws IOException {
+        metaBuffer.clear();
+        long position = written[0];
+        for (int i = 0; i < encoded.features.length; i++) {
+            final byte[] feature = encoded.features[i];
+            writeFully(features, ByteBuffer.wrap(feature), position);
+            metaBuffer.putLong(position).putInt(feature.length);
+            for (int j = 0; j < 4; j++) {
+                metaBuffer.putDouble(encoded.boxes[4 * i + j]);
+            }
+            extent.expandToInclude(encoded.boxes[4 * i], encoded.boxes[4 * i + 1]);
+            extent.expandToInclude(encoded.boxes[4 * i + 2], encoded.boxes[4 * i + 3]);
+            position += feature.length;
+        }
+        metaBuffer.flip();
+        writeFully(meta, metaBuffer, written[1] * META_BYTES);
+        written[0] = position;
+        written[1] += encoded.features.length;
+        if (encoded.skipped > 0) {
+            logger.warning(String.format("%d records without geometry were skipped", encoded.skipped));
+        }
+    }
+
+    private void writeFile(FileChannel output, FileChannel features, FileChannel meta, long count, Envelope extent) throws IOException {
+        if (count * META_BYTES > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Too many features (%d)", count));
+        }
+        final byte[] header = encodeHeader(count, extent);
+        final long indexStart = MAGIC.length + header.length;
+        writeFully(output, ByteBuffer.wrap(MAGIC), 0);
+        writeFully(output, ByteBuffer.wrap(header), MAGIC.length);
+        if (count == 0) {
+            return;
+        }
+        final MappedByteBuffer metaMap = meta.map(FileChannel.MapMode.READ_ONLY, 0, count * META_BYTES);
+        metaMap.order(ByteOrder.LITTLE_ENDIAN);
+        final int[] order = hilbertOrder(metaMap, (int) count, extent);
+        final long[][] levels = levelBounds(count);
+        final long numNodes = levels[0][1];
+        final long featuresStart = indexStart + numNodes * NODE_ITEM_BYTES;
+        // the leaves (the last level of the index), in the order in which the features are written
+        try (ChannelWriter writer = new ChannelWriter(output, indexStart + levels[0][0] * NODE_ITEM_BYTES)) {
+            long offset = 0;
+            for (int idx : order) {
+                final int base = idx * META_BYTES;
+                writer.putDouble(metaMap.getDouble(base + 12)).putDouble(metaMap.getDouble(base + 20))
+                      .putDouble(metaMap.getDouble(base + 28)).putDouble(metaMap.getDouble(base + 36))
+                      .putLong(offset);
+                offset += metaMap.getInt(base + 8);
+            }
+        }
+        // the upper levels, each node covering (at most) NODE_SIZE nodes of the level below
+        for (int level = 0; level < levels.length - 1; level++) {
+            final ChannelReader reader = new ChannelReader(output, indexStart + levels[level][0] * NODE_ITEM_BYTES);
+            try (ChannelWriter writer = new ChannelWriter(output, indexStart + levels[level + 1][0] * NODE_ITEM_BYTES)) {
+                long pos = levels[level][0];
+                final long end = levels[level][1];
+                while (pos < end) {
+                    final long first = pos;
+                    double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                    double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                    for (int j = 0; j < NODE_SIZE && pos < end; j++, pos++) {
+                        minX = Math.min(minX, reader.getDouble());
+                        minY = Math.min(minY, reader.getDouble());
+                        maxX = Math.max(maxX, reader.getDouble());
+                        maxY = Math.max(maxY, reader.getDouble());
+                        reader.getLong();
+                    }
+                    writer.putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY).putLong(first);
+                }
+            }
+        }
+        // the features
+        final ByteBuffer feature = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        try (ChannelWriter writer = new ChannelWriter(output, featuresStart)) {
+            for (int idx : order) {
+                final int base = idx * META_BYTES;
+                final long position = metaMap.getLong(base);
+                final int length = metaMap.getInt(base + 8);
+                final ByteBuffer buffer = length <= feature.capacity() ? feature : ByteBuffer.allocate(length);
+                buffer.clear();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    if (features.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of the temporary features file");
+                    }
+                }
+                writer.put(buffer.array(), length);
+            }
+        }
+    }
+
+    private EncodedBatch encode(List<T> records) {
+        final FlatBufferBuilder builder = new FlatBufferBuilder(16 * 1024);
+        final List<byte[]> features = new ArrayList<>(records.size());
+        final double[] boxes = new double[4 * records.size()];
+        int skipped = 0;
+        for (T record : records) {
+            final Geometry geometry = this.geometryExtractor.apply(record);
+            if (geometry == null || geometry.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            final Envelope envelope = geometry.getEnvelopeInternal();
+            final int idx = 4 * features.size();
+            boxes[idx] = envelope.getMinX();
+            boxes[idx + 1] = envelope.getMinY();
+            boxes[idx + 2] = envelope.getMaxX();
+            boxes[idx + 3] = envelope.getMaxY();
+            builder.clear();
+            final byte[] properties = encodeProperties(this.valuesExtractor.apply(record));
+            final int propertiesOffset = createByteVector(builder, properties);
+            final int geometryOffset = encodeGeometry(builder, geometry);
+            builder.startTable(3);
+            builder.addOffset(1, propertiesOffset, 0);
+            builder.addOffset(0, geometryOffset, 0);
+            builder.finishSizePrefixed(builder.endTable());
+            features.add(builder.sizedByteArray());
+        }
+        return new EncodedBatch(features.toArray(new byte[0][]),
+                                features.size() == records.size() ? boxes : Arrays.copyOf(boxes, 4 * features.size()),
+                                skipped);
+    }
+
+    private byte[] encodeHeader(long count, Envelope extent) {
+        final FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        final int[] columnOffsets = new int[this.columns.size()];
+        for (int i = 0; i < columnOffsets.length; i++) {
+            final Tuple<String, Byte> column = this.columns.get(i);
+            final int columnName = builder.createString(column.getKeyOne());
+            builder.startTable(11);
+            builder.addOffset(0, columnName, 0);
+            builder.addByte(1, column.getKeyTwo(), 0);
+            columnOffsets[i] = builder.endTable();
+        }
+        final int columnsVector = createOffsetVector(builder, columnOffsets);
+        final int crsOrg = builder.createString("EPSG");
+        builder.startTable(6);
+        builder.addOffset(0, crsOrg, 0);
+        builder.addInt(1, 4326, 0);
+        final int crs = builder.endTable();
+        int envelope = 0;
+        if (count > 0) {
+            builder.startVector(8, 4, 8);
+            builder.addDouble(extent.getMaxY());
+            builder.addDouble(extent.getMaxX());
+            builder.addDouble(extent.getMinY());
+            builder.addDouble(extent.getMinX());
+            envelope = builder.endVector();
+        }
+        final int datasetName = builder.createString(this.name);
+        builder.startTable(14);
+        builder.addOffset(0, datasetName, 0);
+        if (envelope != 0) {
+            builder.addOffset(1, envelope, 0);
+        }
+        builder.addByte(2, GEOMETRY_UNKNOWN, 0);
+        builder.addOffset(7, columnsVector, 0);
+        builder.addLong(8, count, 0);
+        builder.addShort(9, (short) (count > 0 ? NODE_SIZE : 0), NODE_SIZE);
+        builder.addOffset(10, crs, 0);
+        builder.finishSizePrefixed(builder.endTable());
+        return builder.sizedByteArray();
+    }
+
+    private byte[] encodeProperties(Object[] values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer current = buffer;
+        for (int i = 0; i < values.length; i++) {
+            final Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            final byte type = this.columns.get(i).getKeyTwo();
+            final byte[] text = type == COLUMN_STRING ? value.toString().getBytes(StandardCharsets.UTF_8) : null;
+            final int size = 2 + (text != null ? 4 + text.length : 8);
+            if (current.remaining() < size) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * current.capacity(), current.position() + size))
+                                                    .order(ByteOrder.LITTLE_ENDIAN);
+                current.flip();
+                larger.put(current);
+                current = larger;
+            }
+            current.putShort((short) i);
+            switch (type) {
+                case COLUMN_BOOL:
+                    current.put((byte) (((Boolean) value) ? 1 : 0));
+                    break;
+                case COLUMN_SHORT:
+                    current.putShort(((Number) value).shortValue());
+                    break;
+                case COLUMN_INT:
+                    current.putInt(((Number) value).intValue());
+                    break;
+                case COLUMN_LONG:
+                    current.putLong(((Number) value).longValue());
+                    break;
+                case COLUMN_DOUBLE:
+                    current.putDouble(((Number) value).doubleValue());
+                    break;
+                default:
+                    current.putInt(text.length);
+                    current.put(text);
+                    break;
+            }
+        }
+        return Arrays.copyOf(current.array(), current.position());
+    }
+
+    private static int encodeGeometry(FlatBufferBuilder builder, Geometry geometry) {
+        final byte type = geometryType(geometry);
+        if (type == GEOMETRY_MULTIPOLYGON || type == GEOMETRY_COLLECTION) {
+            final int[] parts = new int[geometry.getNumGeometries()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = encodeGeometry(builder, geometry.getGeometryN(i));
+            }
+            final int partsVector = createOffsetVector(builder, parts);
+            builder.startTable(8);
+            builder.addOffset(7, partsVector, 0);
+            builder.addByte(6, type, 0);
+            return builder.endTable();
+        }
+        // the coordinates of all the rings / lines are concatenated, the ends give the number of points up to each part
+        final List<LineString> lines = new ArrayList<>();
+        if (geometry instanceof Polygon) {
+            final Polygon polygon = (Polygon) geometry;
+            lines.add(polygon.getExteriorRing());
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                lines.add(polygon.getInteriorRingN(i));
+            }
+        } else if (geometry instanceof MultiLineString) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                lines.add((LineString) geometry.getGeometryN(i));
+            }
+        }
+        final double[] xy = new double[2 * geometry.getNumPoints()];
+        int points = 0;
+        int[] ends = null;
+        if (lines.isEmpty()) {
+            for (org.locationtech.jts.geom.Coordinate coordinate : geometry.getCoordinates()) {
+                xy[2 * points] = coordinate.x;
+                xy[2 * points + 1] = coordinate.y;
+                points++;
+            }
+        } else {
+            ends = new int[lines.size()];
+            for (int i = 0; i < ends.length; i++) {
+                final LineString line = lines.get(i);
+                for (int j = 0; j < line.getNumPoints(); j++) {
+                    xy[2 * points] = line.getCoordinateSequence().getX(j);
+                    xy[2 * points + 1] = line.getCoordinateSequence().getY(j);
+                    points++;
+                }
+                ends[i] = points;
+            }
+        }
+        builder.startVector(8, 2 * points, 8);
+        for (int i = 2 * points - 1; i >= 0; i--) {
+            builder.addDouble(xy[i]);
+        }
+        final int xyVector = builder.endVector();
+        int endsVector = 0;
+        if (ends != null && ends.length > 1) {
+            builder.startVector(4, ends.length, 4);
+            for (int i = ends.length - 1; i >= 0; i--) {
+                builder.addInt(ends[i]);
+            }
+            endsVector = builder.endVector();
+        }
+        builder.startTable(8);
+        if (endsVector != 0) {
+            builder.addOffset(0, endsVector, 0);
+        }
+        builder.addOffset(1, xyVector, 0);
+        builder.addByte(6, type, 0);
+        return builder.endTable();
+    }
+
+    private static byte geometryType(Geometry geometry) {
+        if (geometry instanceof Point) {
+            return GEOMETRY_POINT;
+        } else if (geometry instanceof Polygon) {
+            return GEOMETRY_POLYGON;
+        } else if (geometry instanceof LineString) {
+            return GEOMETRY_LINESTRING;
+        } else if (geometry instanceof MultiPoint) {
+            return GEOMETRY_MULTIPOINT;
+        } else if (geometry instanceof MultiLineString) {
+            return GEOMETRY_MULTILINESTRING;
+        } else if (geometry instanceof MultiPolygon) {
+            return GEOMETRY_MULTIPOLYGON;
+        } else if (geometry instanceof GeometryCollection) {
+            return GEOMETRY_COLLECTION;
+        }
+        return GEOMETRY_UNKNOWN;
+    }
+
+    private static int createByteVector(FlatBufferBuilder builder, byte[] bytes) {
+        builder.startVector(1, bytes.length, 1);
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            builder.addByte(bytes[i]);
+        }
+        return builder.endVector();
+    }
+
+    private static int createOffsetVector(FlatBufferBuilder builder, int[] offsets) {
+        builder.startVector(4, offsets.length, 4);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            builder.addOffset(offsets[i]);
+        }
+        return builder.endVector();
+    }
+
+    /**
+     * Returns the feature indices sorted by the Hilbert value of the center of their bounding boxes.
+     */
+    private static int[] hilbertOrder(ByteBuffer meta, int count, Envelope extent) {
+        final double width = extent.getWidth() > 0 ? extent.getWidth() : 1;
+        final double height = extent.getHeight() > 0 ? extent.getHeight() : 1;
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            final int base = i * META_BYTES;
+            final double x = (meta.getDouble(base + 12) + meta.getDouble(base + 28)) / 2;
+            final double y = (meta.getDouble(base + 20) + meta.getDouble(base + 36)) / 2;
+            final long hilbert = hilbert((int) (0xFFFF * (x - extent.getMinX()) / width),
+                                         (int) (0xFFFF * (y - extent.getMinY()) / height)) & 0xFFFFFFFFL;
+            // flipping the sign bit makes the signed sort equivalent to the unsigned one
+            keys[i] = ((hilbert << 32) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+        return (i1 << 1) | i0;
+    }
+
+    /**
+     * Returns the [start, end) node ranges of each level of the packed R-tree, from the leaves up to the root.
+     * The root is the first node of the index and the leaves are the last ones, so the end of the first range
+     * is the total number of nodes.
+     */
+    static long[][] levelBounds(long numItems) {
+        final List<Long> levelNumNodes = new ArrayList<>();
+        long n = numItems;
+        long numNodes = n;
+        levelNumNodes.add(n);
+        do {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            numNodes += n;
+            levelNumNodes.add(n);
+        } while (n != 1);
+        final long[][] bounds = new long[levelNumNodes.size()][];
+        n = numNodes;
+        for (int i = 0; i < bounds.length; i++) {
+            final long size = levelNumNodes.get(i);
+            bounds[i] = new long[] { n - size, n };
+            n -= size;
+        }
+        return bounds;
+    }
+
+    private static EncodedBatch take(Future<EncodedBatch> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding features", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static class EncodedBatch {
+        private final byte[][] features;
+        private final double[] boxes;
+        private final int skipped;
+
+        EncodedBatch(byte[][] features, double[] boxes, int skipped) {
+            this.features = features;
+            this.boxes = boxes;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Buffered little-endian writer at a given position of a file channel.
+     */
+    private static class ChannelWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        ChannelWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        ChannelWriter putDouble(double value) throws IOException {
+            ensure(8);
+            this.buffer.putDouble(value);
+            return this;
+        }
+
+        ChannelWriter putLong(long value) throws IOException {
+            ensure(8);
+            this.buffer.putLong(value);
+            return this;
+        }
+
+        void put(byte[] bytes, int length) throws IOException {
+            if (length > this.buffer.capacity()) {
+                flush();
+                writeFully(this.channel, ByteBuffer.wrap(bytes, 0, length), this.position);
+                this.position += length;
+            } else {
+                ensure(length);
+                this.buffer.put(bytes, 0, length);
+            }
+        }
+
+        private void ensure(int size) throws IOException {
+            if (this.buffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            final int length = this.buffer.remaining();
+            writeFully(this.channel, this.buffer, this.position);
+            this.position += length;
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Buffered little-endian sequential reader from a given position of a file channel.
+     */
+    private static class ChannelReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        ChannelReader(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+            this.buffer.limit(0);
+        }
+
+        double getDouble() throws IOException {
+            ensure(8);
+            return this.buffer.getDouble();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return this.buffer.getLong();
+        }
+
+        private void ensure(int size) throws IOException {
+            if (this.buffer.remaining() < size) {
+                this.buffer.compact();
+                while (this.buffer.position() < size) {
+                    final int read = this.channel.read(this.buffer, this.position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of the index");
+                    }
+                    this.position += read;
+                }
+                this.buffer.flip();
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.esa.sen4cap.shapefile.services.internal;
 
 import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.ConnectionBudget;
 import org.esa.sen4cap.shapefile.db.DataType;
 import org.esa.sen4cap.shapefile.db.Database;
 import org.esa.sen4cap.shapefile.db.DeclarationTable;
@@ -28,13 +29,13 @@ import org.esa.sen4cap.shapefile.parsers.ParserFactory;
 import org.esa.sen4cap.shapefile.services.GSAAService;
 import org.springframework.stereotype.Service;
 
-import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -49,22 +50,15 @@ public class GSAAServiceImpl implements GSAAService {
     public long updateDatabase(Site site, Path shapeFile, long offset) throws Exception {
         DeclarationTable table = (DeclarationTable) Database.getTable(site, DataType.DECLARATION);
         long total = 0;
+        final Consumer<List<Declaration>> persister = batch -> ConnectionBudget.execute(() -> table.insertOrUpdate(batch));
         if (Files.isRegularFile(shapeFile)) {
             Parser<Declaration> parser = (Parser<Declaration>) ParserFactory.create(DataType.DECLARATION, site, shapeFile);
-            total = parser.parse(table::insertOrUpdate, offset);
+            total = parser.parse(persister, offset);
         } else {
-            total = Files.walk(shapeFile, 2, FileVisitOption.FOLLOW_LINKS)
-                    .filter(f -> f.getFileName().toString().toLowerCase().endsWith(".shp"))
-                    .mapToLong(f -> {
-                        long results = 0;
-                        try {
-                            Parser<Declaration> parser = (Parser<Declaration>) ParserFactory.create(DataType.DECLARATION, site, f);
-                            results = parser.parse(table::insertOrUpdate, offset);
-                        } catch (Exception ex) {
-                            Logger.getLogger(GSAAService.class.getSimpleName()).warning(ex.getMessage());
-                        }
-                        return results;
-                    }).sum();
+            total = DirectoryImport.execute(shapeFile, f -> {
+                Parser<Declaration> parser = (Parser<Declaration>) ParserFactory.create(DataType.DECLARATION, site, f);
+                return parser.parse(persister, offset);
+            }, Logger.getLogger(GSAAService.class.getSimpleName()));
         }
         executor.submit(() -> {
             try {
@@ -0,0 +1,153 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.Database;
+import org.esa.sen4cap.shapefile.entities.Practice;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the resolution of the site codes and of the L4C <code>_PLOT</code> files used by the parcel queries,
+ * so that a query needs neither a database query nor a folder listing.
+ * The L4C products are checked periodically and the cached plot files are dropped when a product is added or removed.
+ * The plot files of the new products are converted to time series stores.
+ */
+@Service("l4cProductCatalog")
+public class L4CProductCatalog {
+    private static final long REFRESH_INTERVAL = 60000;
+    private final Map<String, List<Site>> sitesByCode = new ConcurrentHashMap<>();
+    private final Map<String, String> plotFiles = new ConcurrentHashMap<>();
+    private volatile List<Site> sites;
+    private volatile String productsSignature;
+    private volatile long lastProductId;
+    private Logger logger = Logger.getLogger(L4CProductCatalog.class.getName());
+
+    @Autowired
+    private TimeSeriesStoreService storeService;
+
+    /**
+     * Returns the sites whose name contain the given code.
+     */
+    public List<Site> getSites(String siteCode) {
+        final String siteCodeLC = siteCode.toLowerCase();
+        List<Site> matches = this.sitesByCode.get(siteCodeLC);
+        if (matches == null) {
+            List<Site> allSites = this.sites;
+            if (allSites == null) {
+                allSites = Config.getPersistenceManager().getAllSites();
+                this.sites = allSites;
+            }
+            matches = Collections.unmodifiableList(allSites.stream()
+                                                           .filter(site -> site.getName().toLowerCase().contains(siteCodeLC))
+                                                           .collect(Collectors.toList()));
+            this.sitesByCode.put(siteCodeLC, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the <code>_PLOT</code> file of the given practice from the latest L4C product of the site and year.
+     */
+    public String getPlotFile(Site site, int year, Practice practice) throws IOException {
+        final String key = site.getId() + ":" + year + ":" + practice.name();
+        String plotFile = this.plotFiles.get(key);
+        if (plotFile == null) {
+            plotFile = resolvePlotFile(site.getId(), year, practice);
+            this.plotFiles.put(key, plotFile);
+        }
+        return plotFile;
+    }
+
+    /**
+     * Drops the cached sites and plot files.
+     */
+    public void invalidate() {
+        this.sites = null;
+        this.sitesByCode.clear();
+        this.plotFiles.clear();
+    }
+
+    @Scheduled(initialDelay = REFRESH_INTERVAL, fixedDelay = REFRESH_INTERVAL)
+    public void refresh() {
+        try {
+            final String signature = Database.getL4CProductsSignature();
+            if (this.productsSignature == null) {
+                this.lastProductId = Database.getLastL4CProductId();
+            } else if (!this.productsSignature.equals(signature)) {
+                logger.fine("L4C products changed, the cached plot files will be resolved again");
+                this.plotFiles.clear();
+                this.storeService.invalidate();
+                // convert the plot files of the new products to time series stores
+                for (Map.Entry<Long, String> product : Database.getL4CProductsAfter(this.lastProductId).entrySet()) {
+                    this.storeService.ingestProduct(product.getValue());
+                    this.lastProductId = Math.max(this.lastProductId, product.getKey());
+                }
+            }
+            this.productsSignature = signature;
+            final List<Site> allSites = Config.getPersistenceManager().getAllSites();
+            if (this.sites == null || this.sites.size() != allSites.size()) {
+                this.sitesByCode.clear();
+            }
+            this.sites = allSites;
+        } catch (DataAccessException ex) {
+            logger.warning(String.format("Cannot check the L4C products: %s", ex.getMessage()));
+        }
+    }
+
+    private String resolvePlotFile(int siteId, int year, Practice practice) throws IOException {
+        String productPath = Database.getL4CProduct(siteId, year, practice);
+        logger.finest(String.format("Using product %s", productPath));
+        if (productPath == null || !Files.exists(Paths.get(productPath))) {
+            throw new IOException(String.format("L4C Product [%s] not found", productPath));
+        }
+        Path vectDataPath = Paths.get(productPath).resolve("VECTOR_DATA");
+        if (!Files.exists(vectDataPath)) {
+            throw new IOException(String.format("L4C Product [%s] VECTOR_DATA cannot be accessed", productPath));
+        }
+        String vectDataPathStr = vectDataPath.toString();
+        logger.finest(String.format("Checking for PLOT file in %s", vectDataPathStr));
+        File dir = new File(vectDataPathStr);
+        File [] files = dir.listFiles((d, s) ->
+            s.contains(practice.toString()) && s.contains("_PLOT") && s.toLowerCase().endsWith(".xml")
+        );
+        if (files == null || files.length == 0) {
+            throw new IOException(String.format("No plot found in product [%s]", vectDataPathStr));
+        }
+
+        logger.finest(String.format("Using PLOT file %s", files[0].getAbsolutePath()));
+        return files[0].getAbsolutePath();
+    }
+}
@@ -19,6 +19,7 @@
 package org.esa.sen4cap.shapefile.services.internal;
 
 import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.ConnectionBudget;
 import org.esa.sen4cap.shapefile.db.DataType;
 import org.esa.sen4cap.shapefile.db.Database;
 import org.esa.sen4cap.shapefile.db.LPISTable;
@@ -28,13 +29,13 @@ import org.esa.sen4cap.shapefile.parsers.ParserFactory;
 import org.esa.sen4cap.shapefile.services.LPISService;
 import org.springframework.stereotype.Service;
 
-import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -49,23 +50,15 @@ public class LPISServiceImpl implements LPISService {
     public long updateDatabase(Site site, Path shapeFile, long offset) throws Exception {
         LPISTable lpisTable = (LPISTable) Database.getTable(site, DataType.LPIS);
         long total = 0;
+        final Consumer<List<Parcel>> persister = batch -> ConnectionBudget.execute(() -> lpisTable.insertOrUpdate(batch));
         if (Files.isRegularFile(shapeFile)) {
             Parser<Parcel> parser = (Parser<Parcel>) ParserFactory.create(DataType.LPIS, site, shapeFile);
-            total = parser.parse(lpisTable::insertOrUpdate, offset);
+            total = parser.parse(persister, offset);
         } else {
-            total = Files.walk(shapeFile, 2, FileVisitOption.FOLLOW_LINKS)
-                         .filter(f -> Files.isRegularFile(f) && f.getFileName().toString().toLowerCase().endsWith(".shp"))
-                         .mapToLong(f -> {
-                             long results = 0;
-                             try {
-                                 Parser<Parcel> parser = (Parser<Parcel>) ParserFactory.create(DataType.LPIS, site, f);
-                                 results = parser.parse(lpisTable::insertOrUpdate, offset);
-                                 parser = null;
-                             } catch (Exception ex) {
-                                 Logger.getLogger(LPISService.class.getSimpleName()).warning(ex.getMessage());
-                             }
-                             return results;
-                         }).sum();
+            total = DirectoryImport.execute(shapeFile, f -> {
+                Parser<Parcel> parser = (Parser<Parcel>) ParserFactory.create(DataType.LPIS, site, f);
+                return parser.parse(persister, offset);
+            }, Logger.getLogger(LPISService.class.getSimpleName()));
         }
         executor.submit(() -> {
             try {
@@ -0,0 +1,251 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import ro.cs.tao.services.commons.StartupBase;
+import ro.cs.tao.utils.Tuple;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Read-only, memory-mapped index of the parcel records of an L4C <code>_PLOT</code> file.
+ * The index is generated once from the text index (lines of <code>id;offset;length</code>) into a binary file
+ * having the following layout:
+ * <pre>
+ *     header:  magic (int) | version (int) | entry count (int)
+ *     entries: key position (long) | key length (int) | record offset (long) | record length (long), sorted by key
+ *     keys:    UTF-8 bytes of the parcel identifiers
+ * </pre>
+ * Lookups are binary searches in the mapped file, hence the index does not occupy heap space.
+ */
+final class ParcelIndex {
+    private static final int MAGIC = 0x50494458; // PIDX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 28;
+    private static final Logger logger = Logger.getLogger(ParcelIndex.class.getName());
+    private final MappedByteBuffer buffer;
+    private final int count;
+
+    /**
+     * Opens the binary index corresponding to the given text index, (re)generating it if it doesn't exist
+     * or is older than the text index.
+     */
+    static ParcelIndex open(Path textIndexFile) throws IOException {
+        Path binaryIndexFile = derivedFile(textIndexFile, ".bin");
+        if (!Files.exists(binaryIndexFile) ||
+                Files.getLastModifiedTime(binaryIndexFile).compareTo(Files.getLastModifiedTime(textIndexFile)) < 0) {
+            logger.fine(String.format("Generating binary index %s from %s", binaryIndexFile, textIndexFile));
+            generate(textIndexFile, binaryIndexFile);
+        }
+        return new ParcelIndex(binaryIndexFile);
+    }
+
+    private ParcelIndex(Path binaryIndexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(binaryIndexFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Index file %s is too large", binaryIndexFile));
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (this.buffer.capacity() < HEADER_SIZE || this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("Invalid index file %s", binaryIndexFile));
+        }
+        this.count = this.buffer.getInt(8);
+    }
+
+    /**
+     * Returns the number of parcels in the index.
+     */
+    int size() { return this.count; }
+
+    /**
+     * Returns the (offset, length) of the record of the given parcel, or <code>null</code> if the parcel
+     * is not in the index.
+     */
+    Tuple<Long, Long> find(String id) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = this.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+            final int cmp = compare((int) this.buffer.getLong(entry), this.buffer.getInt(entry + 8), key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return new Tuple<>(this.buffer.getLong(entry + 12), this.buffer.getLong(entry + 20));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the identifier of the i-th parcel (in key order).
+     */
+    String keyAt(int index) {
+        final int entry = HEADER_SIZE + index * ENTRY_SIZE;
+        final byte[] key = new byte[this.buffer.getInt(entry + 8)];
+        final ByteBuffer view = this.buffer.duplicate();
+        view.position((int) this.buffer.getLong(entry));
+        view.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the (offset, length) of the record of the i-th parcel (in key order).
+     */
+    Tuple<Long, Long> rangeAt(int index) {
+        final int entry = HEADER_SIZE + index * ENTRY_SIZE;
+        return new Tuple<>(this.buffer.getLong(entry + 12), this.buffer.getLong(entry + 20));
+    }
+
+    /**
+     * Builds a Bloom filter of the parcel identifiers of this index.
+     */
+    BloomFilter createFilter() {
+        final BloomFilter filter = new BloomFilter(this.count);
+        for (int i = 0; i < this.count; i++) {
+            final int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            filter.add(this.buffer, (int) this.buffer.getLong(entry), this.buffer.getInt(entry + 8));
+        }
+        return filter;
+    }
+
+    // Compares (as unsigned bytes) the key stored at the given position with the searched key.
+    // Only absolute reads are used, so the buffer can be shared by concurrent requests.
+    private int compare(int position, int length, byte[] key) {
+        final int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            final int cmp = (this.buffer.get(position + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Returns the path of a file generated from the given L4C product file, which is placed next to it or,
+     * if the product folder is read-only, in the local index folder.
+     */
+    static Path derivedFile(Path sourceFile, String suffix) throws IOException {
+        Path parent = sourceFile.getParent();
+        String name = sourceFile.getFileName() + suffix;
+        if (parent != null && Files.isWritable(parent)) {
+            return parent.resolve(name);
+        }
+        Path indexPath = StartupBase.homeDirectory().resolve("index");
+        Files.createDirectories(indexPath);
+        return indexPath.resolve(Integer.toHexString(sourceFile.toAbsolutePath().toString().hashCode()) + "_" + name);
+    }
+
+    private static void generate(Path textIndexFile, Path binaryIndexFile) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(textIndexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx1 = line.indexOf(";");
+                int idx2 = line.indexOf(";", idx1 + 1);
+                if (idx1 == -1 || idx2 == -1) {
+                    logger.warning(String.format("Invalid record [%s]", line));
+                    continue;
+                }
+                try {
+                    entries.add(new Entry(line.substring(0, idx1).getBytes(StandardCharsets.UTF_8),
+                                          Long.parseLong(line.substring(idx1 + 1, idx2)),
+                                          Long.parseLong(line.substring(idx2 + 1))));
+                } catch (NumberFormatException nfe) {
+                    logger.warning(String.format("Invalid record [%s]", line));
+                }
+            }
+        }
+        entries.sort(ParcelIndex::compare);
+        // duplicated identifiers: the last one wins, as it did with the text index
+        final List<Entry> unique = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            int last = unique.size() - 1;
+            if (last >= 0 && compare(unique.get(last), entry) == 0) {
+                unique.set(last, entry);
+            } else {
+                unique.add(entry);
+            }
+        }
+        Path tmpFile = Files.createTempFile(binaryIndexFile.getParent(), binaryIndexFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(unique.size());
+                long keyPosition = HEADER_SIZE + (long) unique.size() * ENTRY_SIZE;
+                for (Entry entry : unique) {
+                    out.writeLong(keyPosition);
+                    out.writeInt(entry.key.length);
+                    out.writeLong(entry.offset);
+                    out.writeLong(entry.length);
+                    keyPosition += entry.key.length;
+                }
+                for (Entry entry : unique) {
+                    out.write(entry.key);
+                }
+            }
+            Files.move(tmpFile, binaryIndexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private static int compare(Entry first, Entry second) {
+        final int common = Math.min(first.key.length, second.key.length);
+        for (int i = 0; i < common; i++) {
+            final int cmp = (first.key[i] & 0xFF) - (second.key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return first.key.length - second.key.length;
+    }
+
+    private static class Entry {
+        private final byte[] key;
+        private final long offset;
+        private final long length;
+
+        private Entry(byte[] key, long offset, long length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
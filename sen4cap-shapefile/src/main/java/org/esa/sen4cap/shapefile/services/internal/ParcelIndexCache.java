@@ -0,0 +1,159 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen4cap.shapefile.entities.Practice;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, size-bounded (LRU) cache of the opened L4C parcel indexes.
+ * Entries are keyed by (site, year, practice, plot file) and expire after a configurable time.
+ * When the index of a newer product is cached, the ones of the previous products of the same site, year and
+ * practice are evicted.
+ */
+final class ParcelIndexCache {
+    private final int capacity;
+    private final long timeToLive;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final ParcelRouter router;
+
+    /**
+     * @param capacity      The maximum number of cached indexes
+     * @param ttlMinutes    The time (in minutes) after which an index is reloaded. A value &lt;= 0 means no expiration.
+     * @param router        The router to which the parcels of the loaded indexes are registered
+     */
+    ParcelIndexCache(int capacity, long ttlMinutes, ParcelRouter router) {
+        this.capacity = Math.max(1, capacity);
+        this.timeToLive = ttlMinutes > 0 ? TimeUnit.MINUTES.toMillis(ttlMinutes) : Long.MAX_VALUE;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > ParcelIndexCache.this.capacity;
+            }
+        };
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.router = router;
+    }
+
+    /**
+     * Returns the index of the given plot file, opening it if it is not cached (or it has expired).
+     */
+    ParcelIndex get(int siteId, int year, Practice practice, Path dataFile, Path indexFile) throws IOException {
+        final Key key = new Key(siteId, year, practice, dataFile.toAbsolutePath().toString());
+        synchronized (this.entries) {
+            final Entry entry = this.entries.get(key);
+            if (entry != null) {
+                if (System.currentTimeMillis() - entry.loaded < this.timeToLive) {
+                    this.hits.incrementAndGet();
+                    return entry.index;
+                }
+                this.entries.remove(key);
+            }
+        }
+        this.misses.incrementAndGet();
+        // the index is opened outside the lock, so that a slow (first) generation doesn't block the other products
+        final ParcelIndex index = ParcelIndex.open(indexFile);
+        if (this.router != null && !this.router.isRegistered(siteId, year, practice, key.path)) {
+            this.router.register(siteId, year, practice, key.path, index.createFilter());
+        }
+        synchronized (this.entries) {
+            final Iterator<Key> iterator = this.entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isPreviousProductOf(key)) {
+                    iterator.remove();
+                }
+            }
+            final Entry existing = this.entries.get(key);
+            if (existing != null) {
+                return existing.index;
+            }
+            this.entries.put(key, new Entry(index));
+        }
+        return index;
+    }
+
+    void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    long hits() { return this.hits.get(); }
+
+    long misses() { return this.misses.get(); }
+
+    private static class Key {
+        private final int siteId;
+        private final int year;
+        private final Practice practice;
+        private final String path;
+
+        private Key(int siteId, int year, Practice practice, String path) {
+            this.siteId = siteId;
+            this.year = year;
+            this.practice = practice;
+            this.path = path;
+        }
+
+        private boolean isPreviousProductOf(Key other) {
+            return this.siteId == other.siteId && this.year == other.year &&
+                    this.practice == other.practice && !this.path.equals(other.path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return siteId == key.siteId && year == key.year && practice == key.practice && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(siteId, year, practice, path);
+        }
+    }
+
+    private static class Entry {
+        private final ParcelIndex index;
+        private final long loaded;
+
+        private Entry(ParcelIndex index) {
+            this.index = index;
+            this.loaded = System.currentTimeMillis();
+        }
+    }
+}
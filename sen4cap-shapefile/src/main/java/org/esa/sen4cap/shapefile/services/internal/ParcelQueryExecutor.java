@@ -0,0 +1,124 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool dedicated to the parcel queries, separate from the application task executor
+ * (used, among others, by the import jobs). When all the threads are busy and the queue is full,
+ * new queries are rejected instead of waiting.
+ * The streamed responses hold their thread while the client reads them, hence they run in a second, smaller pool,
+ * so that slow clients cannot take the threads of the other queries.
+ */
+@Service("parcelQueryExecutor")
+public class ParcelQueryExecutor {
+    private volatile ThreadPoolExecutor executor;
+    private volatile ThreadPoolExecutor streamExecutor;
+    private volatile long timeout;
+    private volatile long streamTimeout;
+
+    /**
+     * Submits a query.
+     *
+     * @throws RejectedExecutionException if the executor is saturated
+     */
+    public Future<?> submit(Runnable query) throws RejectedExecutionException {
+        return executor().submit(query);
+    }
+
+    /**
+     * Submits a query whose results are streamed to the client.
+     *
+     * @throws RejectedExecutionException if the maximum number of streams are already running
+     */
+    public Future<?> submitStream(Runnable query) throws RejectedExecutionException {
+        executor();
+        return this.streamExecutor.submit(query);
+    }
+
+    /**
+     * Returns the time (in milliseconds) after which a query is abandoned.
+     */
+    public long getTimeout() {
+        executor();
+        return this.timeout;
+    }
+
+    /**
+     * Returns the time (in milliseconds) after which a streamed response is abandoned.
+     * A streamed response lasts as long as the client reads it, hence it has its own, longer, timeout.
+     */
+    public long getStreamTimeout() {
+        executor();
+        return this.streamTimeout;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.streamExecutor.shutdownNow();
+        }
+    }
+
+    // The pool is created on first use, after the configuration is available
+    private ThreadPoolExecutor executor() {
+        if (this.executor == null) {
+            synchronized (this) {
+                if (this.executor == null) {
+                    final int threads = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.L4C_QUERY_THREADS_CFG_KEY, "8")));
+                    final int queueSize = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.L4C_QUERY_QUEUE_SIZE_CFG_KEY, "32")));
+                    final int streams = Math.max(1, Integer.parseInt(Config.getSetting(ConfigurationKeys.L4C_STREAM_THREADS_CFG_KEY, "2")));
+                    this.timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(Config.getSetting(ConfigurationKeys.L4C_QUERY_TIMEOUT_CFG_KEY, "60")));
+                    this.streamTimeout = TimeUnit.SECONDS.toMillis(Math.max(1, Long.parseLong(Config.getSetting(ConfigurationKeys.L4C_STREAM_TIMEOUT_CFG_KEY, "600"))));
+                    // a stream waiting in a queue would use up its timeout, hence the streams over the limit are rejected
+                    this.streamExecutor = new ThreadPoolExecutor(streams, streams, 60, TimeUnit.SECONDS,
+                                                                 new SynchronousQueue<>(), threadFactory("parcel-stream-"),
+                                                                 new ThreadPoolExecutor.AbortPolicy());
+                    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                           new ArrayBlockingQueue<>(queueSize), threadFactory("parcel-query-"),
+                                                           new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return this.executor;
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
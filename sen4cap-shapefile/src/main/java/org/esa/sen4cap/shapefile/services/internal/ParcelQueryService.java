@@ -21,11 +21,14 @@ package org.esa.sen4cap.shapefile.services.internal;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.entities.Site;
-import org.esa.sen4cap.shapefile.db.Database;
 import org.esa.sen4cap.shapefile.entities.ParcelInfo;
 import org.esa.sen4cap.shapefile.entities.Practice;
 import org.esa.sen4cap.shapefile.entities.xml.ParcelXml;
+import org.esa.sen4cap.shapefile.entities.xml.ParcelXmlParser;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ro.cs.tao.serialization.BaseSerializer;
 import ro.cs.tao.serialization.MediaType;
@@ -33,24 +36,26 @@ import ro.cs.tao.serialization.SerializationException;
 import ro.cs.tao.serialization.SerializerFactory;
 import ro.cs.tao.utils.Tuple;
 
-import java.io.File;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Service("parcelQueryService")
 public class ParcelQueryService {
-    private static final Map<Integer, Map<String, Tuple<Long, Long>>> offsets;
+    public static final int STREAM_CHUNK_SIZE = 1000;
     private static final ObjectMapper jsonSerializer;
     private static final BaseSerializer<ParcelXml> xmlDeserializer;
     private Logger logger = Logger.getLogger(ParcelQueryService.class.getName());
 
+    @Autowired
+    private L4CProductCatalog productCatalog;
+
+    @Autowired
+    private TimeSeriesStoreService storeService;
+
     static {
         jsonSerializer = new ObjectMapper();
         jsonSerializer.registerModule(new JavaTimeModule());
@@ -60,7 +65,6 @@ public class ParcelQueryService {
         } catch (SerializationException e) {
             throw new RuntimeException(e);
         }
-        offsets = new WeakHashMap<>();
     }
 
 //    public static void main(String[] args) throws IOException, SerializationException {
@@ -78,21 +82,19 @@ public class ParcelQueryService {
 //    }
 
     public List<ParcelInfo> getParcelInfo(Site site, int year, Practice practice, String... ids) throws IOException, SerializationException {
-        int key = Objects.hash(site, year, practice);
-        String dataFileName = getDataFile(site.getId(), year, practice);
-        if (dataFileName == null || !Files.exists(Paths.get(dataFileName))) {
-            throw new IOException(String.format("Data [%s] file not found", dataFileName));
-        }
-        String indexFileName = dataFileName + ".idx";
-        logger.finest(String.format("Using index file %s", indexFileName));
-        if (!offsets.containsKey(key)) {
-            logger.finest(String.format("Index for site %s not loaded, reading from file %s",
-                                        site.getShortName(), indexFileName));
-            readIndexFile(key, indexFileName);
-        }
+        Tuple<String, ParcelIndex> plot = openPlot(site, year, practice);
+        String dataFileName = plot.getKeyOne();
+        ParcelIndex index = plot.getKeyTwo();
+        ParcelTimeSeriesStore store = storeService.getStore(dataFileName);
+        List<ParcelInfo> parcels = new ArrayList<>();
         Map<String, Tuple<Long, Long>> parcelsOffsets = new LinkedHashMap<>();
         for (String id : ids) {
-            Tuple<Long, Long> offsets = ParcelQueryService.offsets.get(key).get(id);
+            ParcelInfo parcel = store != null ? store.find(id) : null;
+            if (parcel != null) {
+                parcels.add(parcel);
+                continue;
+            }
+            Tuple<Long, Long> offsets = index.find(id);
             if (offsets != null) {
                 parcelsOffsets.put(id, offsets);
             } else {
@@ -100,86 +102,116 @@ public class ParcelQueryService {
                                              id, dataFileName));
             }
         }
-        return readParcels(dataFileName, parcelsOffsets);
+        parcels.addAll(readParcels(dataFileName, parcelsOffsets));
+        return parcels;
     }
 
-    private String getDataFile(int siteId, int year, Practice practice) throws IOException {
-        String productPath = Database.getL4CProduct(siteId, year, practice);
-        logger.finest(String.format("Using product %s", productPath));
-        if (productPath == null || !Files.exists(Paths.get(productPath))) {
-            throw new IOException(String.format("L4C Product [%s] not found", productPath));
+    /**
+     * Passes the information of the given parcels to the consumer, as they are read.
+     * The parcels are taken from the time series store of the plot file if available, otherwise from the XML file.
+     * At most {@link #STREAM_CHUNK_SIZE} parcels are read and decoded at a time, so the memory used
+     * does not depend on the number of requested parcels.
+     */
+    public void streamParcelInfo(Site site, int year, Practice practice, Collection<String> ids,
+                                 Consumer<ParcelInfo> consumer) throws IOException {
+        Tuple<String, ParcelIndex> plot = openPlot(site, year, practice);
+        String dataFileName = plot.getKeyOne();
+        ParcelIndex index = plot.getKeyTwo();
+        ParcelTimeSeriesStore store = storeService.getStore(dataFileName);
+        Map<String, Tuple<Long, Long>> parcelsOffsets = new LinkedHashMap<>();
+        int missing = 0;
+        for (String id : ids) {
+            ParcelInfo parcel = store != null ? store.find(id) : null;
+            if (parcel != null) {
+                consumer.accept(parcel);
+                continue;
+            }
+            Tuple<Long, Long> offsets = index.find(id);
+            if (offsets == null) {
+                missing++;
+                continue;
+            }
+            parcelsOffsets.put(id, offsets);
+            if (parcelsOffsets.size() == STREAM_CHUNK_SIZE) {
+                readParcels(dataFileName, parcelsOffsets).forEach(consumer);
+                parcelsOffsets.clear();
+            }
         }
-        Path vectDataPath = Paths.get(productPath).resolve("VECTOR_DATA");
-        if (!Files.exists(vectDataPath)) {
-            throw new IOException(String.format("L4C Product [%s] VECTOR_DATA cannot be accessed", productPath));
+        if (!parcelsOffsets.isEmpty()) {
+            readParcels(dataFileName, parcelsOffsets).forEach(consumer);
         }
-        String vectDataPathStr = vectDataPath.toString();
-        logger.finest(String.format("Checking for PLOT file in %s", vectDataPathStr));
-        File dir = new File(vectDataPathStr);
-        File [] files = dir.listFiles((d, s) ->
-            s.contains(practice.toString()) && s.contains("_PLOT") && s.toLowerCase().endsWith(".xml")
-        );
-        if (files.length == 0) {
-            throw new IOException(String.format("No plot found in product [%s]", vectDataPathStr));
+        if (missing > 0) {
+            logger.fine(String.format("%d parcels not found in the data file '%s'", missing, dataFileName));
         }
-
-        logger.finest(String.format("Using PLOT file %s", files[0].getAbsolutePath()));
-        return files[0].getAbsolutePath();
     }
 
-    private void readIndexFile(int key, String indexFileName) throws IOException {
-        Map<String, Tuple<Long, Long>> map = new HashMap<>();
-        try (Stream<String> stream = Files.lines(Paths.get(indexFileName))) {
-            stream.forEach(line -> {
-                int idx1 = line.indexOf(";");
-                int idx2 = line.indexOf(";", idx1 + 1);
-                if (idx1 == -1 || idx2 == -1) {
-                    logger.warning(String.format("Invalid record [%s]", line));
-                    return;
-                }
-                try {
-                    map.put(line.substring(0, idx1),
-                            new Tuple<>(Long.parseLong(line.substring(idx1 + 1, idx2)),
-                                        Long.parseLong(line.substring(idx2 + 1))));
-                } catch (NumberFormatException nfe) {
-                    logger.warning(String.format("Invalid record [%s]", line));
-                }
-            });
+    /**
+     * Checks if the L4C product of the site may hold any of the given parcels.
+     * The answer is <code>false</code> only if the index of the product was already loaded and it holds none
+     * of the parcels, so sites that certainly don't have the parcels can be skipped.
+     */
+    public boolean mayHoldAny(Site site, int year, Practice practice, Collection<String> ids) {
+        try {
+            String plotFile = Paths.get(productCatalog.getPlotFile(site, year, practice)).toAbsolutePath().toString();
+            return IndexCacheHolder.router.mayHoldAny(site.getId(), year, practice, plotFile, ids);
+        } catch (IOException ex) {
+            // let the query itself report the error
+            return true;
         }
-        offsets.put(key, map);
+    }
+
+    /**
+     * Returns the number of parcel index lookups served from the cache.
+     */
+    public long getIndexCacheHits() { return IndexCacheHolder.indexes.hits(); }
+
+    /**
+     * Returns the number of parcel index lookups that required (re)opening the index.
+     */
+    public long getIndexCacheMisses() { return IndexCacheHolder.indexes.misses(); }
+
+    /**
+     * Evicts all the cached parcel indexes.
+     */
+    public void clearIndexCache() { IndexCacheHolder.indexes.clear(); }
+
+    private Tuple<String, ParcelIndex> openPlot(Site site, int year, Practice practice) throws IOException {
+        String dataFileName = productCatalog.getPlotFile(site, year, practice);
+        String indexFileName = dataFileName + ".idx";
+        logger.finest(String.format("Using index file %s", indexFileName));
+        return new Tuple<>(dataFileName,
+                           IndexCacheHolder.indexes.get(site.getId(), year, practice,
+                                                        Paths.get(dataFileName), Paths.get(indexFileName)));
     }
 
     private List<ParcelInfo> readParcels(String dataFileName,
                                          Map<String, Tuple<Long, Long>> parcelOffsets) throws IOException {
-        List<ParcelInfo> parcels;
-        try (RandomAccessFile raf = new RandomAccessFile(dataFileName, "r")) {
-            parcels = new ArrayList<>();
-            List<Map.Entry<String, Tuple<Long, Long>>> sortedOffsets =
-                    parcelOffsets.entrySet().stream()
-                            .sorted(Comparator.comparingLong(o -> o.getValue().getKeyOne())).collect(Collectors.toList());
-            int idx;
-            byte[] buffer;
-            for (Map.Entry<String, Tuple<Long, Long>> entry : sortedOffsets) {
-                Tuple<Long, Long> entryValue = entry.getValue();
-                raf.seek(entryValue.getKeyOne());
-                Long keyTwo = entryValue.getKeyTwo();
-                buffer = new byte[keyTwo.intValue()];
-                idx = 0;
-                while (idx < buffer.length) {
-                    buffer[idx++] = raf.readByte();
-                }
-                String value = new String(buffer);
-                try {
-                    parcels.add(bufferToEntity(value));
-                } catch (SerializationException ex) {
-                    logger.warning(String.format("Invalid record format [%s]", value));
-                }
+        List<ParcelInfo> parcels = new ArrayList<>();
+        for (String value : ParcelRecordReader.read(Paths.get(dataFileName), new ArrayList<>(parcelOffsets.values()))) {
+            try {
+                parcels.add(bufferToEntity(value));
+            } catch (SerializationException ex) {
+                logger.warning(String.format("Invalid record format [%s]", value));
             }
         }
         return parcels;
     }
 
     private ParcelInfo bufferToEntity(String contents) throws SerializationException {
-        return xmlDeserializer.deserialize(contents).toInfo();
+        try {
+            return ParcelXmlParser.parse(contents);
+        } catch (XMLStreamException | RuntimeException ex) {
+            logger.finest(String.format("Streaming parse failed (%s), falling back to JAXB", ex.getMessage()));
+            return xmlDeserializer.deserialize(contents).toInfo();
+        }
+    }
+
+    // The cache is created on first use, after the configuration is available
+    private static class IndexCacheHolder {
+        private static final ParcelRouter router = new ParcelRouter();
+        private static final ParcelIndexCache indexes =
+                new ParcelIndexCache(Integer.parseInt(Config.getSetting(ConfigurationKeys.L4C_INDEX_CACHE_SIZE_CFG_KEY, "16")),
+                                     Long.parseLong(Config.getSetting(ConfigurationKeys.L4C_INDEX_CACHE_TTL_CFG_KEY, "60")),
+                                     router);
     }
 }
@@ -0,0 +1,91 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import ro.cs.tao.utils.Tuple;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads parcel records (as UTF-8 text) from an L4C <code>_PLOT</code> file using positional channel reads.
+ * The records are read in the order of their offsets, and records that are close to each other are fetched
+ * with a single read.
+ */
+final class ParcelRecordReader {
+    /** Records separated by at most this many bytes are read together */
+    static final int MAX_GAP = 64 * 1024;
+    /** Maximum size of a coalesced read */
+    static final int MAX_READ_SIZE = 8 * 1024 * 1024;
+
+    private ParcelRecordReader() { }
+
+    /**
+     * Returns the text of the records at the given (offset, length) positions, sorted by offset.
+     */
+    static List<String> read(Path dataFile, List<Tuple<Long, Long>> ranges) throws IOException {
+        final List<Tuple<Long, Long>> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(Tuple::getKeyOne));
+        final List<String> records = new ArrayList<>(sorted.size());
+        ByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            int first = 0;
+            while (first < sorted.size()) {
+                final long start = sorted.get(first).getKeyOne();
+                long end = start + sorted.get(first).getKeyTwo();
+                int last = first + 1;
+                while (last < sorted.size()) {
+                    final Tuple<Long, Long> next = sorted.get(last);
+                    final long nextEnd = Math.max(end, next.getKeyOne() + next.getKeyTwo());
+                    if (next.getKeyOne() - end > MAX_GAP || nextEnd - start > MAX_READ_SIZE) {
+                        break;
+                    }
+                    end = nextEnd;
+                    last++;
+                }
+                final int size = (int) (end - start);
+                if (buffer == null || buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size);
+                }
+                buffer.clear().limit(size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new EOFException(String.format("Unexpected end of file %s at offset %d",
+                                                             dataFile, start + buffer.position()));
+                    }
+                }
+                for (int i = first; i < last; i++) {
+                    final Tuple<Long, Long> range = sorted.get(i);
+                    records.add(new String(buffer.array(), (int) (range.getKeyOne() - start),
+                                           range.getKeyTwo().intValue(), StandardCharsets.UTF_8));
+                }
+                first = last;
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen4cap.shapefile.entities.Practice;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes parcel identifiers to the L4C plot files (of a site, year and practice) that may hold them.
+ * Each plot file is represented by a Bloom filter of its parcel identifiers, which is registered when
+ * its index is loaded. Plot files whose index was not loaded yet are assumed to hold any parcel.
+ */
+final class ParcelRouter {
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    void register(int siteId, int year, Practice practice, String plotFile, BloomFilter filter) {
+        this.routes.put(key(siteId, year, practice), new Route(plotFile, filter));
+    }
+
+    boolean isRegistered(int siteId, int year, Practice practice, String plotFile) {
+        final Route route = this.routes.get(key(siteId, year, practice));
+        return route != null && route.plotFile.equals(plotFile);
+    }
+
+    /**
+     * Returns <code>false</code> only if the plot file certainly holds none of the given parcels.
+     */
+    boolean mayHoldAny(int siteId, int year, Practice practice, String plotFile, Collection<String> ids) {
+        final Route route = this.routes.get(key(siteId, year, practice));
+        if (route == null || !route.plotFile.equals(plotFile)) {
+            return true;
+        }
+        for (String id : ids) {
+            if (route.filter.mightContain(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(int siteId, int year, Practice practice) {
+        return siteId + ":" + year + ":" + practice.name();
+    }
+
+    private static class Route {
+        private final String plotFile;
+        private final BloomFilter filter;
+
+        private Route(String plotFile, BloomFilter filter) {
+            this.plotFile = plotFile;
+            this.filter = filter;
+        }
+    }
+}
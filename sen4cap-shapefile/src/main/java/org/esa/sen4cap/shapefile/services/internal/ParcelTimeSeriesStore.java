@@ -0,0 +1,334 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen4cap.shapefile.entities.IntervalInfos;
+import org.esa.sen4cap.shapefile.entities.ParcelInfo;
+import org.esa.sen4cap.shapefile.entities.TimeSeries;
+import org.esa.sen4cap.shapefile.entities.xml.ParcelXmlParser;
+import ro.cs.tao.utils.Tuple;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Binary store of the time series of the parcels of an L4C <code>_PLOT</code> file, from which parcels are
+ * decoded without any XML parsing. The store has the following layout:
+ * <pre>
+ *     header:  magic (int) | version (int) | parcel count (int) | keys position (long)
+ *     entries: key position (long, relative to the keys) | key length (int) | record position (long) | record length (int), sorted by key
+ *     records: id | orig_id | harvest | practice (length-prefixed UTF-8 strings) |
+ *              ndvi, amp, coh series (count (int) | epoch days (int[count]) | values (double[count]))
+ *     keys:    UTF-8 bytes of the parcel identifiers
+ * </pre>
+ * The file is mapped in overlapping segments, so stores larger than 2GB can be mapped as well.
+ */
+final class ParcelTimeSeriesStore {
+    private static final int MAGIC = 0x50545353; // PTSS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_SIZE = 24;
+    private static final int CHUNK_SIZE = 1000;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    /** Maximum size of a record (and overlap of two consecutive segments) */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final Logger logger = Logger.getLogger(ParcelTimeSeriesStore.class.getName());
+    private final MappedByteBuffer[] segments;
+    private final int count;
+    private final long keysPosition;
+
+    /**
+     * Returns the store file of the given plot file (which may not exist yet).
+     */
+    static Path storeFile(Path plotFile) throws IOException {
+        return ParcelIndex.derivedFile(plotFile, ".ts");
+    }
+
+    /**
+     * Checks if the store of the given plot file exists and is not older than the plot file.
+     */
+    static boolean isUpToDate(Path plotFile) throws IOException {
+        final Path storeFile = storeFile(plotFile);
+        return Files.exists(storeFile) &&
+                Files.getLastModifiedTime(storeFile).compareTo(Files.getLastModifiedTime(plotFile)) >= 0;
+    }
+
+    static ParcelTimeSeriesStore open(Path plotFile) throws IOException {
+        return new ParcelTimeSeriesStore(storeFile(plotFile));
+    }
+
+    private ParcelTimeSeriesStore(Path storeFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(storeFile, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < this.segments.length; i++) {
+                final long start = i * SEGMENT_SIZE;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                               Math.min(SEGMENT_SIZE + MAX_RECORD_SIZE, size - start));
+            }
+        }
+        if (this.segments.length == 0 || this.segments[0].capacity() < HEADER_SIZE ||
+                this.segments[0].getInt(0) != MAGIC || this.segments[0].getInt(4) != VERSION) {
+            throw new IOException(String.format("Invalid time series store %s", storeFile));
+        }
+        this.count = this.segments[0].getInt(8);
+        this.keysPosition = this.segments[0].getLong(12);
+    }
+
+    int size() { return this.count; }
+
+    /**
+     * Returns the information of the given parcel, or <code>null</code> if the parcel is not in the store.
+     */
+    ParcelInfo find(String id) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = this.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long entry = HEADER_SIZE + (long) middle * ENTRY_SIZE;
+            final int cmp = compare(this.keysPosition + getLong(entry), getInt(entry + 8), key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                final int length = getInt(entry + 20);
+                return length > 0 ? decode(view(getLong(entry + 12), length)) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts the parcels of a plot file (as listed by its index) into a store.
+     */
+    static void convert(Path plotFile, ParcelIndex index, Path storeFile) throws IOException {
+        final int count = index.size();
+        final Path tmpFile = Files.createTempFile(storeFile.getParent(), storeFile.getFileName().toString(), ".tmp");
+        final Path keysFile = Files.createTempFile(storeFile.getParent(), storeFile.getFileName().toString(), ".keys");
+        try {
+            int skipped = 0;
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE);
+                 OutputStream keys = new BufferedOutputStream(Files.newOutputStream(keysFile), 1 << 16)) {
+                long recordPosition = HEADER_SIZE + (long) count * ENTRY_SIZE;
+                long keyPosition = 0;
+                final ByteArrayOutputStream records = new ByteArrayOutputStream(1 << 20);
+                final DataOutputStream recordStream = new DataOutputStream(records);
+                final ByteBuffer entries = ByteBuffer.allocate(CHUNK_SIZE * ENTRY_SIZE);
+                for (int first = 0; first < count; first += CHUNK_SIZE) {
+                    final int last = Math.min(count, first + CHUNK_SIZE);
+                    // read the XML records in file order, but keep track of their position in the (key-ordered) index
+                    final List<Integer> order = new ArrayList<>(last - first);
+                    final List<Tuple<Long, Long>> ranges = new ArrayList<>(last - first);
+                    for (int i = first; i < last; i++) {
+                        order.add(i);
+                    }
+                    order.sort(Comparator.comparingLong(i -> index.rangeAt(i).getKeyOne()));
+                    for (int i : order) {
+                        ranges.add(index.rangeAt(i));
+                    }
+                    final List<String> texts = ParcelRecordReader.read(plotFile, ranges);
+                    final long[] positions = new long[last - first];
+                    final int[] lengths = new int[last - first];
+                    records.reset();
+                    for (int j = 0; j < texts.size(); j++) {
+                        final int start = records.size();
+                        try {
+                            encode(ParcelXmlParser.parse(texts.get(j)), recordStream);
+                        } catch (Exception ex) {
+                            // the parcel will be served from the XML file
+                            skipped++;
+                            continue;
+                        }
+                        recordStream.flush();
+                        final int length = records.size() - start;
+                        if (length > MAX_RECORD_SIZE) {
+                            skipped++;
+                            continue;
+                        }
+                        positions[order.get(j) - first] = recordPosition + start;
+                        lengths[order.get(j) - first] = length;
+                    }
+                    final ByteBuffer recordBuffer = ByteBuffer.wrap(records.toByteArray());
+                    while (recordBuffer.hasRemaining()) {
+                        channel.write(recordBuffer, recordPosition + recordBuffer.position());
+                    }
+                    recordPosition += records.size();
+                    entries.clear();
+                    for (int i = first; i < last; i++) {
+                        final byte[] key = index.keyAt(i).getBytes(StandardCharsets.UTF_8);
+                        keys.write(key);
+                        entries.putLong(keyPosition).putInt(key.length)
+                               .putLong(positions[i - first]).putInt(lengths[i - first]);
+                        keyPosition += key.length;
+                    }
+                    entries.flip();
+                    final long entriesPosition = HEADER_SIZE + (long) first * ENTRY_SIZE;
+                    while (entries.hasRemaining()) {
+                        channel.write(entries, entriesPosition + entries.position());
+                    }
+                }
+                keys.flush();
+                try (FileChannel keysChannel = FileChannel.open(keysFile, StandardOpenOption.READ)) {
+                    long transferred = 0;
+                    while (transferred < keyPosition) {
+                        transferred += keysChannel.transferTo(transferred, keyPosition - transferred,
+                                                              channel.position(recordPosition + transferred));
+                    }
+                }
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(count).putLong(recordPosition).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+            }
+            Files.move(tmpFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.fine(String.format("Converted %d parcels of %s (%d left in XML only)", count - skipped, plotFile, skipped));
+        } finally {
+            Files.deleteIfExists(tmpFile);
+            Files.deleteIfExists(keysFile);
+        }
+    }
+
+    private static void encode(ParcelInfo info, DataOutputStream out) throws IOException {
+        writeString(info.getId(), out);
+        writeString(info.getOrigId(), out);
+        writeInterval(info.getHarvest(), out);
+        writeInterval(info.getPractice(), out);
+        writeSeries(info.getNdvi(), out);
+        writeSeries(info.getAmp(), out);
+        writeSeries(info.getCoh(), out);
+    }
+
+    private static void writeString(String value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeInterval(IntervalInfos interval, DataOutputStream out) throws IOException {
+        out.writeBoolean(interval != null);
+        if (interval != null) {
+            writeString(interval.getStart(), out);
+            writeString(interval.getEnd(), out);
+        }
+    }
+
+    private static void writeSeries(TimeSeries series, DataOutputStream out) throws IOException {
+        if (series == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(series.size());
+        for (int i = 0; i < series.size(); i++) {
+            out.writeInt(series.getEpochDay(i));
+        }
+        for (int i = 0; i < series.size(); i++) {
+            out.writeDouble(series.getValue(i));
+        }
+    }
+
+    private static ParcelInfo decode(ByteBuffer record) {
+        final ParcelInfo info = new ParcelInfo();
+        info.setId(readString(record));
+        info.setOrigId(readString(record));
+        info.setHarvest(readInterval(record));
+        info.setPractice(readInterval(record));
+        info.setNdvi(readSeries(record));
+        info.setAmp(readSeries(record));
+        info.setCoh(readSeries(record));
+        return info;
+    }
+
+    private static String readString(ByteBuffer record) {
+        final int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static IntervalInfos readInterval(ByteBuffer record) {
+        return record.get() != 0 ? new IntervalInfos(readString(record), readString(record)) : null;
+    }
+
+    private static TimeSeries readSeries(ByteBuffer record) {
+        final int size = record.getInt();
+        if (size < 0) {
+            return null;
+        }
+        final int[] days = new int[size];
+        final double[] values = new double[size];
+        record.asIntBuffer().get(days);
+        record.position(record.position() + size * Integer.BYTES);
+        record.asDoubleBuffer().get(values);
+        record.position(record.position() + size * Double.BYTES);
+        return new TimeSeries(days, values);
+    }
+
+    private ByteBuffer view(long position, int length) {
+        final ByteBuffer view = this.segments[(int) (position / SEGMENT_SIZE)].duplicate();
+        final int offset = (int) (position % SEGMENT_SIZE);
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    private int getInt(long position) {
+        return this.segments[(int) (position / SEGMENT_SIZE)].getInt((int) (position % SEGMENT_SIZE));
+    }
+
+    private long getLong(long position) {
+        return this.segments[(int) (position / SEGMENT_SIZE)].getLong((int) (position % SEGMENT_SIZE));
+    }
+
+    private int compare(long position, int length, byte[] key) {
+        final ByteBuffer segment = this.segments[(int) (position / SEGMENT_SIZE)];
+        final int offset = (int) (position % SEGMENT_SIZE);
+        final int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            final int cmp = (segment.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+}
@@ -25,48 +25,79 @@ import org.esa.sen4cap.shapefile.parsers.GenericParser;
 import org.esa.sen4cap.shapefile.services.ParserService;
 import org.springframework.stereotype.Service;
 
-import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 @Service("parserService")
 public class ParserServiceImpl implements ParserService {
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
 
-    private GeneralizedLPISTable lastTable;
+    private volatile GeneralizedLPISTable lastTable;
 
     public void setLastTable(GeneralizedLPISTable lastTable) { this.lastTable = lastTable; }
 
     @Override
     public long updateDatabase(Site site, DataType fileType, int year, Path shapeFile, String epsgCode, long offset) throws Exception {
+        return updateDatabase(site, fileType, year, shapeFile, epsgCode, offset, false, false);
+    }
+
+    @Override
+    public long updateDatabase(Site site, DataType fileType, int year, Path shapeFile, String epsgCode, boolean resume) throws Exception {
+        return updateDatabase(site, fileType, year, shapeFile, epsgCode, 0, resume, false);
+    }
+
+    @Override
+    public long updateDatabaseIncremental(Site site, DataType fileType, int year, Path shapeFile, String epsgCode) throws Exception {
+        return updateDatabase(site, fileType, year, shapeFile, epsgCode, 0, false, true);
+    }
+
+    private long updateDatabase(Site site, DataType fileType, int year, Path shapeFile, String epsgCode,
+                                long offset, boolean resume, boolean incremental) throws Exception {
         long total = 0;
         if (Files.isRegularFile(shapeFile)) {
             GenericParser parser = GenericParser.create(site, fileType, year, shapeFile, epsgCode);
-            total = parser.parse(offset);
+            total = incremental ? parser.parseIncremental(true) : parser.parse(offset, resume);
             setLastTable(parser.getTable());
         } else {
-            total = Files.walk(shapeFile, 2, FileVisitOption.FOLLOW_LINKS)
-                    .filter(f -> f.getFileName().toString().toLowerCase().endsWith(".shp"))
-                    .mapToLong(f -> {
-                        long results = 0;
-                        try {
-                            GenericParser parser = GenericParser.create(site, fileType, year, shapeFile, epsgCode);
-                            results = parser.parse(offset);
-                            setLastTable(parser.getTable());
-                        } catch (Exception ex) {
-                            Logger.getLogger(ParserService.class.getSimpleName()).warning(ex.getMessage());
-                        }
-                        return results;
-                    }).sum();
+            final AtomicBoolean bulkLoad = new AtomicBoolean();
+            total = DirectoryImport.execute(shapeFile, files -> {
+                // the files share the table and the lpis_gsaa_file record, which are created before the concurrent imports
+                Exception failure = null;
+                for (Path f : files) {
+                    try {
+                        bulkLoad.set(GenericParser.create(site, fileType, year, f, epsgCode).prepare());
+                        return;
+                    } catch (Exception ex) {
+                        // a file which cannot be parsed will fail its import as well, another one is tried
+                        failure = ex;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }, f -> {
+                GenericParser parser = GenericParser.create(site, fileType, year, f, epsgCode);
+                parser.setBulkLoad(bulkLoad.get());
+                // the files of a folder share the same lpis_gsaa_file, so the records of one are missing from the others
+                long results = incremental ? parser.parseIncremental(false) : parser.parse(offset, resume);
+                setLastTable(parser.getTable());
+                return results;
+            }, Logger.getLogger(ParserService.class.getSimpleName()));
         }
         executor.submit(() -> {
             try {
                 Logger.getLogger(ParserService.class.getSimpleName()).info("Updating index structures");
                 if (lastTable != null) {
-                    lastTable.reindex();
+                    if (incremental && !lastTable.isBulkLoad()) {
+                        // only a few rows changed, rebuilding all the indexes would cost more than the import
+                        lastTable.analyze();
+                    } else {
+                        lastTable.updateIndexes();
+                    }
                 } else {
                     Logger.getLogger(ParserService.class.getSimpleName()).severe("No table to reindex!");
                 }
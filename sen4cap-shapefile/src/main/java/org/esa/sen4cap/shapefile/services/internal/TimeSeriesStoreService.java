@@ -0,0 +1,133 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Converts the L4C <code>_PLOT</code> files into binary time series stores (see {@link ParcelTimeSeriesStore})
+ * and keeps the opened stores. The conversion runs in background, when a new L4C product is found or
+ * when a plot file without a store is first queried; until then, the parcels are read from the XML file.
+ */
+@Service("timeSeriesStoreService")
+public class TimeSeriesStoreService {
+    private final Map<String, ParcelTimeSeriesStore> stores = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "l4c-store-ingest");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Logger logger = Logger.getLogger(TimeSeriesStoreService.class.getName());
+
+    /**
+     * Returns the store of the given plot file, or <code>null</code> if it is not (yet) available,
+     * in which case its conversion is scheduled.
+     */
+    ParcelTimeSeriesStore getStore(String plotFile) {
+        ParcelTimeSeriesStore store = this.stores.get(plotFile);
+        if (store != null || !isEnabled() || this.pending.contains(plotFile) || this.failed.contains(plotFile)) {
+            return store;
+        }
+        try {
+            final Path path = Paths.get(plotFile);
+            if (ParcelTimeSeriesStore.isUpToDate(path)) {
+                store = ParcelTimeSeriesStore.open(path);
+                this.stores.put(plotFile, store);
+            } else {
+                schedule(plotFile);
+            }
+        } catch (IOException ex) {
+            logger.warning(String.format("Cannot open the time series store of %s: %s", plotFile, ex.getMessage()));
+            this.failed.add(plotFile);
+        }
+        return store;
+    }
+
+    /**
+     * Schedules the conversion of the plot files of a (new) L4C product.
+     */
+    public void ingestProduct(String productPath) {
+        if (!isEnabled()) {
+            return;
+        }
+        final File[] files = Paths.get(productPath).resolve("VECTOR_DATA").toFile().listFiles((d, s) ->
+            s.contains("_PLOT") && s.toLowerCase().endsWith(".xml"));
+        if (files != null) {
+            for (File file : files) {
+                schedule(file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Drops the opened stores (for instance, when products were removed) and allows failed conversions to be retried.
+     */
+    public void invalidate() {
+        this.stores.clear();
+        this.failed.clear();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private void schedule(String plotFile) {
+        if (!this.pending.add(plotFile)) {
+            return;
+        }
+        this.executor.submit(() -> {
+            final Path path = Paths.get(plotFile);
+            try {
+                if (!ParcelTimeSeriesStore.isUpToDate(path)) {
+                    final long start = System.currentTimeMillis();
+                    final ParcelIndex index = ParcelIndex.open(Paths.get(plotFile + ".idx"));
+                    ParcelTimeSeriesStore.convert(path, index, ParcelTimeSeriesStore.storeFile(path));
+                    logger.info(String.format("Time series store of %s created in %d ms",
+                                              plotFile, System.currentTimeMillis() - start));
+                }
+            } catch (Exception ex) {
+                logger.warning(String.format("Cannot create the time series store of %s: %s", plotFile, ex.getMessage()));
+                this.failed.add(plotFile);
+            } finally {
+                this.pending.remove(plotFile);
+            }
+        });
+    }
+
+    private boolean isEnabled() {
+        return Boolean.parseBoolean(Config.getSetting(ConfigurationKeys.L4C_TS_STORE_ENABLED_CFG_KEY, "true"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.DataType;
+import org.esa.sen4cap.shapefile.db.GeneralizedLPISTable;
+import org.esa.sen4cap.shapefile.db.LPISFileTable;
+import org.esa.sen4cap.shapefile.db.ParcelTileTable;
+import org.esa.sen4cap.shapefile.services.ConversionService;
+import org.esa.sen4cap.shapefile.web.beans.ConfigurationKeys;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Service;
+import ro.cs.tao.services.commons.StartupBase;
+import ro.cs.tao.utils.Tuple;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Produces the Mapbox vector tiles (in the Web Mercator tiling scheme) of the LPIS/GSAA parcels of a site.
+ * The tiles are cached on disk, under <code>tiles/&lt;table&gt;/&lt;year&gt;/&lt;file id&gt;_&lt;updated&gt;</code>,
+ * where <code>updated</code> is the update time of the <code>lpis_gsaa_file</code> record.
+ * Since a (re-)import changes the update time, the tiles of the previous import are no longer used and are removed.
+ */
+@Service("vectorTileService")
+public class VectorTileService {
+    public static final String LAYER_NAME = "parcels";
+    private static final double MERCATOR_HALF_SIZE = 20037508.342789244;
+    private static final int TILE_EXTENT = 4096;
+    private static final int TILE_BUFFER = 64;
+    private static final long FILE_RECORD_TTL = 30000;
+    private static final byte[] EMPTY_TILE = new byte[0];
+    private final Map<String, Tuple<LPISFileTable.Record, Long>> fileRecords = new ConcurrentHashMap<>();
+    private final Logger logger = Logger.getLogger(VectorTileService.class.getName());
+
+    @Autowired
+    private ConversionService conversionService;
+
+    /**
+     * Returns the tile <code>z/x/y</code> of the parcels of the given site, type and year.
+     * An empty array is returned if the tile contains no parcel or the zoom level is below the configured minimum,
+     * and <code>null</code> if no file of the given type was imported for the site and year.
+     */
+    public byte[] getTile(Site site, DataType type, int year, int z, int x, int y) throws IOException {
+        final int tiles = 1 << z;
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException(String.format("Invalid tile %d/%d/%d", z, x, y));
+        }
+        final LPISFileTable.Record fileRecord = getFileRecord(site, type, year);
+        if (fileRecord == null) {
+            return null;
+        }
+        if (z < Integer.parseInt(Config.getSetting(ConfigurationKeys.LPIS_TILES_MIN_ZOOM_CFG_KEY, "10"))) {
+            return EMPTY_TILE;
+        }
+        final String tableName = GeneralizedLPISTable.tableName(site, type);
+        if (!Boolean.parseBoolean(Config.getSetting(ConfigurationKeys.LPIS_TILES_CACHE_ENABLED_CFG_KEY, "true"))) {
+            return createTile(tableName, fileRecord.getId(), z, x, y);
+        }
+        final Path versionFolder = versionFolder(tableName, fileRecord);
+        final Path tileFile = versionFolder.resolve(String.valueOf(z)).resolve(String.valueOf(x)).resolve(y + ".mvt");
+        if (Files.exists(tileFile)) {
+            return Files.readAllBytes(tileFile);
+        }
+        final byte[] tile = createTile(tableName, fileRecord.getId(), z, x, y);
+        try {
+            Files.createDirectories(tileFile.getParent());
+            // write to a temporary file first, so that a concurrent request doesn't read a partial tile
+            final Path tempFile = Files.createTempFile(tileFile.getParent(), y + "_", ".tmp");
+            Files.write(tempFile, tile);
+            Files.move(tempFile, tileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.warning(String.format("Cannot cache the tile %s: %s", tileFile, ex.getMessage()));
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the envelope, in EPSG:3857, of the given tile.
+     */
+    public static Envelope tileEnvelope(int z, int x, int y) {
+        final double tileSize = 2 * MERCATOR_HALF_SIZE / (1 << z);
+        final double minX = -MERCATOR_HALF_SIZE + x * tileSize;
+        final double maxY = MERCATOR_HALF_SIZE - y * tileSize;
+        return new Envelope(minX, minX + tileSize, maxY - tileSize, maxY);
+    }
+
+    private byte[] createTile(String tableName, int fileId, int z, int x, int y) {
+        final Envelope envelope = tileEnvelope(z, x, y);
+        // the geometries are clipped by the database only to reduce the transferred data
+        final double buffer = TILE_BUFFER * envelope.getWidth() / TILE_EXTENT;
+        final List<Tuple<Geometry, Map<String, Object>>> features =
+                ParcelTileTable.getInstance().select(tableName, fileId, envelope, buffer);
+        return features.isEmpty() ? EMPTY_TILE : conversionService.encodeTile(LAYER_NAME, envelope, z, features);
+    }
+
+    private LPISFileTable.Record getFileRecord(Site site, DataType type, int year) {
+        final String key = site.getId() + ":" + type.baseName() + ":" + year;
+        final Tuple<LPISFileTable.Record, Long> entry = this.fileRecords.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.getKeyTwo() < FILE_RECORD_TTL) {
+            return entry.getKeyOne();
+        }
+        LPISFileTable.Record fileRecord;
+        try {
+            fileRecord = LPISFileTable.getInstance().select(site, type, year);
+        } catch (EmptyResultDataAccessException ex) {
+            fileRecord = null;
+        }
+        this.fileRecords.put(key, new Tuple<>(fileRecord, System.currentTimeMillis()));
+        return fileRecord;
+    }
+
+    private Path versionFolder(String tableName, LPISFileTable.Record fileRecord) throws IOException {
+        final Path yearFolder = StartupBase.homeDirectory().resolve("tiles").resolve(tableName)
+                                           .resolve(String.valueOf(fileRecord.getYear()));
+        final String prefix = fileRecord.getId() + "_";
+        final Path versionFolder = yearFolder.resolve(prefix +
+                fileRecord.getUpdated().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        if (Files.notExists(versionFolder)) {
+            Files.createDirectories(versionFolder);
+            final List<Path> staleFolders;
+            try (Stream<Path> stream = Files.list(yearFolder)) {
+                staleFolders = stream.filter(f -> !f.equals(versionFolder) && f.getFileName().toString().startsWith(prefix))
+                                     .collect(Collectors.toList());
+            }
+            for (Path staleFolder : staleFolders) {
+                logger.fine(String.format("Removing the stale tiles in %s", staleFolder));
+                deleteFolder(staleFolder);
+            }
+        }
+        return versionFolder;
+    }
+
+    private void deleteFolder(Path folder) {
+        try (Stream<Path> stream = Files.walk(folder)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ex) {
+                    logger.warning(String.format("Cannot delete %s: %s", path, ex.getMessage()));
+                }
+            });
+        } catch (IOException ex) {
+            logger.warning(String.format("Cannot delete %s: %s", folder, ex.getMessage()));
+        }
+    }
+}
@@ -25,6 +25,9 @@ import org.esa.sen2agri.entities.Site;
 import org.esa.sen2agri.entities.enums.ActivityStatus;
 import org.esa.sen2agri.entities.enums.JobStartType;
 import org.esa.sen4cap.entities.enums.Processor;
+import org.esa.sen4cap.shapefile.db.DataType;
+import org.esa.sen4cap.shapefile.db.GeneralizedLPISTable;
+import org.esa.sen4cap.shapefile.services.ExportService;
 import org.esa.sen4cap.shapefile.web.beans.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -37,10 +40,12 @@ import ro.cs.tao.messaging.ProgressNotifier;
 import ro.cs.tao.messaging.Topic;
 import ro.cs.tao.security.SystemPrincipal;
 import ro.cs.tao.services.commons.ControllerBase;
+import ro.cs.tao.services.commons.StartupBase;
 import ro.cs.tao.utils.executors.*;
 
 import java.io.File;
 import java.net.InetAddress;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -65,6 +70,9 @@ public class ImportController extends ControllerBase {
     @Autowired
     private PersistenceManager persistenceManager;
 
+    @Autowired
+    private ExportService exportService;
+
     @RequestMapping(value = "/import/lpis", method = RequestMethod.GET, produces = "application/json")
     public ResponseEntity<?> importShapeFile(@RequestParam("siteId") short siteId,
                                              @RequestParam(name = "parcelColumns", required = false) String[] parcelColumns,
@@ -216,6 +224,55 @@ public class ImportController extends ControllerBase {
             }
         }
 
+        @RequestMapping(value = "/export/parcels", method = RequestMethod.GET, produces = "application/json")
+        public ResponseEntity<?> exportParcels(@RequestParam("siteId") short siteId,
+                                               @RequestParam(name = "type", required = false, defaultValue = "lpis") String type,
+                                               @RequestParam(name = "year", required = false) Integer year,
+                                               @RequestParam(name = "format", required = false, defaultValue = "fgb") String format,
+                                               @RequestParam(name = "file", required = false) String file) {
+            try {
+                Site site = persistenceManager.getSiteById(siteId);
+                if (site == null) {
+                    throw new IllegalArgumentException(String.format("Site with id %d does not exist", siteId));
+                }
+                final DataType dataType = DataType.fromBaseName(type);
+                if (dataType == null) {
+                    throw new IllegalArgumentException(String.format("Invalid type %s", type));
+                }
+                final ExportService.Format exportFormat = ExportService.Format.fromExtension(format);
+                if (exportFormat == null) {
+                    throw new IllegalArgumentException(String.format("Invalid format %s", format));
+                }
+                final int actualYear = year != null ? year : LocalDate.now().getYear();
+                final Path target = getExportPath(site, file != null ? file :
+                        String.format("%s_%d.%s", GeneralizedLPISTable.tableName(site, dataType), actualYear, exportFormat.extension()));
+                final int taskHashCode = taskStarted(siteId, target.toString());
+                if (taskHashCode != 0) {
+                    asyncExecute(() -> {
+                        final ProgressNotifier progressNotifier = new ProgressNotifier(SystemPrincipal.instance(),
+                                                                                       ImportController.this,
+                                                                                       Topic.create(Topic.PROGRESS, "lpis"));
+                        try {
+                            progressNotifier.started(target.getFileName().toString());
+                            final long count = exportService.exportParcels(site, dataType, actualYear, exportFormat, target);
+                            debug("%d parcels exported to %s", count, target);
+                        } catch (Exception ex) {
+                            error("Export to %s failed. Reason: %s", target, ex.getMessage());
+                        } finally {
+                            taskCompleted(taskHashCode, target.toString());
+                            progressNotifier.ended();
+                        }
+                    });
+                } else {
+                    return new ResponseEntity<>(String.format("Export to %s already in progress", target),
+                                                HttpStatus.BAD_REQUEST);
+                }
+                return prepareResult(String.format("Export to %s started", target), HttpStatus.OK);
+            } catch (Exception ex) {
+                return handleException(ex);
+            }
+        }
+
         private int taskStarted(Object... args) {
             int retVal = 0;
             final int taskHashCode = Objects.hash(args);
@@ -253,6 +310,20 @@ public class ImportController extends ControllerBase {
             });
         }
 
+        private Path getExportPath(Site site, String fileName) {
+            final String cfgVal = Config.getPersistenceManager().getSetting((short) 0, ConfigurationKeys.LPIS_EXPORT_DIR_CFG_KEY, "")
+                    .replace("{site}", site.getShortName());
+            final Path folder = ("".equals(cfgVal) ?
+                    StartupBase.homeDirectory().resolve("export").resolve(site.getShortName()) : Paths.get(cfgVal))
+                    .toAbsolutePath().normalize();
+            // the export replaces the target, so it may only be written inside the export folder
+            final Path target = folder.resolve(fileName).normalize();
+            if (!target.startsWith(folder) || target.equals(folder)) {
+                throw new IllegalArgumentException(String.format("Invalid export file %s", fileName));
+            }
+            return target;
+        }
+
         private String getConfigUploadPath(Site site, String key, String fileName) {
             return getConfigUploadPath(site, key, fileName, "");
         }
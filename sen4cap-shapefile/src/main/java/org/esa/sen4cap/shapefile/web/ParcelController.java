@@ -18,71 +18,119 @@
 
 package org.esa.sen4cap.shapefile.web;
 
-import org.esa.sen2agri.commons.Config;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.esa.sen2agri.entities.Site;
 import org.esa.sen4cap.shapefile.entities.ParcelInfo;
 import org.esa.sen4cap.shapefile.entities.Practice;
+import org.esa.sen4cap.shapefile.services.internal.L4CProductCatalog;
+import org.esa.sen4cap.shapefile.services.internal.ParcelQueryExecutor;
 import org.esa.sen4cap.shapefile.services.internal.ParcelQueryService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 import ro.cs.tao.services.commons.ControllerBase;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Controller
 @RequestMapping("/parcel")
 public class ParcelController  extends ControllerBase {
 
+    private static final ObjectMapper jsonMapper;
+    private static final Pattern idSeparator = Pattern.compile("[,;\\s]+");
     private Logger logger = Logger.getLogger(ParcelController.class.getName());
 
+    static {
+        jsonMapper = new ObjectMapper();
+        jsonMapper.registerModule(new JavaTimeModule());
+        jsonMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        jsonMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
     @Autowired
     private ParcelQueryService parcelQueryService;
 
+    @Autowired
+    private L4CProductCatalog productCatalog;
+
+    @Autowired
+    private ParcelQueryExecutor queryExecutor;
+
+    /**
+     * Returns the information of the given parcels. The query is executed asynchronously on the parcel query
+     * executor; if the executor is saturated, the request is rejected with HTTP 429.
+     */
     @RequestMapping(method = RequestMethod.GET, produces = "application/json")
-    public ResponseEntity<?> getParcelInfo(@RequestParam("site") String siteCode,
-                                           @RequestParam("id") String id,
-                                           @RequestParam("practice") Practice practice,
-                                           @RequestParam("year") int year) {
+    public DeferredResult<ResponseEntity<?>> getParcelInfo(@RequestParam("site") String siteCode,
+                                                           @RequestParam("id") String id,
+                                                           @RequestParam("practice") Practice practice,
+                                                           @RequestParam("year") int year) {
+        final DeferredResult<ResponseEntity<?>> result =
+                new DeferredResult<>(queryExecutor.getTimeout(),
+                                     new ResponseEntity<>("The parcel query timed out", HttpStatus.SERVICE_UNAVAILABLE));
+        try {
+            final Future<?> query = queryExecutor.submit(() -> result.setResult(queryParcels(siteCode, id, practice, year)));
+            result.onTimeout(() -> query.cancel(true));
+        } catch (RejectedExecutionException e) {
+            result.setResult(tooManyRequests());
+        }
+        return result;
+    }
+
+    private ResponseEntity<?> queryParcels(String siteCode, String id, Practice practice, int year) {
         ResponseEntity<?> result;
         try {
             if (id == null || id.isEmpty()) {
                 throw new IllegalArgumentException("Invalid parcel identifier");
             }
-            List<Site> sites = Config.getPersistenceManager().getAllSites();
+            List<Site> sites = getSites(siteCode);
             List<ParcelInfo> parcels;
             List<ParcelInfo> allParcels = new ArrayList<>();
-            boolean countryCodeFound = false;
             String[] parcelIds = id.split(",");
-            String siteCodeLC = siteCode.toLowerCase();
             for (Site site : sites) {
+                // skip the sites that certainly don't hold any of the remaining parcels
+                if (sites.size() > 1 && !parcelQueryService.mayHoldAny(site, year, practice, Arrays.asList(parcelIds))) {
+                    continue;
+                }
                 try {
-                    if (site.getName().toLowerCase().contains(siteCodeLC)) {
-                        countryCodeFound = true;
-                        parcels = parcelQueryService.getParcelInfo(site, year, practice, parcelIds);
-                        // add the extracted parcels to the returning parcels list
-                        allParcels.addAll(parcels);
-                        // get the parcel ids that were not yet extracted from the previous countries
-                        parcelIds = getRemainingParcelIds(allParcels, parcelIds);
-                        // all parcels extracted, no need to check other countries
-                        if (parcelIds.length == 0) {
-                            break;
-                        }
+                    parcels = parcelQueryService.getParcelInfo(site, year, practice, parcelIds);
+                    // add the extracted parcels to the returning parcels list
+                    allParcels.addAll(parcels);
+                    // get the parcel ids that were not yet extracted from the previous countries
+                    parcelIds = getRemainingParcelIds(allParcels, parcelIds);
+                    // all parcels extracted, no need to check other countries
+                    if (parcelIds.length == 0) {
+                        break;
                     }
                 } catch (Exception e) {
                     logger.warning(String.format("Error extracting the parcel information for site %s. Error was %s",
                             site.getName(), e.getMessage()));
                 }
             }
-            if (!countryCodeFound) {
-                throw new IllegalArgumentException("Invalid country code");
-            }
             if (allParcels.size() == 0) {
                 throw new IOException(String.format("None of the parcels requested in the list were " +
                         "not found in the sites with code %s for year %d", siteCode, year));
@@ -94,13 +142,170 @@ public class ParcelController  extends ControllerBase {
         return result;
     }
 
-    private String[] getRemainingParcelIds(List<ParcelInfo> parcels, String[] parcelIds) {
-        List<String> retList = new ArrayList<>();
-        for (String parcelId: parcelIds) {
-            if (parcels.stream().filter(x -> x.getId().equals(parcelId)).findFirst().orElse(null) == null) {
-                retList.add(parcelId);
+    /**
+     * Returns the information of the given parcels (as a JSON array body or an uploaded file with one or
+     * more identifiers per line), streamed as a JSON array or, if <code>format=ndjson</code>, as one JSON object per line.
+     */
+    @RequestMapping(method = RequestMethod.POST, consumes = "application/json")
+    public ResponseEntity<ResponseBodyEmitter> getParcelsInfo(@RequestParam("site") String siteCode,
+                                                              @RequestParam("practice") Practice practice,
+                                                              @RequestParam("year") int year,
+                                                              @RequestParam(name = "format", required = false, defaultValue = "json") String format,
+                                                              @RequestBody List<String> ids) {
+        try {
+            return streamParcels(siteCode, practice, year, format, ids == null ? new LinkedHashSet<>() : new LinkedHashSet<>(ids));
+        } catch (Exception e) {
+            return emitted(handleException(e));
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.POST, consumes = "multipart/form-data")
+    public ResponseEntity<ResponseBodyEmitter> getParcelsInfo(@RequestParam("site") String siteCode,
+                                                              @RequestParam("practice") Practice practice,
+                                                              @RequestParam("year") int year,
+                                                              @RequestParam(name = "format", required = false, defaultValue = "json") String format,
+                                                              @RequestParam("file") MultipartFile file) {
+        try {
+            Set<String> ids = new LinkedHashSet<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    for (String id : idSeparator.split(line)) {
+                        if (!id.isEmpty()) {
+                            ids.add(id);
+                        }
+                    }
+                }
             }
+            return streamParcels(siteCode, practice, year, format, ids);
+        } catch (Exception e) {
+            return emitted(handleException(e));
         }
-        return retList.toArray(new String[0]);
+    }
+
+    private ResponseEntity<ResponseBodyEmitter> streamParcels(String siteCode, Practice practice, int year,
+                                                              String format, Set<String> ids) {
+        if (ids.isEmpty()) {
+            throw new IllegalArgumentException("Invalid parcel identifier");
+        }
+        final boolean ndjson = "ndjson".equalsIgnoreCase(format);
+        if (!ndjson && !"json".equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException(String.format("Unsupported format '%s'", format));
+        }
+        final List<Site> sites = getSites(siteCode);
+        final ResponseBodyEmitter emitter = new ResponseBodyEmitter(queryExecutor.getStreamTimeout());
+        try {
+            final Future<?> query = queryExecutor.submitStream(() -> {
+                try {
+                    writeParcels(sites, practice, year, ndjson, ids, emitter);
+                    emitter.complete();
+                } catch (Exception e) {
+                    logger.warning(String.format("Parcel query interrupted: %s", e.getMessage()));
+                    emitter.completeWithError(e);
+                }
+            });
+            emitter.onTimeout(() -> query.cancel(true));
+            // the request is also completed when the client disconnects, which stops the query
+            emitter.onCompletion(() -> query.cancel(true));
+        } catch (RejectedExecutionException e) {
+            return emitted(tooManyRequests());
+        }
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.parseMediaType("application/x-ndjson") : MediaType.APPLICATION_JSON)
+                .body(emitter);
+    }
+
+    // Serializes the parcels in chunks, so that only one chunk at a time is kept in memory
+    private void writeParcels(List<Site> sites, Practice practice, int year, boolean ndjson,
+                              Set<String> ids, ResponseBodyEmitter emitter) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+        try (JsonGenerator generator = jsonMapper.getFactory().createGenerator(buffer)) {
+            if (ndjson) {
+                generator.setRootValueSeparator(null);
+            } else {
+                generator.writeStartArray();
+            }
+            final Set<String> found = new HashSet<>();
+            for (Site site : sites) {
+                if (sites.size() > 1 && !parcelQueryService.mayHoldAny(site, year, practice, ids)) {
+                    continue;
+                }
+                try {
+                    parcelQueryService.streamParcelInfo(site, year, practice, ids, parcel -> {
+                        try {
+                            generator.writeObject(parcel);
+                            if (ndjson) {
+                                generator.writeRaw('\n');
+                            }
+                            found.add(parcel.getId());
+                            if (found.size() % ParcelQueryService.STREAM_CHUNK_SIZE == 0) {
+                                flush(generator, buffer, emitter);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    // the client is gone or the query timed out
+                    throw e.getCause();
+                } catch (Exception e) {
+                    logger.warning(String.format("Error extracting the parcel information for site %s. Error was %s",
+                                                 site.getName(), e.getMessage()));
+                }
+                ids.removeAll(found);
+                found.clear();
+                // all parcels extracted, no need to check other sites
+                if (ids.isEmpty()) {
+                    break;
+                }
+            }
+            if (!ndjson) {
+                generator.writeEndArray();
+            }
+            flush(generator, buffer, emitter);
+            logger.fine(String.format("%d requested parcels not found", ids.size()));
+        }
+    }
+
+    private void flush(JsonGenerator generator, ByteArrayOutputStream buffer, ResponseBodyEmitter emitter) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Parcel query cancelled");
+        }
+        generator.flush();
+        if (buffer.size() > 0) {
+            emitter.send(buffer.toByteArray());
+            buffer.reset();
+        }
+    }
+
+    // The streamed responses must have an emitter body, hence the (error) response is sent through one
+    private ResponseEntity<ResponseBodyEmitter> emitted(ResponseEntity<?> response) {
+        final ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        try {
+            if (response.getBody() != null) {
+                emitter.send(response.getBody(), MediaType.APPLICATION_JSON);
+            }
+            emitter.complete();
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
+        return ResponseEntity.status(response.getStatusCode()).contentType(MediaType.APPLICATION_JSON).body(emitter);
+    }
+
+    private ResponseEntity<?> tooManyRequests() {
+        return new ResponseEntity<>("Too many parcel queries in progress, please retry later", HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    private List<Site> getSites(String siteCode) {
+        List<Site> sites = productCatalog.getSites(siteCode);
+        if (sites.isEmpty()) {
+            throw new IllegalArgumentException("Invalid country code");
+        }
+        return sites;
+    }
+
+    private String[] getRemainingParcelIds(List<ParcelInfo> parcels, String[] parcelIds) {
+        Set<String> extracted = parcels.stream().map(ParcelInfo::getId).collect(Collectors.toSet());
+        return Arrays.stream(parcelIds).filter(id -> !extracted.contains(id)).toArray(String[]::new);
     }
 }
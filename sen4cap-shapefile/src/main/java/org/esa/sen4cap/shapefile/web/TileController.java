@@ -0,0 +1,80 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.web;
+
+import org.esa.sen2agri.db.PersistenceManager;
+import org.esa.sen2agri.entities.Site;
+import org.esa.sen4cap.shapefile.db.DataType;
+import org.esa.sen4cap.shapefile.services.internal.VectorTileService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import ro.cs.tao.services.commons.ControllerBase;
+
+/**
+ * Controller class for the vector tiles of the LPIS/GSAA parcels
+ */
+@Controller
+@RequestMapping("/tiles")
+public class TileController extends ControllerBase {
+    private static final String MVT_MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+
+    @Autowired
+    private PersistenceManager persistenceManager;
+
+    @Autowired
+    private VectorTileService tileService;
+
+    @RequestMapping(value = "/{z}/{x}/{y}.mvt", method = RequestMethod.GET, produces = MVT_MEDIA_TYPE)
+    public ResponseEntity<?> getTile(@PathVariable("z") int z, @PathVariable("x") int x, @PathVariable("y") int y,
+                                     @RequestParam("siteId") short siteId,
+                                     @RequestParam(name = "type", required = false, defaultValue = "lpis") String type,
+                                     @RequestParam("year") int year) {
+        try {
+            if (z < 0 || z > 24) {
+                throw new IllegalArgumentException(String.format("Invalid zoom level %d", z));
+            }
+            final DataType dataType = DataType.fromBaseName(type);
+            if (dataType == null) {
+                throw new IllegalArgumentException(String.format("Invalid type %s", type));
+            }
+            final Site site = persistenceManager.getSiteById(siteId);
+            if (site == null) {
+                throw new IllegalArgumentException(String.format("Site with id %d does not exist", siteId));
+            }
+            final byte[] tile = tileService.getTile(site, dataType, year, z, x, y);
+            if (tile == null) {
+                return new ResponseEntity<>(String.format("No %s data for site %s and year %d", type, site.getShortName(), year),
+                                            HttpStatus.NOT_FOUND);
+            }
+            if (tile.length == 0) {
+                return ResponseEntity.noContent().build();
+            }
+            return ResponseEntity.ok().contentType(MediaType.parseMediaType(MVT_MEDIA_TYPE)).body(tile);
+        } catch (Exception ex) {
+            return handleException(ex);
+        }
+    }
+}
@@ -30,4 +30,25 @@ public class ConfigurationKeys {
     public static final String L4B_UPLOAD_DIR_CFG_KEY = "processor.s4c_l4b.cfg_upload_dir";
     public static final String L4C_CFG_UPLOAD_DIR_CFG_KEY = "processor.s4c_l4c.cfg_upload_dir";
     public static final String L4C_PRACT_UPLOAD_DIR_CFG_KEY = "processor.s4c_l4c.ts_input_tables_upload_root_dir";
+
+    public static final String LPIS_PARSER_WORKERS_CFG_KEY = "processor.lpis.parser.workers";
+    public static final String LPIS_PARSER_WRITERS_CFG_KEY = "processor.lpis.parser.writers";
+    public static final String LPIS_PARSER_QUEUE_SIZE_CFG_KEY = "processor.lpis.parser.queue.size";
+    public static final String LPIS_IMPORT_PARALLEL_FILES_CFG_KEY = "processor.lpis.import.parallel.files";
+    public static final String LPIS_IMPORT_MAX_CONNECTIONS_CFG_KEY = "processor.lpis.import.max.connections";
+    public static final String LPIS_INDEX_CONCURRENTLY_CFG_KEY = "processor.lpis.index.concurrently";
+    public static final String LPIS_QUERY_FETCH_SIZE_CFG_KEY = "processor.lpis.query.fetch.size";
+    public static final String LPIS_EXPORT_DIR_CFG_KEY = "processor.lpis.export_path";
+    public static final String LPIS_EXPORT_THREADS_CFG_KEY = "processor.lpis.export.threads";
+    public static final String LPIS_TILES_MIN_ZOOM_CFG_KEY = "processor.lpis.tiles.min.zoom";
+    public static final String LPIS_TILES_CACHE_ENABLED_CFG_KEY = "processor.lpis.tiles.cache.enabled";
+
+    public static final String L4C_INDEX_CACHE_SIZE_CFG_KEY = "processor.s4c_l4c.index.cache.size";
+    public static final String L4C_INDEX_CACHE_TTL_CFG_KEY = "processor.s4c_l4c.index.cache.ttl";
+    public static final String L4C_QUERY_THREADS_CFG_KEY = "processor.s4c_l4c.query.threads";
+    public static final String L4C_QUERY_QUEUE_SIZE_CFG_KEY = "processor.s4c_l4c.query.queue.size";
+    public static final String L4C_QUERY_TIMEOUT_CFG_KEY = "processor.s4c_l4c.query.timeout";
+    public static final String L4C_STREAM_TIMEOUT_CFG_KEY = "processor.s4c_l4c.stream.timeout";
+    public static final String L4C_STREAM_THREADS_CFG_KEY = "processor.s4c_l4c.stream.threads";
+    public static final String L4C_TS_STORE_ENABLED_CFG_KEY = "processor.s4c_l4c.ts_store.enabled";
 }
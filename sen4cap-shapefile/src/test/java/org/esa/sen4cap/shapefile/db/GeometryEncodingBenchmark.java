@@ -0,0 +1,111 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.db;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cost of the WKT and WKB geometry encodings on the footprints of a real LPIS/GSAA shapefile.
+ * Both the client side (encoding) and the equivalent of the server side work (decoding) are measured.
+ */
+public class GeometryEncodingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            System.out.println("Usage: \njava -cp '../modules/*:../lib/*:../services/*:../plugins/*' org.esa.sen4cap.shapefile.db.GeometryEncodingBenchmark <shape_file> [iterations]");
+            System.exit(-1);
+        }
+        final Path shapeFile = Paths.get(args[0]);
+        if (!Files.exists(shapeFile)) {
+            System.out.println("File not found: " + shapeFile);
+            System.exit(-1);
+        }
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final List<Geometry> geometries = readGeometries(shapeFile);
+        System.out.println(String.format("Read %d geometries from %s", geometries.size(), shapeFile.getFileName()));
+        // warm-up
+        runWKT(geometries);
+        runWKB(geometries);
+        long wktTime = 0, wkbTime = 0, wktSize = 0, wkbSize = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            wktSize = runWKT(geometries);
+            wktTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            wkbSize = runWKB(geometries);
+            wkbTime += System.nanoTime() - start;
+        }
+        System.out.println(String.format("WKT: %d ms/iteration, %d bytes", wktTime / iterations / 1000000, wktSize));
+        System.out.println(String.format("WKB: %d ms/iteration, %d bytes", wkbTime / iterations / 1000000, wkbSize));
+        System.out.println(String.format("WKB speed-up: %.2fx", (double) wktTime / (double) wkbTime));
+    }
+
+    private static List<Geometry> readGeometries(Path shapeFile) throws Exception {
+        final List<Geometry> geometries = new ArrayList<>();
+        final ShapefileDataStore dataStore = new ShapefileDataStore(shapeFile.toUri().toURL());
+        dataStore.setMemoryMapped(true);
+        try (SimpleFeatureIterator iterator = dataStore.getFeatureSource().getFeatures().features()) {
+            while (iterator.hasNext()) {
+                Geometry geometry = (Geometry) iterator.next().getDefaultGeometry();
+                if (geometry != null) {
+                    geometries.add(geometry);
+                }
+            }
+        } finally {
+            dataStore.dispose();
+        }
+        return geometries;
+    }
+
+    private static long runWKT(List<Geometry> geometries) throws Exception {
+        final WKTWriter writer = new WKTWriter();
+        final WKTReader reader = new WKTReader();
+        long size = 0;
+        for (Geometry geometry : geometries) {
+            String text = writer.write(geometry);
+            size += text.length();
+            reader.read(text);
+        }
+        return size;
+    }
+
+    private static long runWKB(List<Geometry> geometries) throws Exception {
+        final WKBWriter writer = new WKBWriter();
+        final WKBReader reader = new WKBReader();
+        long size = 0;
+        for (Geometry geometry : geometries) {
+            byte[] bytes = writer.write(geometry);
+            size += bytes.length;
+            reader.read(bytes);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.wololo.flatgeobuf.ColumnMeta;
+import org.wololo.flatgeobuf.HeaderMeta;
+import org.wololo.flatgeobuf.PackedRTree;
+import org.wololo.flatgeobuf.generated.Feature;
+import ro.cs.tao.utils.Tuple;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes a grid of square parcels with {@link FlatGeobufWriter} and reads the file back with the reference
+ * FlatGeobuf reader: the header, the attributes of every feature and a query through the spatial index.
+ */
+public class FlatGeobufWriterTest {
+    // enough features for an index of several levels
+    private static final int GRID_SIZE = 20;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        this.folder = Files.createTempDirectory("fgb_test_");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (java.util.stream.Stream<Path> files = Files.list(this.folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.folder);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final List<Parcel> parcels = new ArrayList<>();
+        for (int i = 0; i < GRID_SIZE * GRID_SIZE; i++) {
+            parcels.add(new Parcel(i, square(i % GRID_SIZE, i / GRID_SIZE)));
+        }
+        // records without geometry are skipped
+        parcels.add(new Parcel(-1, null));
+        final Path target = this.folder.resolve("parcels.fgb");
+        final List<Tuple<String, Byte>> columns = Arrays.asList(new Tuple<>("id", FlatGeobufWriter.COLUMN_LONG),
+                                                                new Tuple<>("name", FlatGeobufWriter.COLUMN_STRING),
+                                                                new Tuple<>("area", FlatGeobufWriter.COLUMN_DOUBLE));
+        final FlatGeobufWriter<Parcel> writer = new FlatGeobufWriter<>(target, "parcels", columns, p -> p.geometry,
+                                                                       p -> new Object[] { p.id, "parcel " + p.id, p.id / 2.0 },
+                                                                       4);
+        final int count = GRID_SIZE * GRID_SIZE;
+        assertEquals(count, writer.write(parcels.iterator()));
+
+        final ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(target)).order(ByteOrder.LITTLE_ENDIAN);
+        final HeaderMeta header = HeaderMeta.read(bb);
+        assertEquals(count, header.featuresCount);
+        assertEquals(3, header.columns.size());
+        final ColumnMeta nameColumn = header.columns.get(1);
+        assertEquals("name", nameColumn.name);
+        assertEquals(FlatGeobufWriter.COLUMN_STRING, nameColumn.type);
+        final int indexStart = header.offset;
+        final int featuresStart = (int) (indexStart + PackedRTree.calcSize(count, header.indexNodeSize));
+
+        // all the features, in file order
+        final Set<Long> ids = new HashSet<>();
+        int position = featuresStart;
+        while (position < bb.limit()) {
+            final int length = bb.getInt(position);
+            final Object[] values = readValues(bb, position);
+            final long id = (Long) values[0];
+            assertTrue(ids.add(id));
+            assertEquals("parcel " + id, values[1]);
+            assertEquals(id / 2.0, (Double) values[2], 0);
+            position += 4 + length;
+        }
+        assertEquals(count, ids.size());
+
+        // the features intersecting a box, through the index
+        final Envelope query = new Envelope(3.5, 6.5, 7.5, 9.5);
+        final Set<Long> expected = new HashSet<>();
+        for (Parcel parcel : parcels) {
+            if (parcel.geometry != null && parcel.geometry.getEnvelopeInternal().intersects(query)) {
+                expected.add(parcel.id);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        final Set<Long> found = new HashSet<>();
+        for (PackedRTree.SearchHit hit : PackedRTree.search(bb, indexStart, count, header.indexNodeSize, query)) {
+            found.add((Long) readValues(bb, featuresStart + (int) hit.offset)[0]);
+        }
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        final Path target = this.folder.resolve("empty.fgb");
+        final FlatGeobufWriter<Parcel> writer = new FlatGeobufWriter<>(target, "empty",
+                                                                       Arrays.asList(new Tuple<>("id", FlatGeobufWriter.COLUMN_LONG)),
+                                                                       p -> p.geometry, p -> new Object[] { p.id }, 1);
+        assertEquals(0, writer.write(new ArrayList<Parcel>().iterator()));
+        final HeaderMeta header = HeaderMeta.read(ByteBuffer.wrap(Files.readAllBytes(target)).order(ByteOrder.LITTLE_ENDIAN));
+        assertEquals(0, header.featuresCount);
+    }
+
+    private Geometry square(int column, int row) {
+        return this.geometryFactory.toGeometry(new Envelope(column, column + 0.9, row, row + 0.9));
+    }
+
+    /**
+     * Decodes the (id, name, area) properties of the size-prefixed feature at the given position.
+     */
+    private static Object[] readValues(ByteBuffer bb, int position) {
+        final ByteBuffer featureBuffer = bb.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        featureBuffer.position(position + 4);
+        final Feature feature = Feature.getRootAsFeature(featureBuffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+        assertTrue(feature.geometry().xyLength() > 0);
+        final ByteBuffer properties = feature.propertiesAsByteBuffer().slice().order(ByteOrder.LITTLE_ENDIAN);
+        final Object[] values = new Object[3];
+        while (properties.hasRemaining()) {
+            final int column = properties.getShort();
+            switch (column) {
+                case 0:
+                    values[0] = properties.getLong();
+                    break;
+                case 1:
+                    final byte[] text = new byte[properties.getInt()];
+                    properties.get(text);
+                    values[1] = new String(text, StandardCharsets.UTF_8);
+                    break;
+                default:
+                    values[2] = properties.getDouble();
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static class Parcel {
+        private final long id;
+        private final Geometry geometry;
+
+        Parcel(long id, Geometry geometry) {
+            this.id = id;
+            this.geometry = geometry;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import ro.cs.tao.utils.Tuple;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the former byte-by-byte <code>RandomAccessFile</code> read of the parcel records of an L4C
+ * <code>_PLOT</code> file with the coalesced channel reads of {@link ParcelRecordReader},
+ * for requests of 1, 100 and 10000 parcels.
+ */
+public class ParcelReadBenchmark {
+    private static final int[] REQUEST_SIZES = { 1, 100, 10000 };
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            System.out.println("Usage: \njava -cp '../modules/*:../lib/*:../services/*:../plugins/*' org.esa.sen4cap.shapefile.services.internal.ParcelReadBenchmark <plot_file> [iterations]");
+            System.exit(-1);
+        }
+        final Path dataFile = Paths.get(args[0]);
+        final Path indexFile = Paths.get(args[0] + ".idx");
+        if (!Files.exists(dataFile) || !Files.exists(indexFile)) {
+            System.out.println("File not found: " + (Files.exists(dataFile) ? indexFile : dataFile));
+            System.exit(-1);
+        }
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final List<Tuple<Long, Long>> allRanges = readRanges(indexFile);
+        System.out.println(String.format("Read %d parcel offsets from %s", allRanges.size(), indexFile.getFileName()));
+        final Random random = new Random(42);
+        for (int requestSize : REQUEST_SIZES) {
+            final int size = Math.min(requestSize, allRanges.size());
+            Collections.shuffle(allRanges, random);
+            final List<Tuple<Long, Long>> ranges = new ArrayList<>(allRanges.subList(0, size));
+            // warm-up
+            readBytes(dataFile, ranges);
+            ParcelRecordReader.read(dataFile, ranges);
+            long byteTime = 0, channelTime = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                readBytes(dataFile, ranges);
+                byteTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                ParcelRecordReader.read(dataFile, ranges);
+                channelTime += System.nanoTime() - start;
+            }
+            System.out.println(String.format("%d parcels: byte reads %.3f ms/request, channel reads %.3f ms/request (%.2fx)",
+                                             size, byteTime / iterations / 1e6, channelTime / iterations / 1e6,
+                                             (double) byteTime / (double) channelTime));
+        }
+    }
+
+    private static List<Tuple<Long, Long>> readRanges(Path indexFile) throws IOException {
+        try (Stream<String> lines = Files.lines(indexFile)) {
+            return lines.map(line -> line.split(";"))
+                        .filter(tokens -> tokens.length == 3)
+                        .map(tokens -> new Tuple<>(Long.parseLong(tokens[1]), Long.parseLong(tokens[2])))
+                        .collect(Collectors.toList());
+        }
+    }
+
+    // The read path used before ParcelRecordReader
+    private static List<String> readBytes(Path dataFile, List<Tuple<Long, Long>> ranges) throws IOException {
+        final List<String> records = new ArrayList<>(ranges.size());
+        final List<Tuple<Long, Long>> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(Tuple::getKeyOne));
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile.toFile(), "r")) {
+            for (Tuple<Long, Long> range : sorted) {
+                raf.seek(range.getKeyOne());
+                byte[] buffer = new byte[range.getKeyTwo().intValue()];
+                int idx = 0;
+                while (idx < buffer.length) {
+                    buffer[idx++] = raf.readByte();
+                }
+                records.add(new String(buffer));
+            }
+        }
+        return records;
+    }
+}
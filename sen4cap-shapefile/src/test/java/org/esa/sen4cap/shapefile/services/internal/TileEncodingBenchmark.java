@@ -0,0 +1,152 @@
+/*
+ *
+ *  * Copyright (C) 2019 CS ROMANIA
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU General Public License as published by the Free
+ *  * Software Foundation; either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  * This program is distributed in the hope that it will be useful, but WITHOUT
+ *  * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ *  * more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along
+ *  * with this program; if not, see http://www.gnu.org/licenses/
+ *
+ */
+
+package org.esa.sen4cap.shapefile.services.internal;
+
+import no.ecc.vectortile.VectorTileEncoder;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.referencing.operation.MathTransform;
+import ro.cs.tao.utils.Tuple;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares, for each zoom level, the size and the encoding time of the vector tiles of a real LPIS/GSAA shapefile
+ * when the full resolution geometries are handed to the encoder and when they go through
+ * {@link ConversionServiceImpl#encodeTile(String, Envelope, int, List)} (clipping, simplification and quantization).
+ * The tiles are taken around the center of the shapefile extent.
+ */
+public class TileEncodingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            System.out.println("Usage: \njava -cp '../modules/*:../lib/*:../services/*:../plugins/*' org.esa.sen4cap.shapefile.services.internal.TileEncodingBenchmark <shape_file> [min_zoom] [max_zoom] [tiles_per_zoom]");
+            System.exit(-1);
+        }
+        final Path shapeFile = Paths.get(args[0]);
+        if (!Files.exists(shapeFile)) {
+            System.out.println("File not found: " + shapeFile);
+            System.exit(-1);
+        }
+        final int minZoom = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int maxZoom = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final int tilesPerZoom = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        final STRtree index = new STRtree();
+        final Envelope extent = readGeometries(shapeFile, index);
+        System.out.println(String.format("Read %d geometries from %s", index.size(), shapeFile.getFileName()));
+        final ConversionServiceImpl conversionService = new ConversionServiceImpl();
+        System.out.println("zoom\ttiles\tfeatures/tile\traw bytes/tile\traw ms/tile\ttile bytes/tile\ttile ms/tile");
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            final List<int[]> tiles = tilesAround(extent, zoom, tilesPerZoom);
+            long features = 0, rawSize = 0, rawTime = 0, tileSize = 0, tileTime = 0;
+            for (int[] tile : tiles) {
+                final Envelope envelope = VectorTileService.tileEnvelope(zoom, tile[0], tile[1]);
+                final List<Tuple<Geometry, Map<String, Object>>> tileFeatures = new ArrayList<>();
+                for (Object item : index.query(envelope)) {
+                    tileFeatures.add(new Tuple<>((Geometry) item, null));
+                }
+                features += tileFeatures.size();
+                // warm-up
+                encodeRaw(envelope, tileFeatures);
+                conversionService.encodeTile(VectorTileService.LAYER_NAME, envelope, zoom, tileFeatures);
+                long start = System.nanoTime();
+                rawSize += encodeRaw(envelope, tileFeatures).length;
+                rawTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                tileSize += conversionService.encodeTile(VectorTileService.LAYER_NAME, envelope, zoom, tileFeatures).length;
+                tileTime += System.nanoTime() - start;
+            }
+            final int count = Math.max(tiles.size(), 1);
+            System.out.println(String.format("%d\t%d\t%d\t%d\t%.2f\t%d\t%.2f", zoom, tiles.size(), features / count,
+                                             rawSize / count, rawTime / count / 1e6, tileSize / count, tileTime / count / 1e6));
+        }
+    }
+
+    private static Envelope readGeometries(Path shapeFile, STRtree index) throws Exception {
+        final Envelope extent = new Envelope();
+        final ShapefileDataStore dataStore = new ShapefileDataStore(shapeFile.toUri().toURL());
+        dataStore.setMemoryMapped(true);
+        try {
+            final MathTransform transform = CRS.findMathTransform(dataStore.getSchema().getCoordinateReferenceSystem(),
+                                                                  CRS.decode("EPSG:3857"), true);
+            try (SimpleFeatureIterator iterator = dataStore.getFeatureSource().getFeatures().features()) {
+                while (iterator.hasNext()) {
+                    Geometry geometry = (Geometry) iterator.next().getDefaultGeometry();
+                    if (geometry != null) {
+                        geometry = JTS.transform(geometry, transform);
+                        index.insert(geometry.getEnvelopeInternal(), geometry);
+                        extent.expandToInclude(geometry.getEnvelopeInternal());
+                    }
+                }
+            }
+        } finally {
+            dataStore.dispose();
+        }
+        return extent;
+    }
+
+    /**
+     * Returns up to <code>count</code> tiles (as [x, y] pairs) spiralling out of the tile containing the extent center.
+     */
+    private static List<int[]> tilesAround(Envelope extent, int zoom, int count) {
+        final Envelope first = VectorTileService.tileEnvelope(zoom, 0, 0);
+        final int tiles = 1 << zoom;
+        final int centerX = (int) ((extent.centre().x - first.getMinX()) / first.getWidth());
+        final int centerY = (int) ((first.getMaxY() - extent.centre().y) / first.getHeight());
+        final List<int[]> result = new ArrayList<>();
+        for (int ring = 0; result.size() < count && ring < tiles; ring++) {
+            for (int x = centerX - ring; x <= centerX + ring && result.size() < count; x++) {
+                for (int y = centerY - ring; y <= centerY + ring && result.size() < count; y++) {
+                    if ((Math.abs(x - centerX) == ring || Math.abs(y - centerY) == ring) &&
+                            x >= 0 && x < tiles && y >= 0 && y < tiles &&
+                            extent.intersects(VectorTileService.tileEnvelope(zoom, x, y))) {
+                        result.add(new int[] { x, y });
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The encoding without any pre-processing: the geometries are only moved in the tile space.
+     */
+    private static byte[] encodeRaw(Envelope envelope, List<Tuple<Geometry, Map<String, Object>>> features) {
+        final VectorTileEncoder encoder = new VectorTileEncoder();
+        final double scaleX = 256 / envelope.getWidth();
+        final double scaleY = 256 / envelope.getHeight();
+        final AffineTransformation toTileSpace = new AffineTransformation(scaleX, 0, -envelope.getMinX() * scaleX,
+                                                                          0, -scaleY, envelope.getMaxY() * scaleY);
+        for (Tuple<Geometry, Map<String, Object>> feature : features) {
+            encoder.addFeature(VectorTileService.LAYER_NAME, feature.getKeyTwo(), toTileSpace.transform(feature.getKeyOne()));
+        }
+        return encoder.encode();
+    }
+}